@@ -0,0 +1,279 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mesure de bout en bout sur l'interface de bouclage: un lieur et un serveur d'echo sont démarrés dans la JVM du
+ * benchmark, le client mesure une demande de service au lieur, une demande d'echo au serveur et le parcours complet
+ * du client (résolution par le cache du Resolveur puis echo). Un second serveur fournit un id de service supérieur à
+ * 127, transmis sur un byte non signé: la demande de plusieurs services porte sur les deux ids, et le déploiement
+ * vérifie au démarrage que le Resolveur les résout ensemble.
+ *
+ * Le journal est limité aux erreurs pendant la mesure pour ne mesurer que le traitement des messages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllerRetourUdpBenchmark {
+    private static final int ID_SERVICE = 1;
+    private static final int ID_SERVICE_HAUT = 200;     // Id dont le byte est négatif en Java
+    private static final int[] IDS_SERVICES = {ID_SERVICE, ID_SERVICE_HAUT};
+    private static final int TEMPS_MAX_ATTENTE = 1000;  // Temps d'attente maximal d'une réponse en millisecondes
+
+    /**
+     * Lieur et serveur démarrés une fois pour toute la mesure, dans des threads démons
+     */
+    @State(Scope.Benchmark)
+    public static class Deploiement {
+        Lieur lieur;
+        InetSocketAddress adresseLieur;
+        InetSocketAddress adresseServeur;
+        private Journal.Niveau niveau;
+
+        @Setup
+        public void demarrer() throws Exception {
+            niveau = Journal.getNiveau();
+            Journal.setNiveau(Journal.Niveau.ERREUR);
+
+            int portLieur = portLibre();
+            int portVerification = portLibre();
+            int portServeur = portLibre();
+            int portServeurHaut = portLibre();
+            lieur = new Lieur("127.0.0.1", portLieur);
+            adresseLieur = new InetSocketAddress("127.0.0.1", portLieur);
+            adresseServeur = new InetSocketAddress("127.0.0.1", portServeur);
+
+            // La mesure envoie ses demandes depuis une seule adresse, bien au-delà de la limite par client
+            demarrerDemon("lieur", () -> {
+                LieurServeur lieurServeur = new LieurServeur(portLieur, portVerification, new Lieur[0]);
+                lieurServeur.setLimiteDemandes(0);
+                lieurServeur.demarrer();
+            });
+            attendre(ID_SERVICE, Protocole.SERVICE_EXISTE_PAS);
+            demarrerDemon("serveur", () -> new ServiceServeur(portServeur, ID_SERVICE, new Lieur[]{lieur}).demarrer());
+            demarrerDemon("serveur-haut", () -> new ServiceServeur(portServeurHaut, ID_SERVICE_HAUT, new Lieur[]{lieur}).demarrer());
+            attendre(ID_SERVICE, Protocole.REPONSE_DEMANDE_DE_SERVICE);
+            attendre(ID_SERVICE_HAUT, Protocole.REPONSE_DEMANDE_DE_SERVICE);
+            verifierResolutionPlusieurs();
+        }
+
+        /**
+         * Résout les deux ids avec une seule demande de plusieurs services et vérifie l'id de chaque service obtenu
+         *
+         * @throws IOException
+         */
+        private void verifierResolutionPlusieurs() throws IOException {
+            Resolveur resolveur = new Resolveur(new Lieur[]{lieur}, 30000, 2000, TEMPS_MAX_ATTENTE);
+            try {
+                Service[] services = resolveur.resoudre(IDS_SERVICES);
+                for (int i = 0; i < IDS_SERVICES.length; i++) {
+                    if (services[i] == null || services[i].getIdService() != IDS_SERVICES[i]) {
+                        throw new IllegalStateException("Service " + IDS_SERVICES[i] + " non résolu: " + services[i]);
+                    }
+                }
+            } finally {
+                resolveur.fermer();
+            }
+        }
+
+        @TearDown
+        public void arreter() {
+            Journal.setNiveau(niveau);
+        }
+
+        /**
+         * Demande le service au lieur jusqu'à obtenir une réponse du type attendu
+         *
+         * @param idService
+         * @param attendu
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private void attendre(int idService, Protocole attendu) throws IOException, InterruptedException {
+            try (DatagramSocket socket = new DatagramSocket()) {
+                socket.setSoTimeout(100);
+                ByteBuffer tampon = Codec.allouer(64);
+                DatagramPacket paquet = new DatagramPacket(tampon.array(), tampon.capacity());
+                for (int essai = 0; essai < 100; essai++) {
+                    Codec.encoderDemandeDeService(tampon, idService);
+                    socket.send(new DatagramPacket(tampon.array(), tampon.limit(), adresseLieur));
+                    try {
+                        paquet.setLength(tampon.capacity());
+                        socket.receive(paquet);
+                        tampon.clear();
+                        tampon.limit(paquet.getLength());
+                        if (Codec.lireType(tampon) == attendu) {
+                            return;
+                        }
+                    } catch (SocketTimeoutException e) {
+                        // Pas encore démarré
+                    }
+                    Thread.sleep(50);
+                }
+            }
+            throw new IllegalStateException("Le déploiement n'a pas démarré");
+        }
+    }
+
+    /**
+     * Sockets et tampons du client, propres à chaque thread de mesure
+     */
+    @State(Scope.Thread)
+    public static class ClientMesure {
+        DatagramSocket socket;
+        Resolveur resolveur;
+        final ByteBuffer envoi = Codec.allouer(1400);
+        final ByteBuffer reception = Codec.allouer(1400);
+        final ByteBuffer message = Codec.allouer(4);
+        DatagramPacket paquetEnvoi;
+        DatagramPacket paquetReception;
+
+        @Setup
+        public void ouvrir(Deploiement deploiement) throws IOException {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(TEMPS_MAX_ATTENTE);
+            resolveur = new Resolveur(new Lieur[]{deploiement.lieur}, 30000, 2000, TEMPS_MAX_ATTENTE);
+            paquetEnvoi = new DatagramPacket(envoi.array(), 0);
+            paquetReception = new DatagramPacket(reception.array(), reception.capacity());
+            message.put(new byte[]{1, 1, 1, 1}).flip();
+        }
+
+        @TearDown
+        public void fermer() {
+            resolveur.fermer();
+            socket.close();
+        }
+
+        /**
+         * Envoie le message du tampon d'envoi et attend la réponse dans le tampon de réception
+         *
+         * @param destination
+         * @return le type de la réponse
+         * @throws IOException
+         */
+        Protocole allerRetour(InetSocketAddress destination) throws IOException {
+            paquetEnvoi.setData(envoi.array(), 0, envoi.limit());
+            paquetEnvoi.setSocketAddress(destination);
+            socket.send(paquetEnvoi);
+            paquetReception.setLength(reception.capacity());
+            socket.receive(paquetReception);
+            reception.clear();
+            reception.limit(paquetReception.getLength());
+            return Codec.lireType(reception);
+        }
+    }
+
+    /**
+     * DEMANDE_DE_SERVICE au lieur et réception de la réponse
+     *
+     * @param client
+     * @param deploiement
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public Protocole demandeDeService(ClientMesure client, Deploiement deploiement) throws IOException {
+        Codec.encoderDemandeDeService(client.envoi, ID_SERVICE);
+        return client.allerRetour(deploiement.adresseLieur);
+    }
+
+    /**
+     * DEMANDE_DE_SERVICES au lieur pour les deux ids et réception de la réponse
+     *
+     * @param client
+     * @param deploiement
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public Protocole demandeDeServices(ClientMesure client, Deploiement deploiement) throws IOException {
+        Codec.encoderDemandeDeServices(client.envoi, IDS_SERVICES, IDS_SERVICES.length);
+        return client.allerRetour(deploiement.adresseLieur);
+    }
+
+    /**
+     * CONTACT_SERVICE au serveur et réception de l'echo
+     *
+     * @param client
+     * @param deploiement
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public Protocole echo(ClientMesure client, Deploiement deploiement) throws IOException {
+        client.message.rewind();
+        Codec.encoderContactService(client.envoi, client.message);
+        return client.allerRetour(deploiement.adresseServeur);
+    }
+
+    /**
+     * Parcours du client: résolution du service (le plus souvent depuis le cache) puis echo
+     *
+     * @param client
+     * @return
+     * @throws IOException
+     */
+    @Benchmark
+    public Protocole client(ClientMesure client) throws IOException {
+        Service service = client.resolveur.resoudre(ID_SERVICE);
+        client.message.rewind();
+        Codec.encoderContactService(client.envoi, client.message);
+        return client.allerRetour(new InetSocketAddress(Codec.entierVersIp(service.getIp()), service.getPort()));
+    }
+
+    /**
+     * Tâche d'un thread démon qui peut lever une exception
+     */
+    private interface Tache {
+        void executer() throws Exception;
+    }
+
+    private static void demarrerDemon(String nom, Tache tache) {
+        Thread thread = new Thread(() -> {
+            try {
+                tache.executer();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, nom);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Retourne un port UDP libre de la machine
+     *
+     * @return
+     * @throws IOException
+     */
+    private static int portLibre() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
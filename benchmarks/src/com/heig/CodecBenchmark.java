@@ -0,0 +1,241 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mesure de l'encodage et du décodage de chaque type de message du protocole. Les messages de taille variable ont une
+ * taille représentative: 16 entrées, types de service ou métriques, un fragment de la liste plein.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+    private static final int IP = 0x7F000001;           // 127.0.0.1
+    private static final int PORT = 2224;
+    private static final int NB_ELEMENTS = 16;          // Nombre d'entrées, de types ou de numéros des messages variables
+    private static final int NB_ENTREES_FRAGMENT = (1400 - Codec.TAILLE_ENTETE_FRAGMENT - Codec.TAILLE_VERSION) / Codec.TAILLE_ENTREE;
+
+    @Param({"CONTACT_SERVICE", "REPONSE_DU_SERVICE", "DEMANDE_DE_SERVICE", "REPONSE_DEMANDE_DE_SERVICE",
+            "SERVICE_EXISTE_PAS", "ABONNEMENT", "CONFIRMATION_ABONNEMENT", "DEMANDE_DE_LISTE_DE_SERVICES",
+            "REPONSE_DEMANDE_LISTE_DE_SERVICES", "AJOUT_SERVICE", "SUPPRESSION_SERVICE", "VERIFIE_N_EXISTE_PAS",
+            "J_EXISTE", "DEMANDE_FRAGMENTS_MANQUANTS", "RESUME_VERSIONS", "DELTA_REGISTRE", "LOT_MODIFICATIONS",
+            "DEMANDE_DE_SERVICES", "REPONSE_DEMANDE_DE_SERVICES", "BATTEMENT",
+            "DEMANDE_STATISTIQUES", "REPONSE_STATISTIQUES"})
+    public String nomType;                              // Type de message mesuré
+
+    private Protocole type;
+    private final ByteBuffer tampon = Codec.allouer(1400);  // Tampon d'encodage
+    private final ByteBuffer message = Codec.allouer(1400); // Message encodé une fois, pour le décodage
+    private final ByteBuffer echo = Codec.allouer(64);      // Message d'echo du client
+    private final int[] idsServices = new int[NB_ELEMENTS];
+    private final String[] nomsValeurs = new String[NB_ELEMENTS];
+
+    @Setup
+    public void preparer() {
+        type = Protocole.valueOf(nomType);
+        for (int i = 0; i < NB_ELEMENTS; i++) {
+            idsServices[i] = i;
+            nomsValeurs[i] = "messages." + Protocole.values()[i].name() + ".recus";
+        }
+        while (echo.hasRemaining()) {
+            echo.put((byte) 1);
+        }
+        echo.flip();
+        encoder(message);
+    }
+
+    /**
+     * Encodage du message dans un tampon réutilisé
+     *
+     * @return
+     */
+    @Benchmark
+    public ByteBuffer encoder() {
+        return encoder(tampon);
+    }
+
+    /**
+     * Décodage de tous les champs du message
+     *
+     * @return une somme des champs lus
+     */
+    @Benchmark
+    public long decoder() {
+        message.rewind();
+        return decoder(message);
+    }
+
+    private ByteBuffer encoder(ByteBuffer t) {
+        switch (type) {
+            case CONTACT_SERVICE:
+                echo.rewind();
+                return Codec.encoderContactService(t, echo);
+            case REPONSE_DU_SERVICE:
+                echo.rewind();
+                return Codec.encoderReponseDuService(t, echo);
+            case DEMANDE_DE_SERVICE:
+                return Codec.encoderDemandeDeService(t, 1);
+            case REPONSE_DEMANDE_DE_SERVICE:
+                return Codec.encoderReponseDemandeDeService(t, 1, IP, PORT);
+            case SERVICE_EXISTE_PAS:
+                return Codec.encoderServiceExistePas(t, 1, IP, PORT);
+            case ABONNEMENT:
+                return Codec.encoderAbonnement(t, 1, 15000);
+            case BATTEMENT:
+                return Codec.encoderBattement(t, 1, 15000, 250);
+            case REPONSE_DEMANDE_LISTE_DE_SERVICES:
+                Codec.ecrireEnteteFragment(t, 1, 0, 1, NB_ENTREES_FRAGMENT, 1, NB_ENTREES_FRAGMENT);
+                Codec.ecrireVersion(t, 1, NB_ENTREES_FRAGMENT);
+                ecrireEntrees(t, NB_ENTREES_FRAGMENT);
+                return Codec.terminer(t);
+            case AJOUT_SERVICE:
+            case SUPPRESSION_SERVICE:
+                return Codec.encoderModification(t, type == Protocole.AJOUT_SERVICE, 1, IP, PORT, 1, 1, 1);
+            case DEMANDE_FRAGMENTS_MANQUANTS:
+                Codec.ecrireEnteteDemandeFragments(t, 1);
+                for (int i = 0; i < NB_ELEMENTS; i++) {
+                    t.putInt(i);
+                }
+                Codec.fixerNombreFragmentsDemandes(t, NB_ELEMENTS);
+                return Codec.terminer(t);
+            case RESUME_VERSIONS:
+                Codec.ecrireEnteteResume(t, NB_ELEMENTS);
+                for (int i = 0; i < NB_ELEMENTS; i++) {
+                    Codec.ecrireVersion(t, i, i);
+                }
+                return Codec.terminer(t);
+            case DELTA_REGISTRE:
+                Codec.ecrireEnteteDelta(t, 1, 0, NB_ELEMENTS, NB_ELEMENTS);
+                ecrireEntrees(t, NB_ELEMENTS);
+                return Codec.terminer(t);
+            case LOT_MODIFICATIONS:
+                Codec.ecrireEnteteLot(t, NB_ELEMENTS);
+                ecrireEntrees(t, NB_ELEMENTS);
+                return Codec.terminer(t);
+            case DEMANDE_DE_SERVICES:
+                return Codec.encoderDemandeDeServices(t, idsServices, NB_ELEMENTS);
+            case REPONSE_DEMANDE_DE_SERVICES:
+                Codec.ecrireEnteteReponseServices(t, NB_ELEMENTS);
+                for (int i = 0; i < NB_ELEMENTS; i++) {
+                    Codec.ecrireService(t, i, IP, PORT + i);
+                }
+                return Codec.terminer(t);
+            case DEMANDE_STATISTIQUES:
+                return Codec.encoderDemandeStatistiques(t, 0);
+            case REPONSE_STATISTIQUES:
+                Codec.ecrireEnteteReponseStatistiques(t, NB_ELEMENTS, 0);
+                for (int i = 0; i < NB_ELEMENTS; i++) {
+                    Codec.ecrireValeur(t, nomsValeurs[i], i);
+                }
+                Codec.fixerNombreValeurs(t, NB_ELEMENTS);
+                return Codec.terminer(t);
+            default:
+                // Messages sans contenu
+                return Codec.encoderSimple(t, type);
+        }
+    }
+
+    private static void ecrireEntrees(ByteBuffer t, int nbEntrees) {
+        for (int i = 0; i < nbEntrees; i++) {
+            Codec.ecrireEntree(t, true, i % 16, IP + i, PORT, 1, i + 1, i + 1);
+        }
+    }
+
+    private long decoder(ByteBuffer m) {
+        long somme = Codec.lireType(m).ordinal();
+        switch (type) {
+            case CONTACT_SERVICE:
+            case REPONSE_DU_SERVICE:
+                int longueur = Codec.lireLongueurMessage(m);
+                for (int i = 0; i < longueur; i++) {
+                    somme += m.get();
+                }
+                return somme;
+            case DEMANDE_DE_SERVICE:
+                return somme + Codec.lireIdService(m);
+            case REPONSE_DEMANDE_DE_SERVICE:
+            case SERVICE_EXISTE_PAS:
+                return somme + Codec.lireIdService(m) + Codec.lireIp(m) + Codec.lirePort(m);
+            case ABONNEMENT:
+                return somme + Codec.lireIdService(m) + Codec.lireBail(m);
+            case BATTEMENT:
+                return somme + Codec.lireIdService(m) + Codec.lireBail(m) + Codec.lireCharge(m);
+            case REPONSE_DEMANDE_LISTE_DE_SERVICES:
+                somme += m.getInt() + m.getInt() + m.getInt() + m.getInt();
+                int nbOrigines = Codec.lireNombre(m);
+                int nbEntrees = Codec.lireNombre(m);
+                for (int i = 0; i < nbOrigines; i++) {
+                    somme += m.getInt() + m.getLong();
+                }
+                return somme + lireEntrees(m, nbEntrees);
+            case AJOUT_SERVICE:
+            case SUPPRESSION_SERVICE:
+                return somme + lireEntrees(m, 1);
+            case DEMANDE_FRAGMENTS_MANQUANTS:
+                somme += m.getInt();
+                for (int i = Codec.lireNombre(m); i > 0; i--) {
+                    somme += m.getInt();
+                }
+                return somme;
+            case RESUME_VERSIONS:
+                for (int i = Codec.lireNombre(m); i > 0; i--) {
+                    somme += m.getInt() + m.getLong();
+                }
+                return somme;
+            case DELTA_REGISTRE:
+                somme += m.getInt() + m.getLong() + m.getLong();
+                return somme + lireEntrees(m, Codec.lireNombre(m));
+            case LOT_MODIFICATIONS:
+                return somme + Replicateur.lireLot(m).size();
+            case DEMANDE_DE_SERVICES:
+                for (int i = Codec.lireNombreIds(m); i > 0; i--) {
+                    somme += Codec.lireIdService(m);
+                }
+                return somme;
+            case REPONSE_DEMANDE_DE_SERVICES:
+                for (int i = Codec.lireNombreIds(m); i > 0; i--) {
+                    somme += Codec.lireIdService(m) + Codec.lireIp(m) + Codec.lirePort(m);
+                }
+                return somme;
+            case DEMANDE_STATISTIQUES:
+                return somme + Codec.lireNombre(m);
+            case REPONSE_STATISTIQUES:
+                somme += Codec.lireNombre(m) + Codec.lireNombre(m);
+                for (int i = Codec.lireNombre(m); i > 0; i--) {
+                    somme += Codec.lireNom(m).length() + m.getLong();
+                }
+                return somme;
+            default:
+                return somme;
+        }
+    }
+
+    private static long lireEntrees(ByteBuffer m, int nbEntrees) {
+        long somme = 0;
+        for (int i = 0; i < nbEntrees; i++) {
+            somme += EntreeRegistre.lire(m).sequence;
+        }
+        return somme;
+    }
+}
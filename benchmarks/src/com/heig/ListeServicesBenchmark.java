@@ -0,0 +1,86 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mesure de l'envoi de la liste des services à un lieur qui démarre: copie du registre et découpage en fragments comme
+ * dans envoiListeServices, puis lecture des fragments et reconstruction du registre comme dans recupererListeServices.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListeServicesBenchmark {
+    private static final int TAILLE_MAX_FRAGMENT = 1400;    // Taille maximale d'un fragment, comme dans le lieur
+
+    @Param({"10", "1000", "100000"})
+    public int nbServices;                                  // Nombre de services dans le registre
+
+    private RegistreServices services;                      // Registre envoyé
+    private List<byte[]> fragments;                         // Fragments de la liste, pour la reconstruction
+    private final ByteBuffer fragment = Codec.allouer(TAILLE_MAX_FRAGMENT); // Tampon de construction d'un fragment
+
+    @Setup
+    public void preparer() {
+        Random hasard = new Random(42);
+        services = new RegistreServices(1);
+        for (int i = 0; i < nbServices; i++) {
+            services.ajouterLocal(new Service(i % 16, 0x0A000000 | i, 1024 + hasard.nextInt(60000)));
+        }
+        fragments = LieurServeur.fragmenter(services.instantane(), 1, fragment, TAILLE_MAX_FRAGMENT);
+    }
+
+    /**
+     * Copie du registre et découpage en fragments
+     *
+     * @return
+     */
+    @Benchmark
+    public List<byte[]> fragmenter() {
+        return LieurServeur.fragmenter(services.instantane(), 1, fragment, TAILLE_MAX_FRAGMENT);
+    }
+
+    /**
+     * Lecture de tous les fragments et application des entrées à un registre vide
+     *
+     * @return
+     */
+    @Benchmark
+    public RegistreServices reconstruire() {
+        RegistreServices registre = new RegistreServices(2);
+        for (byte[] donnees : fragments) {
+            ByteBuffer tampon = ByteBuffer.wrap(donnees).order(Codec.ORDRE);
+            Codec.lireType(tampon);
+            tampon.position(tampon.position() + 16);
+            int nbOrigines = Codec.lireNombre(tampon);
+            int nbEntrees = Codec.lireNombre(tampon);
+            tampon.position(tampon.position() + nbOrigines * Codec.TAILLE_VERSION);
+            for (int i = 0; i < nbEntrees; i++) {
+                registre.appliquer(EntreeRegistre.lire(tampon));
+            }
+        }
+        return registre;
+    }
+}
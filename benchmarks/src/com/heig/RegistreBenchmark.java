@@ -0,0 +1,104 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mesure du choix d'un service dans le registre du lieur, tel que fait par envoiServiceAuClient et
+ * envoiServicesAuClient, ainsi que des ajouts et suppressions. Les services sont répartis sur 16 types de service.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegistreBenchmark {
+    private static final int NB_TYPES = 16;     // Nombre de types de service dans le registre
+
+    @Param({"10", "1000", "100000"})
+    public int nbServices;                      // Nombre de services dans le registre
+
+    private RegistreServices services;          // Registre mesuré
+    private Service[] tous;                     // Services du registre
+    private final int[] idsServices = new int[NB_TYPES]; // Tous les types, pour le choix en une fois
+    private final Service[] choisis = new Service[NB_TYPES]; // Services choisis en une fois
+    private int suivant;                        // Compteur pour varier le type ou le service utilisé
+
+    @Setup
+    public void preparer() {
+        Random hasard = new Random(42);
+        services = new RegistreServices(1);
+        tous = new Service[nbServices];
+        for (int i = 0; i < nbServices; i++) {
+            // Une IP différente par service, le port est tiré au hasard
+            tous[i] = new Service(i % NB_TYPES, 0x0A000000 | i, 1024 + hasard.nextInt(60000));
+            services.ajouterLocal(tous[i]);
+        }
+        for (int i = 0; i < NB_TYPES; i++) {
+            idsServices[i] = i;
+        }
+    }
+
+    /**
+     * Choix d'un service d'un type, comme pour DEMANDE_DE_SERVICE
+     *
+     * @return
+     */
+    @Benchmark
+    public Service choisir() {
+        return services.choisir(suivant++ & (NB_TYPES - 1));
+    }
+
+    /**
+     * Choix d'un service pour chacun des 16 types, comme pour DEMANDE_DE_SERVICES
+     *
+     * @return
+     */
+    @Benchmark
+    public Service[] choisirPlusieurs() {
+        services.choisirPlusieurs(idsServices, NB_TYPES, choisis);
+        return choisis;
+    }
+
+    /**
+     * Recherche d'un service, comme pour la vérification d'une plainte
+     *
+     * @return
+     */
+    @Benchmark
+    public boolean contient() {
+        Service service = tous[(suivant++ & Integer.MAX_VALUE) % tous.length];
+        return services.contient(service.getIdService(), service.getIp(), service.getPort());
+    }
+
+    /**
+     * Suppression puis nouvel ajout d'un service, comme pour une vérification échouée suivie d'un abonnement
+     *
+     * @param trou
+     */
+    @Benchmark
+    public void supprimerAjouter(Blackhole trou) {
+        Service service = tous[(suivant++ & Integer.MAX_VALUE) % tous.length];
+        trou.consume(services.supprimerLocal(service));
+        trou.consume(services.ajouterLocal(service));
+    }
+}
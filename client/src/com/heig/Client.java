@@ -6,10 +6,10 @@
 package com.heig;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.*;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Le client contacte un lieur dans sa liste de lieurs connus pour obtenir un service d'un type donné. Si un lieur est atteint
@@ -17,6 +17,16 @@ import java.util.concurrent.ThreadLocalRandom;
  * qu'il ne connait pas de service de ce type et le client se termine. Si le service donné par le lieur fait un tempsMaxAttenteReponse,
  * le client va envoyer un message au lieur pour lui indiquer que le service n'est pas disponible. Dans le cas ou il y a
  * une réponse du service, le client attend 10 seconde et refait une demande auprès du lieur.
+ *
+ * Les réponses des lieurs sont gardées en cache par le Resolveur: tant que l'entrée du service est valable, le client
+ * contacte directement le service sans repasser par un lieur. Un service qui ne répond pas est retiré du cache.
+ * Le résolveur interroge en priorité les lieurs les plus rapides et passe à un autre lieur si l'un d'eux ne répond
+ * pas. Si aucun lieur ne répond, le client réessaie après le délai entre deux requêtes.
+ *
+ * Chaque demande au service porte un id de requête. Si la réponse n'arrive pas, la demande est retransmise avec le
+ * même id, le délai d'attente partant d'un quart du temps d'attente maximal et doublant à chaque essai, et le service
+ * répond aux retransmissions depuis son cache. Le service n'est signalé comme injoignable au lieur qu'après le
+ * dernier essai. Les réponses qui n'ont pas l'id de la demande en cours (réponses en retard) sont ignorées.
  */
 public class Client {
     private final Lieur[] lieurs;            // Liste des lieurs
@@ -24,6 +34,10 @@ public class Client {
     final int port;                          // Port pour l'envoi et la récéption de paquets UDP
     final int tempsMaxAttenteReponse = 2000; // Temps d'attente maximale pour recevoir une réponse d'un serveur de service
     final int delaiEntreRequetes = 10000;    // Temps avant de refaire une requête au lieur
+    final int tailleMaxMessage = 262;        // Taille maximale d'un message, un contact de service avec 255 bytes et son id
+    private int dureeVieCache = Service.DUREE_VIE_CACHE_MAX; // Durée pendant laquelle un service résolu est gardé en cache
+    private int dureeVieCacheNegatif = 2000; // Durée pendant laquelle une réponse SERVICE_EXISTE_PAS est gardée en cache
+    private int nbMaxEssais = 3;             // Nombre d'envois d'une demande au service avant de le signaler injoignable
 
     /**
      * Création d'un nouveau client avec l'id du service qu'il va utiliser, son port et la liste des lieurs.
@@ -38,6 +52,35 @@ public class Client {
         this.idService = idService;
     }
 
+    public int getDureeVieCache() {
+        return dureeVieCache;
+    }
+
+    /**
+     * Fixe la durée de vie du cache, bornée par la durée de drainage des serveurs (voir Service)
+     *
+     * @param dureeVieCache
+     */
+    public void setDureeVieCache(int dureeVieCache) {
+        this.dureeVieCache = Math.min(dureeVieCache, Service.DUREE_VIE_CACHE_MAX);
+    }
+
+    public int getDureeVieCacheNegatif() {
+        return dureeVieCacheNegatif;
+    }
+
+    public void setDureeVieCacheNegatif(int dureeVieCacheNegatif) {
+        this.dureeVieCacheNegatif = dureeVieCacheNegatif;
+    }
+
+    public int getNbMaxEssais() {
+        return nbMaxEssais;
+    }
+
+    public void setNbMaxEssais(int nbMaxEssais) {
+        this.nbMaxEssais = Math.max(1, nbMaxEssais);
+    }
+
     /**
      * Démarre le client, il va demander un service à un lieur aléatoire et utiliser le service donné par le lieur.
      *
@@ -46,89 +89,148 @@ public class Client {
      */
     public void demarrer() throws IOException, InterruptedException {
         DatagramSocket pointAPointSocket = new DatagramSocket(port);
-        System.out.println("Démarrage du client");
+        Resolveur resolveur = new Resolveur(lieurs, dureeVieCache, dureeVieCacheNegatif, tempsMaxAttenteReponse);
+        Journal.info("Démarrage du client");
+
+        // Tampons d'envoi et de réception réutilisés pour toutes les requêtes
+        ByteBuffer envoi = Codec.allouer(tailleMaxMessage);
+        ByteBuffer reception = Codec.allouer(tailleMaxMessage);
+        ByteBuffer message = Codec.allouer(tailleMaxMessage);
+        DatagramPacket paquetEnvoi = new DatagramPacket(envoi.array(), 0);
+        DatagramPacket paquetReception = new DatagramPacket(reception.array(), reception.capacity());
+        int idRequete = ThreadLocalRandom.current().nextInt(); // Id de la dernière demande au service
 
         // On fait des requêtes tant que le service demandé au lieur existe
         while (true) {
-            // Choix d'un lieur aléatoire
-            Lieur lieur = lieurs[ThreadLocalRandom.current().nextInt(0, lieurs.length)];
-            System.out.println("Le client va demander le service" + idService + " au lieur:");
-            System.out.println(lieur);
-
-            // Création et envoi du paquet de demande de service
-            byte[] demandeServiceBuffer = {(byte)Protocole.DEMANDE_DE_SERVICE.ordinal(), (byte) idService};
-            DatagramPacket demandeDeServicePaquet = new DatagramPacket(demandeServiceBuffer, 2, InetAddress.getByName(lieur.getIp()), lieur.getPort());
-            pointAPointSocket.send(demandeDeServicePaquet);
-
-            // Réception de la réponse du lieur
-            byte[] buffer = new byte[8];
-            DatagramPacket reponseDemandeDeServicePaquet = new DatagramPacket(buffer, buffer.length);
+            // Résolution du service, par le cache ou auprès d'un lieur
+            Service service;
             try {
-                pointAPointSocket.setSoTimeout(tempsMaxAttenteReponse);
-                pointAPointSocket.receive(reponseDemandeDeServicePaquet);
+                service = resolveur.resoudre(idService);
             } catch (SocketTimeoutException e) {
-                System.out.println("Le lieur n'a pas pu etre atteint");
+                // Aucun lieur n'a répondu, on réessaiera après le délai entre deux requêtes
+                Journal.avertissement("Aucun lieur n'a pu etre atteint");
+                Thread.sleep(delaiEntreRequetes);
+                continue;
+            }
+
+            // Si le service n'a pas été trouvé on termine le client
+            if (service == null) {
+                Journal.info("le service demandé n'a pas ete trouve");
                 break;
             }
 
-            // Si on obtient une réponse du lieur on la traite
-            if (reponseDemandeDeServicePaquet.getData()[0] == Protocole.SERVICE_EXISTE_PAS.ordinal() || reponseDemandeDeServicePaquet.getData()[0] == Protocole.REPONSE_DEMANDE_DE_SERVICE.ordinal()) {
-                System.out.println("Reponse du lieur recue");
+            // Si le service a été trouvé on essaie de l'utiliser
+            InetSocketAddress adresseService = new InetSocketAddress(Codec.entierVersIp(service.getIp()), service.getPort());
+            Journal.info("Le service est joignable a l'adresse: " + Codec.entierVersTexte(service.getIp()) + ":" + service.getPort());
 
-                // Si le service n'a pas été trouvé on termine le client
-                if (reponseDemandeDeServicePaquet.getData()[0] == Protocole.SERVICE_EXISTE_PAS.ordinal()) {
-                    System.out.println("le service demandé n'a pas ete trouve");
-                    return;
-                }
-                // Si le service a été trouvé on essaie de l'utiliser
-                else if (reponseDemandeDeServicePaquet.getData()[0] == Protocole.REPONSE_DEMANDE_DE_SERVICE.ordinal()) {
-                    // Récupération de l'ip et du port du service
-                    InetAddress ip = InetAddress.getByAddress(Arrays.copyOfRange(reponseDemandeDeServicePaquet.getData(), 2, 6));
-                    byte[] portByte = new byte[2];
-                    portByte[0] = reponseDemandeDeServicePaquet.getData()[7];
-                    portByte[1] = reponseDemandeDeServicePaquet.getData()[6];
-                    int port = new BigInteger(portByte).intValue();
-
-                    System.out.println("Le service a été trouvé il est joignable a l'adresse: " + ip.getHostAddress() + ":" + port);
-
-                    // Envoi du message d'echo
-                    byte[] messageAEnvoyer = {(byte) Protocole.CONTACT_SERVICE.ordinal(), 4, 1, 1, 1, 1};
-                    DatagramPacket contactServicePaquet = new DatagramPacket(messageAEnvoyer, messageAEnvoyer.length, ip, port);
-                    System.out.println("Message envoyé au service");
-                    pointAPointSocket.send(contactServicePaquet);
-
-                    // Réception de la réponse
-                    buffer = new byte[8];
-                    DatagramPacket reponseServicePaquet = new DatagramPacket(buffer, buffer.length);
-                    try {
-                        pointAPointSocket.receive(reponseServicePaquet);
-
-                        // On affiche la réponse du serveur si elle est correcte
-                        if (reponseServicePaquet.getData()[0] == Protocole.REPONSE_DU_SERVICE.ordinal()) {
-                            System.out.println("Reponse du serveur reçue");
-                            System.out.println("taille " + + reponseServicePaquet.getData()[1]);
-                            for( int i = 0 ; i < reponseServicePaquet.getData()[1]; i++ ) {
-                                System.out.println( i + " : " + reponseServicePaquet.getData()[2+i]);
-                            }
-                        }
-                    }
-                    // Si le service n'a pas répondu à temps, on notifie le lieur
-                    catch (SocketTimeoutException e) {
-                        byte[] serviceExistePasBuffer = {(byte) Protocole.SERVICE_EXISTE_PAS.ordinal(), (byte) idService,
-                                ip.getAddress()[0], ip.getAddress()[1], ip.getAddress()[2], ip.getAddress()[3],
-                                reponseDemandeDeServicePaquet.getData()[6],
-                                reponseDemandeDeServicePaquet.getData()[7]};
-                        System.out.print("Timeout de la demande au service, envoi du message SERVICE_EXISTE_PAS au lieur");
-                        DatagramPacket serviceNonAtteint = new DatagramPacket(serviceExistePasBuffer, 8, InetAddress.getByName(lieur.getIp()), lieur.getPort());
-                        pointAPointSocket.send(serviceNonAtteint);
-                    }
+            // Message d'echo, avec un nouvel id de requête
+            message.clear();
+            message.put((byte) 1).put((byte) 1).put((byte) 1).put((byte) 1);
+            message.flip();
+            idRequete = idRequete == -1 ? 1 : idRequete + 1;
+            Codec.encoderContactService(envoi, message, idRequete);
 
-                    // On remet la valeur du tempsMaxAttenteReponse à 0 (infini)
-                    pointAPointSocket.setSoTimeout(0);
+            // Envoi et retransmissions jusqu'à la réponse, le délai d'attente double à chaque essai
+            int attente = tempsMaxAttenteReponse / 4;
+            int taille = -1;
+            for (int essai = 1; essai <= nbMaxEssais && taille < 0; essai++) {
+                Journal.debug("Message envoyé au service, essai ", essai);
+                envoyer(pointAPointSocket, paquetEnvoi, envoi, adresseService);
+                taille = recevoirReponse(pointAPointSocket, paquetReception, reception, idRequete, attente);
+                attente *= 2;
+            }
+
+            // On affiche la réponse du serveur
+            if (taille >= 0) {
+                Journal.info("Reponse du serveur reçue, taille ", taille);
+                if (Journal.debug()) {
+                    for (int i = 0; i < taille; i++) {
+                        Journal.debug(i + " : " + reception.get());
+                    }
                 }
             }
+            // Si le service n'a répondu à aucun essai, on le retire du cache et on notifie le lieur
+            else {
+                Journal.avertissement("Timeout de la demande au service, envoi du message SERVICE_EXISTE_PAS au lieur");
+                resolveur.signalerInjoignable(service);
+            }
+
             // Attendre et relancer une demande
             Thread.sleep(delaiEntreRequetes);
         }
+        resolveur.fermer();
+        pointAPointSocket.close();
+    }
+
+    /**
+     * Attend la réponse du service à la demande donnée, les autres paquets sont ignorés
+     *
+     * @param socket
+     * @param paquet
+     * @param tampon
+     * @param idRequete
+     * @param attente temps d'attente maximal en millisecondes
+     * @return la taille du message reçu, le tampon étant positionné au début du message, ou -1 si la réponse n'est
+     * pas arrivée à temps
+     * @throws IOException
+     */
+    private int recevoirReponse(DatagramSocket socket, DatagramPacket paquet, ByteBuffer tampon, int idRequete, int attente) throws IOException {
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(attente);
+        while (true) {
+            long reste = TimeUnit.NANOSECONDS.toMillis(limite - System.nanoTime());
+            if (reste <= 0) {
+                return -1;
+            }
+            socket.setSoTimeout((int) reste);
+            try {
+                recevoir(socket, paquet, tampon);
+            } catch (SocketTimeoutException e) {
+                return -1;
+            }
+            if (Codec.lireType(tampon) != Protocole.REPONSE_DU_SERVICE || !tampon.hasRemaining()) {
+                continue;
+            }
+
+            // L'id suit le message, une réponse sans id vient d'un serveur d'une version précédente
+            int taille = Math.min(Codec.lireLongueurMessage(tampon), tampon.remaining());
+            int debut = tampon.position();
+            tampon.position(debut + taille);
+            int idReponse = Codec.lireIdRequete(tampon);
+            if (idReponse == 0 || idReponse == idRequete) {
+                tampon.position(debut);
+                return taille;
+            }
+            Journal.debug("Réponse en retard ignorée, id ", idReponse);
+        }
+    }
+
+    /**
+     * Envoie le message contenu dans le tampon, le paquet utilise le tableau du tampon
+     *
+     * @param socket
+     * @param paquet
+     * @param message
+     * @param destination
+     * @throws IOException
+     */
+    private void envoyer(DatagramSocket socket, DatagramPacket paquet, ByteBuffer message, InetSocketAddress destination) throws IOException {
+        paquet.setData(message.array(), 0, message.limit());
+        paquet.setSocketAddress(destination);
+        socket.send(paquet);
+    }
+
+    /**
+     * Reçoit un paquet dans le tableau du tampon, le tampon est ensuite prêt à être lu
+     *
+     * @param socket
+     * @param paquet
+     * @param tampon
+     * @throws IOException
+     */
+    private void recevoir(DatagramSocket socket, DatagramPacket paquet, ByteBuffer tampon) throws IOException {
+        paquet.setLength(tampon.capacity());
+        socket.receive(paquet);
+        tampon.clear();
+        tampon.limit(paquet.getLength());
     }
 }
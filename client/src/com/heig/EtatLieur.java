@@ -0,0 +1,103 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Ce que le client sait d'un lieur: son temps d'aller-retour lissé et ses échecs récents. Le temps d'aller-retour est
+ * une moyenne mobile exponentielle des mesures (chaque nouvelle mesure compte pour 1/8). Un lieur qui n'a pas répondu
+ * est écarté pendant un délai qui double à chaque échec consécutif, il redevient disponible à la première réponse.
+ */
+class EtatLieur {
+    private static final double POIDS_MESURE = 0.125;       // Poids d'une nouvelle mesure dans la moyenne
+    private static final long EXCLUSION_MIN = 1000;          // Délai d'exclusion après un premier échec en millisecondes
+    private static final long EXCLUSION_MAX = 30000;         // Délai d'exclusion maximal en millisecondes
+
+    final InetSocketAddress adresse;    // Adresse du lieur
+    private double rttLisse = -1;       // Temps d'aller-retour lissé en nanosecondes, -1 si jamais mesuré
+    private int echecsConsecutifs;      // Nombre de demandes sans réponse depuis la dernière réponse
+    private long exclusJusqua;          // Instant (horloge monotone en millisecondes) de fin d'exclusion
+
+    EtatLieur(InetSocketAddress adresse) {
+        this.adresse = adresse;
+    }
+
+    /**
+     * Enregistre une réponse du lieur
+     *
+     * @param rtt temps d'aller-retour mesuré en nanosecondes
+     */
+    void succes(long rtt) {
+        rttLisse = rttLisse < 0 ? rtt : rttLisse + POIDS_MESURE * (rtt - rttLisse);
+        echecsConsecutifs = 0;
+        exclusJusqua = 0;
+    }
+
+    /**
+     * Enregistre une demande à laquelle un autre lieur a répondu en premier. Le temps d'attente est une borne
+     * inférieure du temps d'aller-retour, l'estimation ne peut donc qu'augmenter.
+     *
+     * @param attente temps écoulé depuis l'envoi de la demande en nanosecondes
+     */
+    void devance(long attente) {
+        rttLisse = rttLisse < 0 ? attente : Math.max(rttLisse, rttLisse + POIDS_MESURE * (attente - rttLisse));
+    }
+
+    /**
+     * Enregistre une demande restée sans réponse et écarte le lieur pendant un certain temps
+     *
+     * @param maintenant en millisecondes
+     */
+    void echec(long maintenant) {
+        echecsConsecutifs++;
+        long exclusion = EXCLUSION_MIN << Math.min(echecsConsecutifs - 1, 5);
+        exclusJusqua = maintenant + Math.min(exclusion, EXCLUSION_MAX);
+    }
+
+    /**
+     * Enregistre le refus d'un lieur surchargé: il est écarté jusqu'à la fin du délai qu'il a indiqué, sans compter
+     * d'échec
+     *
+     * @param jusqua en millisecondes
+     */
+    void surcharge(long jusqua) {
+        exclusJusqua = Math.max(exclusJusqua, jusqua);
+    }
+
+    /**
+     * Indique si le lieur peut être choisi, un lieur écarté ne l'est qu'en dernier recours
+     *
+     * @param maintenant en millisecondes
+     * @return
+     */
+    boolean disponible(long maintenant) {
+        return maintenant >= exclusJusqua;
+    }
+
+    /**
+     * Temps d'aller-retour estimé, un lieur jamais mesuré est estimé à 0 pour être essayé en premier
+     *
+     * @return en nanosecondes
+     */
+    double rttEstime() {
+        return Math.max(rttLisse, 0);
+    }
+
+    long getExclusJusqua() {
+        return exclusJusqua;
+    }
+
+    /**
+     * Transforme l'état en String pour l'affichage
+     *
+     * @return
+     */
+    public String toString() {
+        return adresse + " (rtt " + (rttLisse < 0 ? "inconnu" : String.format("%.2f ms", rttLisse / 1e6))
+               + ", échecs " + echecsConsecutifs + ")";
+    }
+}
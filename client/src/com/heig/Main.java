@@ -7,17 +7,30 @@ package com.heig;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Cette classe va créer un client qui va se envoyer et recevoir des paquets sur le port spécifié et communiquer
  * avec un dans lieur dans la liste des lieurs passé en paramêtre et utiliser le service avec l'id spécifié.
  *
  * Pour appeler le programme client, il faut lui passer en paramêtre son port, l'id du service qu'il va utiliser
- * et la liste des lieurs
+ * et la liste des lieurs. Des options de la forme --nom valeur peuvent être ajoutées:
+ *
+ * --duree-vie-cache         : durée en millisecondes pendant laquelle un service obtenu d'un lieur est réutilisé
+ *                             sans redemander au lieur (30000 par défaut et au plus, la durée de drainage des
+ *                             serveurs)
+ * --duree-vie-cache-negatif : durée en millisecondes pendant laquelle la réponse d'un lieur qui ne connaît pas le
+ *                             service est gardée (2000 par défaut)
+ * --essais                  : nombre d'envois d'une demande au service sans réponse avant de le signaler au lieur
+ *                             (3 par défaut)
+ * --journal                 : niveau du journal: erreur, avertissement, info (par défaut) ou debug
  *
  * Par example :
  *
- * java client.jar 1234 1 127.0.0.1 1111 127.0.0.1 2222
+ * java client.jar 1234 1 127.0.0.1 1111 127.0.0.1 2222 --duree-vie-cache 10000
  */
 public class Main {
 
@@ -29,6 +42,21 @@ public class Main {
      * @throws IOException
      */
     public static void main(String[] args) throws InterruptedException, IOException {
+        // Séparation des options et des paramètres
+        Map<String, String> options = new HashMap<>();
+        List<String> parametres = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                parametres.add(args[i]);
+            }
+        }
+        args = parametres.toArray(new String[0]);
+        if (options.containsKey("journal")) {
+            Journal.setNiveau(Journal.Niveau.valueOf(options.get("journal").toUpperCase(Locale.ROOT)));
+        }
+
         // Récupération du port et de l'id
         if (args.length < 4) {
             System.out.println("Il faut fournir au moins le port, l'id du service que le client va utiliser et l'ip et le port d'un lieur");
@@ -45,6 +73,18 @@ public class Main {
 
         // Création et démarrage du client
         Client client = new Client(port, id, lieurs.toArray(new Lieur[0]));
+        if (options.containsKey("duree-vie-cache")) {
+            client.setDureeVieCache(Integer.parseInt(options.get("duree-vie-cache")));
+            if (client.getDureeVieCache() < Integer.parseInt(options.get("duree-vie-cache"))) {
+                Journal.avertissement("Durée de vie du cache limitée au drainage des serveurs (ms) ", client.getDureeVieCache());
+            }
+        }
+        if (options.containsKey("duree-vie-cache-negatif")) {
+            client.setDureeVieCacheNegatif(Integer.parseInt(options.get("duree-vie-cache-negatif")));
+        }
+        if (options.containsKey("essais")) {
+            client.setNbMaxEssais(Integer.parseInt(options.get("essais")));
+        }
         client.demarrer();
     }
 }
\ No newline at end of file
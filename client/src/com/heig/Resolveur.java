@@ -0,0 +1,697 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Résolution des services auprès des lieurs avec un cache par id de service. Une réponse d'un lieur est gardée
+ * pendant une durée de vie, les demandes suivantes pour le même id sont servies par le cache sans contacter de lieur.
+ * Une réponse SERVICE_EXISTE_PAS est aussi gardée, pendant une durée plus courte.
+ *
+ * Quand une entrée a dépassé une partie de sa durée de vie, elle est rafraîchie en arrière plan: la demande en cours
+ * est servie par le cache et un thread redemande le service à un lieur. Toutes les entrées à rafraîchir sont
+ * redemandées ensemble avec un seul DEMANDE_DE_SERVICES. Une entrée est retirée immédiatement quand le service ne
+ * répond pas.
+ *
+ * Plusieurs types de service peuvent être résolus en une fois, les types absents du cache sont alors demandés au
+ * lieur dans un seul datagramme.
+ *
+ * Les demandes partent au lieur le plus rapide (voir EtatLieur). Si sa réponse tarde au-delà du centile 95 des temps
+ * d'aller-retour récents, la demande est dupliquée à un second lieur et la première réponse l'emporte. Un lieur qui
+ * ne répond pas est écarté pendant un moment et la demande passe au lieur suivant.
+ *
+ * Chaque demande porte un id de requête que le lieur reprend dans sa réponse: une réponse en retard à une demande
+ * précédente est reconnue à son id et ignorée. Quand il n'y a pas d'autre lieur à qui dupliquer la demande, elle est
+ * retransmise au même lieur avec le même id, le délai avant la retransmission suivante doublant à chaque fois. Le
+ * lieur répond aux retransmissions depuis son cache de réponses, sans choisir un autre service. Un lieur surchargé
+ * refuse la demande avec SURCHARGE: il est écarté pendant le délai qu'il indique et la demande passe immédiatement au
+ * lieur suivant, ou est retransmise après ce délai s'il n'y en a pas.
+ *
+ * Un lieur partitionné qui ne possède pas le type demandé répond REDIRECTION avec la liste de ses propriétaires: la
+ * demande leur est renvoyée et les propriétaires sont retenus pour ce type, les demandes suivantes leur sont envoyées
+ * directement. Les types demandés ensemble sont regroupés par propriétaires connus. Des propriétaires retenus qui ne
+ * répondent plus sont oubliés, la demande suivante repasse par la liste des lieurs.
+ *
+ * Le résolveur a son propre socket, les réponses des lieurs ne se mélangent donc pas avec celles des services.
+ * Les demandes aux lieurs sont faites une à la fois, les tampons, les mesures et l'état des lieurs sont protégés par
+ * le socket.
+ */
+class Resolveur {
+    private static final double CENTILE_RELANCE = 0.95;    // Centile des temps d'aller-retour utilisé pour la relance
+    private static final int NB_MIN_RTTS = 8;               // Nombre de mesures nécessaires pour calculer le centile
+    private static final long DELAI_RELANCE_MIN = TimeUnit.MILLISECONDS.toNanos(5); // Délai minimal avant la relance
+    private static final int NB_MAX_REDIRECTIONS = 2;       // Nombre de redirections suivies pour une même demande
+
+    private final EtatLieur[] lieurs;                   // Etat de chaque lieur
+    private final Map<InetSocketAddress, EtatLieur> etats = new HashMap<>(); // Etat des lieurs de la liste et des propriétaires appris, protégé par le socket
+    private final Map<Integer, EtatLieur[]> proprietaires = new HashMap<>(); // Propriétaires appris par REDIRECTION par type, protégé par le socket
+    private final int dureeVie;                         // Durée de vie d'un service en cache en millisecondes
+    private final int dureeVieNegative;                 // Durée de vie d'une réponse SERVICE_EXISTE_PAS en millisecondes
+    private final int tempsMaxAttenteReponse;           // Temps d'attente maximal de la réponse d'un lieur
+    private final double partRafraichissement = 0.8;    // Part de la durée de vie après laquelle l'entrée est rafraîchie
+    private final int tailleMaxReponse = 2 + Codec.NB_MAX_IDS_PAR_DEMANDE * Codec.TAILLE_SERVICE + Codec.TAILLE_ID_REQUETE; // Taille maximale d'une réponse d'un lieur
+    private final DatagramSocket socket;                // Socket des demandes aux lieurs
+    private final ByteBuffer envoi = Codec.allouer(2 + Codec.NB_MAX_IDS_PAR_DEMANDE + Codec.TAILLE_ID_REQUETE); // Tampon des demandes, protégé par le socket
+    private final ByteBuffer reception = Codec.allouer(tailleMaxReponse); // Tampon des réponses, protégé par le socket
+    private final DatagramPacket paquetEnvoi = new DatagramPacket(envoi.array(), 0);
+    private final DatagramPacket paquetReception = new DatagramPacket(reception.array(), reception.capacity());
+    private final ConcurrentHashMap<Integer, Resolution> cache = new ConcurrentHashMap<>(); // Résolutions par id de service
+    private final ExecutorService rafraichisseur;       // Thread des rafraîchissements en arrière plan
+    private final long[] rtts = new long[64];           // Derniers temps d'aller-retour mesurés en nanosecondes
+    private int prochainRtt;                            // Case de la prochaine mesure
+    private int nbRtts;                                 // Nombre de mesures gardées
+    private final AtomicBoolean rafraichissementPrevu = new AtomicBoolean(); // Un rafraîchissement attend le thread
+    private int dernierIdRequete = ThreadLocalRandom.current().nextInt(); // Id de la dernière demande, protégé par le socket
+
+    /**
+     * Réponse d'un lieur gardée en cache
+     */
+    private static class Resolution {
+        final int idService;                // Type de service demandé
+        final Service service;              // Service donné par le lieur, null s'il n'en connaît pas
+        final InetSocketAddress lieur;      // Lieur qui a répondu
+        final long expiration;              // Instant d'expiration en millisecondes (horloge monotone)
+        final long rafraichissement;        // Instant à partir duquel l'entrée est rafraîchie
+
+        Resolution(int idService, Service service, InetSocketAddress lieur, long expiration, long rafraichissement) {
+            this.idService = idService;
+            this.service = service;
+            this.lieur = lieur;
+            this.expiration = expiration;
+            this.rafraichissement = rafraichissement;
+        }
+    }
+
+    /**
+     * Création d'un résolveur pour la liste des lieurs donnée
+     *
+     * @param lieurs
+     * @param dureeVie
+     * @param dureeVieNegative
+     * @param tempsMaxAttenteReponse
+     * @throws IOException
+     */
+    Resolveur(Lieur[] lieurs, int dureeVie, int dureeVieNegative, int tempsMaxAttenteReponse) throws IOException {
+        this.lieurs = new EtatLieur[lieurs.length];
+        for (int i = 0; i < lieurs.length; i++) {
+            this.lieurs[i] = new EtatLieur(new InetSocketAddress(lieurs[i].getIp(), lieurs[i].getPort()));
+            etats.put(this.lieurs[i].adresse, this.lieurs[i]);
+        }
+        this.dureeVie = dureeVie;
+        this.dureeVieNegative = dureeVieNegative;
+        this.tempsMaxAttenteReponse = tempsMaxAttenteReponse;
+        this.socket = new DatagramSocket();
+        this.rafraichisseur = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "rafraichissement-cache");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Retourne le service à utiliser pour l'id donné, depuis le cache si possible sinon en le demandant à un lieur
+     *
+     * @param idService
+     * @return le service ou null si le lieur ne connaît aucun service de cet id
+     * @throws SocketTimeoutException si aucun lieur n'a répondu
+     * @throws IOException
+     */
+    Service resoudre(int idService) throws IOException {
+        long maintenant = maintenant();
+        Resolution resolution = valable(idService, maintenant);
+        if (resolution != null) {
+            return resolution.service;
+        }
+
+        Resolution nouvelle = interroger(idService);
+        cache.put(idService, nouvelle);
+        return nouvelle.service;
+    }
+
+    /**
+     * Retourne un service pour chacun des ids donnés. Les ids qui ne sont pas dans le cache sont demandés ensemble à
+     * un lieur.
+     *
+     * @param idsServices
+     * @return le service de chaque id, dans l'ordre, null si le lieur ne connaît aucun service de cet id
+     * @throws SocketTimeoutException si aucun lieur n'a répondu
+     * @throws IOException
+     */
+    Service[] resoudre(int[] idsServices) throws IOException {
+        long maintenant = maintenant();
+        Service[] resolus = new Service[idsServices.length];
+        int[] manquants = new int[idsServices.length];
+        int nbManquants = 0;
+        for (int i = 0; i < idsServices.length; i++) {
+            Resolution resolution = valable(idsServices[i], maintenant);
+            if (resolution == null) {
+                manquants[nbManquants++] = idsServices[i];
+            } else {
+                resolus[i] = resolution.service;
+            }
+        }
+        if (nbManquants == 0) {
+            return resolus;
+        }
+
+        for (Resolution nouvelle : interroger(manquants, nbManquants)) {
+            cache.put(nouvelle.idService, nouvelle);
+        }
+        for (int i = 0; i < idsServices.length; i++) {
+            if (resolus[i] == null) {
+                Resolution resolution = cache.get(idsServices[i]);
+                resolus[i] = resolution == null ? null : resolution.service;
+            }
+        }
+        return resolus;
+    }
+
+    /**
+     * Retourne l'entrée du cache si elle est encore valable. Si elle doit être rafraîchie, le rafraîchissement est
+     * demandé au thread d'arrière plan.
+     *
+     * @param idService
+     * @param maintenant
+     * @return l'entrée ou null si elle est absente ou expirée
+     */
+    private Resolution valable(int idService, long maintenant) {
+        Resolution resolution = cache.get(idService);
+        if (resolution == null || maintenant >= resolution.expiration) {
+            return null;
+        }
+        if (resolution.service != null && maintenant >= resolution.rafraichissement
+                && rafraichissementPrevu.compareAndSet(false, true)) {
+            rafraichisseur.execute(this::rafraichir);
+        }
+        return resolution;
+    }
+
+    /**
+     * Retire le service du cache et indique au lieur qui l'a donné que le service ne répond pas
+     *
+     * @param service
+     * @throws IOException
+     */
+    void signalerInjoignable(Service service) throws IOException {
+        Resolution resolution = cache.get(service.getIdService());
+        invalider(service);
+
+        synchronized (socket) {
+            InetSocketAddress lieur = resolution != null && service.equals(resolution.service) ? resolution.lieur : choisirLieur();
+            envoyer(Codec.encoderServiceExistePas(envoi, service.getIdService(), service.getIp(), service.getPort()), lieur);
+        }
+    }
+
+    /**
+     * Retire le service du cache, la prochaine résolution de son id contactera un lieur
+     *
+     * @param service
+     */
+    void invalider(Service service) {
+        Resolution resolution = cache.get(service.getIdService());
+        if (resolution != null && service.equals(resolution.service)) {
+            cache.remove(service.getIdService(), resolution);
+        }
+    }
+
+    /**
+     * Arrête le rafraîchissement et ferme le socket
+     */
+    void fermer() {
+        rafraichisseur.shutdownNow();
+        socket.close();
+    }
+
+    /**
+     * Redemande en une fois tous les services dont l'entrée doit être rafraîchie. Une entrée n'est remplacée que si
+     * elle n'a pas changé entre temps, en cas d'échec elle reste valable jusqu'à son expiration.
+     */
+    private void rafraichir() {
+        rafraichissementPrevu.set(false);
+        long maintenant = maintenant();
+        List<Resolution> anciennes = new ArrayList<>();
+        for (Resolution resolution : cache.values()) {
+            if (resolution.service != null && maintenant >= resolution.rafraichissement && maintenant < resolution.expiration) {
+                anciennes.add(resolution);
+            }
+        }
+        if (anciennes.isEmpty()) {
+            return;
+        }
+
+        int[] idsServices = new int[anciennes.size()];
+        for (int i = 0; i < idsServices.length; i++) {
+            idsServices[i] = anciennes.get(i).idService;
+        }
+        try {
+            List<Resolution> nouvelles = interroger(idsServices, idsServices.length);
+            for (int i = 0; i < nouvelles.size(); i++) {
+                cache.replace(idsServices[i], anciennes.get(i), nouvelles.get(i));
+            }
+        } catch (IOException e) {
+            Journal.avertissement("Echec du rafraîchissement de " + idsServices.length + " services: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Demande un service aux lieurs et attend la réponse
+     *
+     * @param idService
+     * @return
+     * @throws IOException
+     */
+    private Resolution interroger(int idService) throws IOException {
+        synchronized (socket) {
+            Journal.debug("Demande du service ", idService);
+            int idRequete = nouvelIdRequete();
+            Codec.encoderDemandeDeService(envoi, idService, idRequete);
+
+            // Les réponses qui ne correspondent pas à la demande (réponses en retard) sont ignorées. Une redirection
+            // renvoie la même demande aux propriétaires du type
+            InetSocketAddress lieur;
+            int nbRedirections = 0;
+            do {
+                lieur = demander(candidats(idService), type -> {
+                    if (type == Protocole.SERVICE_EXISTE_PAS) {
+                        return correspond(idRequete);
+                    }
+                    if (type == Protocole.REDIRECTION) {
+                        return redirectionCorrespond(idRequete);
+                    }
+                    if (type != Protocole.REPONSE_DEMANDE_DE_SERVICE || reception.remaining() < Codec.TAILLE_SERVICE
+                            || Codec.lireIdService(reception) != idService) {
+                        return false;
+                    }
+                    reception.position(reception.position() + Codec.TAILLE_SERVICE - 1);
+                    return correspond(idRequete);
+                });
+            } while (redirigee(nbRedirections++));
+            if (Codec.lireType(reception) == Protocole.SERVICE_EXISTE_PAS) {
+                return nouvelleResolution(idService, 0, 0, lieur);
+            }
+            int id = Codec.lireIdService(reception);
+            int ip = Codec.lireIp(reception);
+            int port = Codec.lirePort(reception);
+            return nouvelleResolution(id, ip, port, lieur);
+        }
+    }
+
+    /**
+     * Demande des services de plusieurs types aux lieurs, avec un DEMANDE_DE_SERVICES par groupe d'au plus
+     * NB_MAX_IDS_PAR_DEMANDE types
+     *
+     * @param idsServices
+     * @param nbIds
+     * @return une résolution par type demandé, dans l'ordre
+     * @throws IOException
+     */
+    private List<Resolution> interroger(int[] idsServices, int nbIds) throws IOException {
+        Resolution[] resolutions = new Resolution[nbIds];
+        int[] groupe = new int[Math.min(nbIds, Codec.NB_MAX_IDS_PAR_DEMANDE)];
+        synchronized (socket) {
+            // Les types sont regroupés par lieurs à interroger: leurs propriétaires s'ils sont connus, sinon la liste
+            Map<EtatLieur[], List<Integer>> parCandidats = new IdentityHashMap<>();
+            for (int i = 0; i < nbIds; i++) {
+                parCandidats.computeIfAbsent(candidats(idsServices[i]), c -> new ArrayList<>()).add(i);
+            }
+            for (Map.Entry<EtatLieur[], List<Integer>> candidats : parCandidats.entrySet()) {
+                List<Integer> indices = candidats.getValue();
+                for (int debut = 0; debut < indices.size(); debut += groupe.length) {
+                    int nbGroupe = Math.min(groupe.length, indices.size() - debut);
+                    for (int i = 0; i < nbGroupe; i++) {
+                        groupe[i] = idsServices[indices.get(debut + i)];
+                    }
+                    interrogerGroupe(candidats.getKey(), groupe, nbGroupe, resolutions, indices.subList(debut, debut + nbGroupe));
+                }
+            }
+        }
+        return Arrays.asList(resolutions);
+    }
+
+    /**
+     * Demande ensemble des services de plusieurs types aux lieurs donnés. Si un des types n'est pas possédé par le
+     * lieur qui répond, chaque type est demandé seul pour apprendre ses propriétaires.
+     *
+     * @param candidats lieurs à interroger
+     * @param groupe types demandés
+     * @param nbGroupe nombre de types demandés, au plus NB_MAX_IDS_PAR_DEMANDE
+     * @param resolutions reçoit la résolution de chaque type
+     * @param indices index de la résolution de chaque type
+     * @throws IOException
+     */
+    private void interrogerGroupe(EtatLieur[] candidats, int[] groupe, int nbGroupe, Resolution[] resolutions,
+                                  List<Integer> indices) throws IOException {
+        if (Journal.debug()) {
+            Journal.debug("Demande de services de " + nbGroupe + " types");
+        }
+        int idRequete = nouvelIdRequete();
+        Codec.encoderDemandeDeServices(envoi, groupe, nbGroupe, idRequete);
+
+        // La réponse doit reprendre les types demandés dans l'ordre, sinon c'est une réponse en retard
+        InetSocketAddress lieur = demander(candidats, type -> {
+            if (type == Protocole.REDIRECTION) {
+                return redirectionCorrespond(idRequete);
+            }
+            if (type != Protocole.REPONSE_DEMANDE_DE_SERVICES || Codec.lireNombreIds(reception) != nbGroupe
+                    || reception.remaining() < nbGroupe * Codec.TAILLE_SERVICE) {
+                return false;
+            }
+            for (int i = 0; i < nbGroupe; i++) {
+                if (Codec.lireIdService(reception) != groupe[i]) {
+                    return false;
+                }
+                reception.position(reception.position() + Codec.TAILLE_SERVICE - 1);
+            }
+            return correspond(idRequete);
+        });
+        if (redirigee(0)) {
+            for (int i = 0; i < nbGroupe; i++) {
+                resolutions[indices.get(i)] = interroger(groupe[i]);
+            }
+            return;
+        }
+
+        Codec.lireType(reception);
+        Codec.lireNombreIds(reception);
+        for (int i = 0; i < nbGroupe; i++) {
+            int id = Codec.lireIdService(reception);
+            int ip = Codec.lireIp(reception);
+            int port = Codec.lirePort(reception);
+            resolutions[indices.get(i)] = nouvelleResolution(id, ip, port, lieur);
+        }
+    }
+
+    /**
+     * Id de requête de la demande suivante, jamais 0
+     *
+     * @return
+     */
+    private int nouvelIdRequete() {
+        dernierIdRequete++;
+        if (dernierIdRequete == 0) {
+            dernierIdRequete++;
+        }
+        return dernierIdRequete;
+    }
+
+    /**
+     * Lit l'id de requête à la fin de la réponse et vérifie qu'il est celui de la demande. Une réponse sans id vient
+     * d'un lieur d'une version précédente, elle est acceptée.
+     *
+     * @param idRequete
+     * @return
+     */
+    private boolean correspond(int idRequete) {
+        int idReponse = Codec.lireIdRequete(reception);
+        return idReponse == 0 || idReponse == idRequete;
+    }
+
+    /**
+     * Lit une réponse REDIRECTION et vérifie qu'elle redirige la demande en cours
+     *
+     * @param idRequete
+     * @return
+     */
+    private boolean redirectionCorrespond(int idRequete) {
+        if (reception.remaining() < 2) {
+            return false;
+        }
+        Codec.lireIdService(reception);
+        Codec.lireProprietaires(reception);
+        return correspond(idRequete);
+    }
+
+    /**
+     * Si la réponse acceptée est une REDIRECTION, retient les propriétaires qu'elle indique pour son type: la demande
+     * doit alors leur être renvoyée. Le tampon de réception reste positionné au début de la réponse.
+     *
+     * @param nbRedirections nombre de redirections déjà suivies pour la demande
+     * @return vrai si la demande doit être renvoyée aux propriétaires
+     * @throws IOException si la redirection ne peut pas être suivie
+     */
+    private boolean redirigee(int nbRedirections) throws IOException {
+        if (Codec.lireType(reception) != Protocole.REDIRECTION) {
+            reception.rewind();
+            return false;
+        }
+        int idService = Codec.lireIdService(reception);
+        InetSocketAddress[] adresses = Codec.lireProprietaires(reception);
+        reception.rewind();
+        if (adresses.length == 0 || nbRedirections >= NB_MAX_REDIRECTIONS) {
+            throw new IOException("Demande du service " + idService + " redirigée sans fin");
+        }
+        EtatLieur[] etatsProprietaires = new EtatLieur[adresses.length];
+        for (int i = 0; i < adresses.length; i++) {
+            etatsProprietaires[i] = etats.computeIfAbsent(adresses[i], EtatLieur::new);
+        }
+        proprietaires.put(idService & 0xFF, etatsProprietaires);
+        Journal.debug("Service redirigé vers ses propriétaires: ", idService);
+        return true;
+    }
+
+    /**
+     * Lieurs à interroger pour un type: ses propriétaires s'ils sont connus, sinon tous les lieurs de la liste
+     *
+     * @param idService
+     * @return
+     */
+    private EtatLieur[] candidats(int idService) {
+        return proprietaires.getOrDefault(idService & 0xFF, lieurs);
+    }
+
+    /**
+     * Envoie la demande contenue dans le tampon d'envoi aux lieurs et attend une réponse acceptée par la vérification.
+     * La demande part au lieur disponible le plus rapide. S'il n'a pas répondu après le délai de relance, elle est
+     * dupliquée au lieur suivant et la première réponse reçue est gardée. S'il n'y a pas de lieur suivant, la demande
+     * est retransmise aux lieurs interrogés et le délai de relance double. Si aucun ne répond à temps, ils sont
+     * écartés et la demande passe aux lieurs suivants.
+     *
+     * La vérification reçoit le type de la réponse, le tampon étant positionné après le type. A la sortie le tampon
+     * de réception contient la réponse acceptée, positionné au début.
+     *
+     * @param candidats lieurs à interroger
+     * @param verification
+     * @return l'adresse du lieur qui a répondu
+     * @throws SocketTimeoutException si aucun lieur n'a répondu
+     * @throws IOException
+     */
+    private InetSocketAddress demander(EtatLieur[] candidats, Predicate<Protocole> verification) throws IOException {
+        List<EtatLieur> ordre = classerLieurs(candidats);
+        int suivant = 0;
+        while (suivant < ordre.size()) {
+            EtatLieur premier = ordre.get(suivant++);
+            EtatLieur second = null;
+            long envoiPremier = System.nanoTime();
+            long envoiSecond = 0;
+            envoyer(envoi, premier.adresse);
+
+            long limite = envoiPremier + TimeUnit.MILLISECONDS.toNanos(tempsMaxAttenteReponse);
+            long delai = delaiRelance();
+            long relance = envoiPremier + delai;
+            boolean retransmise = false;
+            while (true) {
+                long maintenant = System.nanoTime();
+                if (maintenant >= limite) {
+                    break;
+                }
+                if (maintenant >= relance) {
+                    if (second == null && suivant < ordre.size()) {
+                        second = ordre.get(suivant++);
+                        envoiSecond = maintenant;
+                        Journal.avertissement("Pas de réponse de " + premier.adresse + ", demande dupliquée à " + second.adresse);
+                        envoyer(envoi, second.adresse);
+                    } else {
+                        // Plus de lieur à qui dupliquer: retransmission avec le même id de requête
+                        Journal.avertissement("Pas de réponse de " + premier.adresse + ", demande retransmise");
+                        retransmise = true;
+                        envoyer(envoi, premier.adresse);
+                        if (second != null) {
+                            envoyer(envoi, second.adresse);
+                        }
+                        delai *= 2;
+                    }
+                    relance = maintenant + delai;
+                }
+                long echeance = Math.min(relance, limite);
+                socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(echeance - maintenant)));
+                try {
+                    paquetReception.setLength(reception.capacity());
+                    socket.receive(paquetReception);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                long reponse = System.nanoTime();
+                reception.clear();
+                reception.limit(paquetReception.getLength());
+
+                // Seules les réponses des lieurs interrogés sont prises en compte
+                EtatLieur repondant = premier.adresse.equals(paquetReception.getSocketAddress()) ? premier
+                        : second != null && second.adresse.equals(paquetReception.getSocketAddress()) ? second : null;
+                if (repondant == null) {
+                    continue;
+                }
+                Protocole type = Codec.lireType(reception);
+                if (type == Protocole.SURCHARGE) {
+                    long nouvelEssai = delaiSurcharge();
+                    if (nouvelEssai >= 0) {
+                        Journal.avertissement("Lieur surchargé: ", repondant.adresse);
+                        repondant.surcharge(maintenant() + TimeUnit.NANOSECONDS.toMillis(nouvelEssai));
+                        relance = second == null && suivant < ordre.size() ? reponse : Math.max(relance, reponse + nouvelEssai);
+                    }
+                    continue;
+                }
+                if (!verification.test(type)) {
+                    continue;
+                }
+                reception.rewind();
+
+                // Le temps d'aller-retour court depuis le premier envoi, les réponses aux retransmissions ne sont pas
+                // utilisées pour le délai de relance car on ne sait pas à quel envoi elles répondent
+                long rtt = reponse - (repondant == premier ? envoiPremier : envoiSecond);
+                repondant.succes(rtt);
+                if (!retransmise) {
+                    enregistrerRtt(rtt);
+                }
+                if (repondant == second) {
+                    premier.devance(reponse - envoiPremier);
+                }
+                return repondant.adresse;
+            }
+
+            // Aucune réponse à temps, les lieurs interrogés sont écartés et on passe aux suivants
+            long maintenant = maintenant();
+            premier.echec(maintenant);
+            if (second != null) {
+                second.echec(maintenant);
+            }
+            Journal.avertissement("Pas de réponse de " + premier + (second == null ? "" : " ni de " + second));
+        }
+
+        // Des propriétaires appris qui ne répondent plus sont oubliés, la demande suivante repassera par la liste
+        proprietaires.values().removeIf(proprietairesType -> proprietairesType == candidats);
+        throw new SocketTimeoutException("Aucun lieur n'a répondu");
+    }
+
+    /**
+     * Lit une réponse SURCHARGE et vérifie qu'elle refuse la demande du tampon d'envoi: même type de demande et même
+     * id de requête
+     *
+     * @return le délai avant un nouvel essai en nanosecondes, -1 si la réponse concerne une autre demande
+     */
+    private long delaiSurcharge() {
+        if (reception.remaining() < 5 || (reception.get() & 0xFF) != (envoi.get(0) & 0xFF)) {
+            return -1;
+        }
+        int delai = Codec.lireDelaiNouvelEssai(reception);
+        int idRefuse = Codec.lireIdRequete(reception);
+        if (idRefuse != 0 && idRefuse != envoi.getInt(envoi.limit() - Codec.TAILLE_ID_REQUETE)) {
+            return -1;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, delai));
+    }
+
+    /**
+     * Classe les lieurs du plus intéressant au moins intéressant: les lieurs disponibles par temps d'aller-retour
+     * croissant, puis les lieurs écartés, ceux dont l'exclusion se termine le plus tôt en premier
+     *
+     * @param candidats
+     * @return
+     */
+    private List<EtatLieur> classerLieurs(EtatLieur[] candidats) {
+        long maintenant = maintenant();
+        List<EtatLieur> ordre = new ArrayList<>(Arrays.asList(candidats));
+        Collections.shuffle(ordre, ThreadLocalRandom.current());
+        ordre.sort((a, b) -> {
+            boolean aDisponible = a.disponible(maintenant);
+            boolean bDisponible = b.disponible(maintenant);
+            if (aDisponible != bDisponible) {
+                return aDisponible ? -1 : 1;
+            }
+            return aDisponible ? Double.compare(a.rttEstime(), b.rttEstime())
+                               : Long.compare(a.getExclusJusqua(), b.getExclusJusqua());
+        });
+        return ordre;
+    }
+
+    /**
+     * Délai après lequel une demande est dupliquée à un second lieur: le centile CENTILE_RELANCE des derniers temps
+     * d'aller-retour mesurés, borné. Tant qu'il y a trop peu de mesures, un quart du temps d'attente maximal.
+     *
+     * @return en nanosecondes
+     */
+    private long delaiRelance() {
+        long maximum = TimeUnit.MILLISECONDS.toNanos(tempsMaxAttenteReponse) / 2;
+        if (nbRtts < NB_MIN_RTTS) {
+            return maximum / 2;
+        }
+        long[] tries = Arrays.copyOf(rtts, nbRtts);
+        Arrays.sort(tries);
+        long centile = tries[(int) Math.ceil(CENTILE_RELANCE * nbRtts) - 1];
+        return Math.min(Math.max(centile, DELAI_RELANCE_MIN), maximum);
+    }
+
+    /**
+     * Garde les derniers temps d'aller-retour mesurés, tous lieurs confondus
+     *
+     * @param rtt
+     */
+    private void enregistrerRtt(long rtt) {
+        rtts[prochainRtt] = rtt;
+        prochainRtt = (prochainRtt + 1) % rtts.length;
+        nbRtts = Math.min(nbRtts + 1, rtts.length);
+    }
+
+    /**
+     * Création d'une entrée du cache, un port à 0 indique que le lieur ne connaît aucun service de ce type
+     */
+    private Resolution nouvelleResolution(int idService, int ip, int port, InetSocketAddress lieur) {
+        long maintenant = maintenant();
+        if (port == 0) {
+            return new Resolution(idService, null, lieur, maintenant + dureeVieNegative, maintenant + dureeVieNegative);
+        }
+        return new Resolution(idService, new Service(idService, ip, port), lieur, maintenant + dureeVie,
+                              maintenant + (long) (dureeVie * partRafraichissement));
+    }
+
+    private void envoyer(ByteBuffer message, InetSocketAddress destination) throws IOException {
+        paquetEnvoi.setData(message.array(), 0, message.limit());
+        paquetEnvoi.setSocketAddress(destination);
+        socket.send(paquetEnvoi);
+    }
+
+    /**
+     * Lieur auquel signaler un service qui ne vient pas du cache: le plus intéressant
+     *
+     * @return
+     */
+    private InetSocketAddress choisirLieur() {
+        return classerLieurs(lieurs).get(0).adresse;
+    }
+
+    private static long maintenant() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
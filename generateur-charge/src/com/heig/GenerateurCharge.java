@@ -0,0 +1,488 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Générateur de charge pour les lieurs et les serveurs, basé sur le protocole existant. Il simule de nombreux clients
+ * logiques depuis un seul thread: chaque client logique a son propre canal UDP et au plus une requête en cours, la
+ * réponse reçue sur un canal est donc celle de la requête de ce client. Tous les canaux sont surveillés par un
+ * Selector.
+ *
+ * Deux modes de génération:
+ * - boucle fermée: chaque client envoie sa requête suivante dès la réponse reçue (après une pause éventuelle), le débit
+ *   s'adapte donc à la capacité du système mesuré;
+ * - boucle ouverte: les requêtes partent à un débit cible, à des instants tirés selon un processus de Poisson, quelles
+ *   que soient les réponses. La latence est mesurée depuis l'instant prévu de l'envoi, un retard du générateur ou du
+ *   système est donc compté dans la latence. Une requête qui ne trouve aucun client libre n'est pas envoyée et est
+ *   comptée comme telle.
+ *
+ * Les phases mesurées sont la recherche d'un service auprès des lieurs (DEMANDE_DE_SERVICE), l'echo auprès des
+ * serveurs (CONTACT_SERVICE) et la plainte (SERVICE_EXISTE_PAS au sujet d'un serveur actif suivi d'une recherche,
+ * seule la recherche étant mesurée puisque la plainte n'a pas de réponse). Pour chaque phase le générateur affiche le
+ * débit et les centiles de latence (voir Histogramme).
+ *
+ * Une requête sans réponse après le temps d'attente maximal est comptée comme expirée. Chaque requête porte un
+ * nouvel id de requête, une réponse tardive n'a donc pas l'id de la requête suivante du client et est ignorée.
+ */
+class GenerateurCharge {
+    /**
+     * Phases de charge
+     */
+    enum TypePhase {
+        RECHERCHE,
+        ECHO,
+        PLAINTE
+    }
+
+    private final InetSocketAddress[] lieurs;        // Adresses des lieurs
+    private final int idService;                     // Type de service recherché et contacté
+    private boolean boucleOuverte = false;           // Mode de génération, boucle fermée par défaut
+    private int nbClients = 100;                     // Nombre de clients logiques, et donc de requêtes en cours au plus
+    private int debit = 1000;                        // Débit cible en requêtes par seconde en boucle ouverte
+    private int pause = 0;                           // Pause d'un client entre deux requêtes en boucle fermée, en millisecondes
+    private int tempsMaxAttenteReponse = 1000;       // Temps d'attente maximal d'une réponse en millisecondes
+    private final int tailleMessageEcho = 16;        // Taille du message envoyé au service d'echo
+
+    private final ByteBuffer envoi = Codec.allouer(1400);     // Tampon d'envoi des requêtes
+    private final ByteBuffer reception = Codec.allouer(1400); // Tampon de réception des réponses
+    private final ByteBuffer message = Codec.allouer(tailleMessageEcho); // Message d'echo
+    private final Random hasard = new Random();
+    private Selector selecteur;
+    private InetSocketAddress[] serveurs = new InetSocketAddress[0]; // Serveurs du service, découverts auprès des lieurs
+    private int prochaineCible;                      // Compteur de répartition des requêtes entre les cibles
+    private int dernierIdRequete;                    // Id de la dernière requête envoyée
+    private boolean generer;                         // Vrai tant que la phase envoie de nouvelles requêtes
+
+    // Statistiques de la phase en cours
+    private Histogramme latences;
+    private long nbEnvoyees, nbReponses, nbNegatives, nbSurcharges, nbExpirees, nbNonEnvoyees;
+
+    /**
+     * Client logique: un canal et au plus une requête en cours. Un client est toujours dans une seule des listes du
+     * générateur (en cours, en pause ou libres).
+     */
+    private static class ClientLogique {
+        DatagramChannel canal;
+        long debut;                 // Instant (prévu) de l'envoi de la requête en cours, en nanosecondes
+        long prochainEnvoi;         // Instant de la prochaine requête d'un client en pause
+        int idRequete;              // Id de la requête en cours
+        boolean enCours;
+        ClientLogique precedent;
+        ClientLogique suivant;
+    }
+
+    /**
+     * File doublement chaînée de clients, dans l'ordre d'ajout. Comme le temps d'attente et la pause sont les mêmes
+     * pour tous les clients, la tête est toujours le prochain client à expirer ou à reprendre.
+     */
+    private static class File {
+        ClientLogique tete;
+        ClientLogique queue;
+
+        void ajouter(ClientLogique client) {
+            client.precedent = queue;
+            client.suivant = null;
+            if (queue == null) {
+                tete = client;
+            } else {
+                queue.suivant = client;
+            }
+            queue = client;
+        }
+
+        void retirer(ClientLogique client) {
+            if (client.precedent == null) {
+                tete = client.suivant;
+            } else {
+                client.precedent.suivant = client.suivant;
+            }
+            if (client.suivant == null) {
+                queue = client.precedent;
+            } else {
+                client.suivant.precedent = client.precedent;
+            }
+            client.precedent = null;
+            client.suivant = null;
+        }
+    }
+
+    private final File enCours = new File();                         // Clients dont la requête attend une réponse
+    private final File enPause = new File();                         // Clients en pause avant leur prochaine requête
+    private final ArrayDeque<ClientLogique> libres = new ArrayDeque<>(); // Clients sans requête (boucle ouverte)
+    private final List<ClientLogique> clients = new ArrayList<>();   // Tous les clients
+
+    /**
+     * Création d'un générateur pour les lieurs et le type de service donnés
+     *
+     * @param lieurs
+     * @param idService
+     */
+    GenerateurCharge(Lieur[] lieurs, int idService) {
+        this.lieurs = new InetSocketAddress[lieurs.length];
+        for (int i = 0; i < lieurs.length; i++) {
+            this.lieurs[i] = new InetSocketAddress(lieurs[i].getIp(), lieurs[i].getPort());
+        }
+        this.idService = idService;
+        while (message.hasRemaining()) {
+            message.put((byte) 1);
+        }
+        message.flip();
+    }
+
+    public boolean isBoucleOuverte() {
+        return boucleOuverte;
+    }
+
+    public void setBoucleOuverte(boolean boucleOuverte) {
+        this.boucleOuverte = boucleOuverte;
+    }
+
+    public int getNbClients() {
+        return nbClients;
+    }
+
+    public void setNbClients(int nbClients) {
+        this.nbClients = nbClients;
+    }
+
+    public int getDebit() {
+        return debit;
+    }
+
+    public void setDebit(int debit) {
+        this.debit = debit;
+    }
+
+    public int getPause() {
+        return pause;
+    }
+
+    public void setPause(int pause) {
+        this.pause = pause;
+    }
+
+    public int getTempsMaxAttenteReponse() {
+        return tempsMaxAttenteReponse;
+    }
+
+    public void setTempsMaxAttenteReponse(int tempsMaxAttenteReponse) {
+        this.tempsMaxAttenteReponse = tempsMaxAttenteReponse;
+    }
+
+    /**
+     * Exécute les phases données l'une après l'autre et affiche les résultats de chacune
+     *
+     * @param phases
+     * @param duree durée de chaque phase en secondes
+     * @throws IOException
+     */
+    void executer(List<TypePhase> phases, int duree) throws IOException {
+        selecteur = Selector.open();
+        for (int i = 0; i < nbClients; i++) {
+            ClientLogique client = new ClientLogique();
+            ouvrirCanal(client);
+            clients.add(client);
+        }
+
+        for (TypePhase phase : phases) {
+            if (phase != TypePhase.RECHERCHE && serveurs.length == 0) {
+                decouvrirServeurs();
+                if (serveurs.length == 0) {
+                    System.out.println("Phase " + phase + " ignorée: aucun serveur du service " + idService + " n'est connu des lieurs");
+                    continue;
+                }
+            }
+            executerPhase(phase, TimeUnit.SECONDS.toNanos(duree));
+        }
+
+        for (ClientLogique client : clients) {
+            client.canal.close();
+        }
+        selecteur.close();
+    }
+
+    /**
+     * Demande plusieurs fois le service aux lieurs pour connaître les serveurs entre lesquels ils répartissent les
+     * clients
+     *
+     * @throws IOException
+     */
+    private void decouvrirServeurs() throws IOException {
+        Set<InetSocketAddress> trouves = new LinkedHashSet<>();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(tempsMaxAttenteReponse);
+            DatagramPacket paquet = new DatagramPacket(reception.array(), reception.capacity());
+            for (int i = 0; i < 32; i++) {
+                Codec.encoderDemandeDeService(envoi, idService);
+                socket.send(new DatagramPacket(envoi.array(), envoi.limit(), lieurs[i % lieurs.length]));
+                try {
+                    paquet.setLength(reception.capacity());
+                    socket.receive(paquet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                reception.clear();
+                reception.limit(paquet.getLength());
+                if (Codec.lireType(reception) == Protocole.REPONSE_DEMANDE_DE_SERVICE) {
+                    Codec.lireIdService(reception);
+                    trouves.add(new InetSocketAddress(Codec.entierVersIp(Codec.lireIp(reception)), Codec.lirePort(reception)));
+                }
+            }
+        }
+        serveurs = trouves.toArray(new InetSocketAddress[0]);
+        System.out.println(serveurs.length + " serveurs du service " + idService + " découverts");
+    }
+
+    /**
+     * Exécution d'une phase. A la fin de la durée plus aucune requête n'est envoyée et les réponses en attente sont
+     * encore reçues jusqu'au temps d'attente maximal, le débit est calculé sur les seules réponses reçues pendant la
+     * durée.
+     *
+     * @param phase
+     * @param duree en nanosecondes
+     * @throws IOException
+     */
+    private void executerPhase(TypePhase phase, long duree) throws IOException {
+        latences = new Histogramme();
+        nbEnvoyees = nbReponses = nbNegatives = nbSurcharges = nbExpirees = nbNonEnvoyees = 0;
+        long attente = TimeUnit.MILLISECONDS.toNanos(tempsMaxAttenteReponse);
+        long debut = System.nanoTime();
+        long fin = debut + duree;
+        long prochainEnvoiOuvert = debut;
+        long nbReponsesDansLaDuree = 0;
+        generer = true;
+
+        libres.clear();
+        for (ClientLogique client : clients) {
+            if (boucleOuverte) {
+                libres.push(client);
+            } else {
+                envoyer(client, phase, debut);
+            }
+        }
+
+        long maintenant = debut;
+        while (true) {
+            if (generer && maintenant >= fin) {
+                generer = false;
+                nbReponsesDansLaDuree = nbReponses;
+            }
+
+            // Envois dus: requêtes du débit cible ou clients dont la pause est terminée
+            if (generer && boucleOuverte) {
+                while (prochainEnvoiOuvert <= maintenant) {
+                    ClientLogique client = libres.poll();
+                    if (client == null) {
+                        nbNonEnvoyees++;
+                    } else {
+                        envoyer(client, phase, prochainEnvoiOuvert);
+                    }
+                    prochainEnvoiOuvert += (long) (-Math.log(1 - hasard.nextDouble()) * 1e9 / debit);
+                }
+            }
+            while (enPause.tete != null && (enPause.tete.prochainEnvoi <= maintenant || !generer)) {
+                ClientLogique client = enPause.tete;
+                enPause.retirer(client);
+                if (generer) {
+                    envoyer(client, phase, maintenant);
+                }
+            }
+
+            // Requêtes expirées
+            while (enCours.tete != null && enCours.tete.debut + attente <= maintenant) {
+                ClientLogique client = enCours.tete;
+                nbExpirees++;
+                terminer(client, phase, maintenant);
+            }
+            if (!generer && enCours.tete == null) {
+                break;
+            }
+
+            // Attente du prochain événement: une réponse, un envoi, une expiration ou la fin de la phase
+            long prochain = generer ? fin : Long.MAX_VALUE;
+            if (generer && boucleOuverte) {
+                prochain = Math.min(prochain, prochainEnvoiOuvert);
+            }
+            if (enPause.tete != null) {
+                prochain = Math.min(prochain, enPause.tete.prochainEnvoi);
+            }
+            if (enCours.tete != null) {
+                prochain = Math.min(prochain, enCours.tete.debut + attente);
+            }
+            long delai = TimeUnit.NANOSECONDS.toMillis(prochain - maintenant);
+            if (delai > 0) {
+                selecteur.select(delai);
+            } else {
+                selecteur.selectNow();
+            }
+
+            // Réception des réponses
+            maintenant = System.nanoTime();
+            Iterator<SelectionKey> cles = selecteur.selectedKeys().iterator();
+            while (cles.hasNext()) {
+                SelectionKey cle = cles.next();
+                cles.remove();
+                ClientLogique client = (ClientLogique) cle.attachment();
+                reception.clear();
+                while (client.canal.receive(reception) != null) {
+                    reception.flip();
+                    recevoir(client, phase, maintenant);
+                    reception.clear();
+                }
+            }
+        }
+        afficher(phase, duree, nbReponsesDansLaDuree);
+    }
+
+    /**
+     * Envoi de la requête d'un client pour la phase. Pour une plainte, la plainte puis la recherche sont envoyées au
+     * même lieur. Si le tampon d'envoi du système est plein la requête est perdue et finira par expirer.
+     *
+     * @param client
+     * @param phase
+     * @param debut instant prévu de l'envoi
+     * @throws IOException
+     */
+    private void envoyer(ClientLogique client, TypePhase phase, long debut) throws IOException {
+        int cible = prochaineCible++ & Integer.MAX_VALUE;
+        if (++dernierIdRequete == 0) {
+            dernierIdRequete++;
+        }
+        client.idRequete = dernierIdRequete;
+        switch (phase) {
+            case RECHERCHE:
+                client.canal.send(Codec.encoderDemandeDeService(envoi, idService, client.idRequete), lieurs[cible % lieurs.length]);
+                break;
+            case ECHO:
+                message.rewind();
+                client.canal.send(Codec.encoderContactService(envoi, message, client.idRequete), serveurs[cible % serveurs.length]);
+                break;
+            case PLAINTE:
+                InetSocketAddress serveur = serveurs[cible % serveurs.length];
+                InetSocketAddress lieur = lieurs[cible % lieurs.length];
+                client.canal.send(Codec.encoderServiceExistePas(envoi, idService, Codec.ipVersEntier(serveur.getAddress()), serveur.getPort()), lieur);
+                client.canal.send(Codec.encoderDemandeDeService(envoi, idService, client.idRequete), lieur);
+                break;
+        }
+        client.debut = debut;
+        client.enCours = true;
+        enCours.ajouter(client);
+        nbEnvoyees++;
+    }
+
+    /**
+     * Traitement d'une réponse reçue sur le canal d'un client. Une réponse d'un type inattendu ou qui n'a pas l'id de
+     * la requête en cours est ignorée.
+     *
+     * @param client
+     * @param phase
+     * @param maintenant
+     * @throws IOException
+     */
+    private void recevoir(ClientLogique client, TypePhase phase, long maintenant) throws IOException {
+        if (!client.enCours) {
+            return;
+        }
+        Protocole type = Codec.lireType(reception);
+        if (phase == TypePhase.ECHO ? type != Protocole.REPONSE_DU_SERVICE
+                                    : type != Protocole.REPONSE_DEMANDE_DE_SERVICE && type != Protocole.SERVICE_EXISTE_PAS
+                                      && type != Protocole.SURCHARGE) {
+            return;
+        }
+        if (type == Protocole.REPONSE_DU_SERVICE && reception.hasRemaining()) {
+            int longueur = Codec.lireLongueurMessage(reception);
+            reception.position(Math.min(reception.limit(), reception.position() + longueur));
+        } else if (type == Protocole.REPONSE_DEMANDE_DE_SERVICE) {
+            reception.position(Math.min(reception.limit(), reception.position() + Codec.TAILLE_SERVICE));
+        } else if (type == Protocole.SURCHARGE) {
+            reception.position(Math.min(reception.limit(), reception.position() + 5));
+        }
+        int idReponse = Codec.lireIdRequete(reception);
+        if (idReponse != 0 && idReponse != client.idRequete) {
+            return;
+        }
+        nbReponses++;
+        if (type == Protocole.SERVICE_EXISTE_PAS) {
+            nbNegatives++;
+        } else if (type == Protocole.SURCHARGE) {
+            nbSurcharges++;
+        }
+        latences.enregistrer(TimeUnit.NANOSECONDS.toMicros(maintenant - client.debut));
+        terminer(client, phase, maintenant);
+    }
+
+    /**
+     * Fin de la requête en cours d'un client: en boucle fermée le client repart, immédiatement ou après sa pause, en
+     * boucle ouverte ou à la fin de la phase il redevient libre
+     *
+     * @param client
+     * @param phase
+     * @param maintenant
+     * @throws IOException
+     */
+    private void terminer(ClientLogique client, TypePhase phase, long maintenant) throws IOException {
+        client.enCours = false;
+        enCours.retirer(client);
+        if (boucleOuverte || !generer) {
+            libres.push(client);
+        } else if (pause > 0) {
+            client.prochainEnvoi = maintenant + TimeUnit.MILLISECONDS.toNanos(pause);
+            enPause.ajouter(client);
+        } else {
+            envoyer(client, phase, maintenant);
+        }
+    }
+
+    /**
+     * Ouvre un nouveau canal non bloquant pour le client et l'enregistre auprès du sélecteur
+     *
+     * @param client
+     * @throws IOException
+     */
+    private void ouvrirCanal(ClientLogique client) throws IOException {
+        client.canal = DatagramChannel.open(StandardProtocolFamily.INET);
+        client.canal.configureBlocking(false);
+        client.canal.register(selecteur, SelectionKey.OP_READ, client);
+    }
+
+    /**
+     * Affiche les résultats d'une phase
+     *
+     * @param phase
+     * @param duree en nanosecondes
+     * @param nbReponsesDansLaDuree
+     */
+    private void afficher(TypePhase phase, long duree, long nbReponsesDansLaDuree) {
+        double secondes = duree / 1e9;
+        System.out.println("Phase " + phase + " (" + (boucleOuverte ? "boucle ouverte, " + debit + " requêtes/s cibles" : "boucle fermée")
+                           + ", " + nbClients + " clients, " + String.format("%.0f", secondes) + " s)");
+        System.out.println("  envoyées " + nbEnvoyees + ", réponses " + nbReponses + " (dont " + nbNegatives
+                           + " SERVICE_EXISTE_PAS, " + nbSurcharges + " SURCHARGE), expirées " + nbExpirees + ", non envoyées " + nbNonEnvoyees);
+        System.out.println(String.format("  débit %.0f réponses/s", nbReponsesDansLaDuree / secondes));
+        System.out.println(String.format("  latence (us): moyenne %.0f, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d",
+                latences.moyenne(), latences.valeurAuCentile(50), latences.valeurAuCentile(90),
+                latences.valeurAuCentile(99), latences.valeurAuCentile(99.9), latences.getMax()));
+    }
+}
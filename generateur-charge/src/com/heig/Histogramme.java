@@ -0,0 +1,109 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+/**
+ * Histogramme de latences à intervalles logarithmiques, dans l'esprit de HdrHistogram. Chaque puissance de 2 est
+ * découpée en 64 sous-intervalles de même largeur: l'erreur relative sur une valeur est donc inférieure à 1/64
+ * (environ 1.6%) quelle que soit sa grandeur, avec un tableau de taille fixe. Enregistrer une valeur est une simple
+ * incrémentation, sans allocation.
+ *
+ * L'histogramme n'est pas synchronisé.
+ */
+class Histogramme {
+    private static final int BITS_SOUS_INTERVALLES = 7;                 // Les valeurs < 128 sont exactes
+    private static final int NB_SOUS_INTERVALLES = 1 << BITS_SOUS_INTERVALLES;
+
+    private final long[] comptes = new long[(64 - BITS_SOUS_INTERVALLES + 1) * NB_SOUS_INTERVALLES]; // Nombre de valeurs par intervalle
+    private long nombre;        // Nombre de valeurs enregistrées
+    private long somme;         // Somme des valeurs, pour la moyenne
+    private long max;           // Plus grande valeur enregistrée
+
+    /**
+     * Enregistre une valeur
+     *
+     * @param valeur positive, les valeurs négatives sont comptées comme 0
+     */
+    void enregistrer(long valeur) {
+        valeur = Math.max(0, valeur);
+        comptes[index(valeur)]++;
+        nombre++;
+        somme += valeur;
+        max = Math.max(max, valeur);
+    }
+
+    /**
+     * Ajoute les valeurs d'un autre histogramme
+     *
+     * @param autre
+     */
+    void fusionner(Histogramme autre) {
+        for (int i = 0; i < comptes.length; i++) {
+            comptes[i] += autre.comptes[i];
+        }
+        nombre += autre.nombre;
+        somme += autre.somme;
+        max = Math.max(max, autre.max);
+    }
+
+    long getNombre() {
+        return nombre;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    double moyenne() {
+        return nombre == 0 ? 0 : (double) somme / nombre;
+    }
+
+    /**
+     * Retourne la valeur en dessous de laquelle se trouve le centile donné des valeurs. La borne haute de l'intervalle
+     * est retournée, la valeur n'est donc jamais sous-estimée.
+     *
+     * @param centile entre 0 et 100
+     * @return
+     */
+    long valeurAuCentile(double centile) {
+        if (nombre == 0) {
+            return 0;
+        }
+        long rang = Math.max(1, (long) Math.ceil(centile / 100 * nombre));
+        long cumul = 0;
+        for (int i = 0; i < comptes.length; i++) {
+            cumul += comptes[i];
+            if (cumul >= rang) {
+                return Math.min(borneHaute(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Intervalle d'une valeur: l'exposant est le nombre de bits au-delà des BITS_SOUS_INTERVALLES premiers, le
+     * sous-intervalle est donné par les bits de poids fort
+     *
+     * @param valeur
+     * @return
+     */
+    private static int index(long valeur) {
+        int exposant = Math.max(0, 64 - Long.numberOfLeadingZeros(valeur) - BITS_SOUS_INTERVALLES);
+        return (exposant << BITS_SOUS_INTERVALLES) + (int) (valeur >>> exposant);
+    }
+
+    /**
+     * Plus grande valeur comptée dans un intervalle
+     *
+     * @param index
+     * @return
+     */
+    private static long borneHaute(int index) {
+        int exposant = index >>> BITS_SOUS_INTERVALLES;
+        long sousIntervalle = index & (NB_SOUS_INTERVALLES - 1);
+        return ((sousIntervalle + 1) << exposant) - 1;
+    }
+}
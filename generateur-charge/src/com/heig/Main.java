@@ -0,0 +1,95 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Cette classe permet de créer un générateur de charge et de l'exécuter contre des lieurs et les serveurs du service
+ * qu'ils connaissent.
+ *
+ * Pour appeler le générateur, il faut lui passer en paramêtre l'id du service et la liste des lieurs. Des options de la
+ * forme --nom valeur peuvent être ajoutées:
+ *
+ * --mode    : fermee (chaque client attend sa réponse avant la requête suivante, par défaut) ou ouverte (requêtes
+ *             envoyées au débit cible quelles que soient les réponses)
+ * --clients : nombre de clients logiques, chacun utilise un port (100 par défaut)
+ * --debit   : débit cible en requêtes par seconde en boucle ouverte (1000 par défaut)
+ * --pause   : pause en millisecondes d'un client entre deux requêtes en boucle fermée (0 par défaut)
+ * --attente : temps d'attente maximal d'une réponse en millisecondes (1000 par défaut)
+ * --duree   : durée de chaque phase en secondes (10 par défaut)
+ * --phases  : phases exécutées dans l'ordre, parmi recherche, echo et plainte (recherche,echo,plainte par défaut)
+ *
+ * Par example :
+ *
+ * java generateur-charge.jar 1 127.0.0.1 1111 127.0.0.1 2222 --mode ouverte --debit 20000 --clients 2000
+ */
+public class Main {
+
+    /**
+     * Création et exécution d'un générateur de charge. Les paramêtres fournis doivent être dans cet ordre :
+     * <id du service> [<ip> <port>] (liste des lieurs) [--option valeur].
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        // Séparation des options et des paramètres
+        Map<String, String> options = new HashMap<>();
+        List<String> parametres = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                parametres.add(args[i]);
+            }
+        }
+        args = parametres.toArray(new String[0]);
+
+        // Récupération de l'id
+        if (args.length < 3) {
+            System.out.println("Il faut fournir au moins l'id du service et l'ip et le port d'un lieur");
+            return;
+        }
+        int id = Integer.parseInt(args[0]);
+
+        // Ajout des lieurs à la liste
+        ArrayList<Lieur> lieurs = new ArrayList<>();
+        for (int i = 1; i < args.length - 1; i += 2) {
+            lieurs.add(new Lieur(args[i], Integer.parseInt(args[i + 1])));
+        }
+
+        // Phases à exécuter
+        List<GenerateurCharge.TypePhase> phases = new ArrayList<>();
+        for (String phase : options.getOrDefault("phases", "recherche,echo,plainte").split(",")) {
+            phases.add(GenerateurCharge.TypePhase.valueOf(phase.trim().toUpperCase(Locale.ROOT)));
+        }
+
+        // Création et exécution du générateur
+        GenerateurCharge generateur = new GenerateurCharge(lieurs.toArray(new Lieur[0]), id);
+        if (options.containsKey("mode")) {
+            generateur.setBoucleOuverte(options.get("mode").equals("ouverte"));
+        }
+        if (options.containsKey("clients")) {
+            generateur.setNbClients(Integer.parseInt(options.get("clients")));
+        }
+        if (options.containsKey("debit")) {
+            generateur.setDebit(Integer.parseInt(options.get("debit")));
+        }
+        if (options.containsKey("pause")) {
+            generateur.setPause(Integer.parseInt(options.get("pause")));
+        }
+        if (options.containsKey("attente")) {
+            generateur.setTempsMaxAttenteReponse(Integer.parseInt(options.get("attente")));
+        }
+        generateur.executer(phases, Integer.parseInt(options.getOrDefault("duree", "10")));
+    }
+}
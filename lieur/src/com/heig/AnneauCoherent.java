@@ -0,0 +1,159 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Anneau de hachage cohérent des lieurs, utilisé en mode partitionné pour répartir les ids de service. Chaque lieur
+ * est placé en plusieurs points de l'anneau (noeuds virtuels), à la position donnée par le hachage de son adresse et
+ * du numéro du point. Un id de service est placé sur l'anneau par son propre hachage: ses propriétaires sont les
+ * premiers lieurs distincts rencontrés en parcourant l'anneau depuis cette position, autant que le facteur de
+ * réplication.
+ *
+ * Les positions ne dépendent que des adresses des lieurs, tous les lieurs démarrés avec la même liste calculent donc
+ * le même anneau sans se concerter. Ajouter ou retirer un lieur ne déplace que les ids voisins de ses points. Les ids
+ * de service tenant sur un byte, les propriétaires des 256 ids sont calculés une fois pour toutes à la création de
+ * l'anneau, qui n'est ensuite plus modifié et peut être lu par tous les threads.
+ */
+class AnneauCoherent {
+    private static final int NB_IDS = 256;                  // Nombre d'ids de service possibles
+
+    private final InetSocketAddress[][] proprietaires = new InetSocketAddress[NB_IDS][]; // Propriétaires par id, dans l'ordre de l'anneau
+    private final Map<InetSocketAddress, boolean[]> possedes = new HashMap<>(); // Ids possédés par chaque lieur
+
+    /**
+     * Création de l'anneau des lieurs donnés
+     *
+     * @param membres adresses de tous les lieurs, telles que les autres lieurs les connaissent
+     * @param facteur nombre de propriétaires de chaque id, borné par le nombre de lieurs
+     * @param nbPoints nombre de points de chaque lieur sur l'anneau
+     */
+    AnneauCoherent(InetSocketAddress[] membres, int facteur, int nbPoints) {
+        // Placement des points, triés par position. Le numéro du lieur est gardé dans les bits de poids faible
+        // pour que deux points à la même position soient départagés de la même façon sur tous les lieurs
+        InetSocketAddress[] tries = membres.clone();
+        Arrays.sort(tries, (a, b) -> texte(a).compareTo(texte(b)));
+        long[] points = new long[tries.length * nbPoints];
+        for (int m = 0; m < tries.length; m++) {
+            for (int i = 0; i < nbPoints; i++) {
+                points[m * nbPoints + i] = hacher(texte(tries[m]) + "#" + i) & ~0xFFFFL | m;
+            }
+        }
+        Arrays.sort(points);
+
+        // Parcours de l'anneau depuis la position de chaque id jusqu'à trouver assez de lieurs distincts
+        int nbProprietaires = Math.min(facteur, tries.length);
+        for (InetSocketAddress membre : tries) {
+            possedes.put(membre, new boolean[NB_IDS]);
+        }
+        for (int id = 0; id < NB_IDS; id++) {
+            InetSocketAddress[] liste = new InetSocketAddress[nbProprietaires];
+            boolean[] choisis = new boolean[tries.length];
+            int debut = Arrays.binarySearch(points, melanger(id) & ~0xFFFFL);
+            int index = debut >= 0 ? debut : -debut - 1;
+            for (int n = 0; n < nbProprietaires; index++) {
+                int m = (int) (points[index % points.length] & 0xFFFF);
+                if (!choisis[m]) {
+                    choisis[m] = true;
+                    liste[n++] = tries[m];
+                    possedes.get(tries[m])[id] = true;
+                }
+            }
+            proprietaires[id] = liste;
+        }
+    }
+
+    /**
+     * Retourne les propriétaires d'un id de service, dans l'ordre de l'anneau
+     *
+     * @param idService
+     * @return
+     */
+    InetSocketAddress[] proprietaires(int idService) {
+        return proprietaires[idService & 0xFF];
+    }
+
+    /**
+     * Indique si un lieur est propriétaire d'un id de service
+     *
+     * @param lieur
+     * @param idService
+     * @return faux si le lieur ne fait pas partie de l'anneau
+     */
+    boolean possede(InetSocketAddress lieur, int idService) {
+        boolean[] ids = possedes.get(lieur);
+        return ids != null && ids[idService & 0xFF];
+    }
+
+    /**
+     * Indique si un lieur fait partie de l'anneau
+     *
+     * @param lieur
+     * @return
+     */
+    boolean estMembre(InetSocketAddress lieur) {
+        return possedes.containsKey(lieur);
+    }
+
+    /**
+     * Retourne le nombre d'ids de service dont un lieur est propriétaire
+     *
+     * @param lieur
+     * @return
+     */
+    int nombrePossedes(InetSocketAddress lieur) {
+        int nombre = 0;
+        for (boolean possede : possedes.getOrDefault(lieur, new boolean[0])) {
+            if (possede) {
+                nombre++;
+            }
+        }
+        return nombre;
+    }
+
+    /**
+     * Texte d'une adresse de lieur, identique sur tous les lieurs
+     */
+    private static String texte(InetSocketAddress adresse) {
+        return adresse.getAddress().getHostAddress() + ":" + adresse.getPort();
+    }
+
+    /**
+     * Hachage FNV-1a 64 bits du texte, suivi d'un mélange pour répartir les bits
+     *
+     * @param texte
+     * @return
+     */
+    private static long hacher(String texte) {
+        long h = 0xCBF29CE484222325L;
+        for (byte b : texte.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        return melanger(h);
+    }
+
+    /**
+     * Mélange final de MurmurHash3, deux valeurs proches donnent des positions éloignées
+     *
+     * @param valeur
+     * @return
+     */
+    private static long melanger(long valeur) {
+        long h = valeur;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Version d'un service du registre telle qu'elle est échangée entre les lieurs. Une entrée indique si le service est
+ * présent ou supprimé, le lieur à l'origine de la modification, le numéro de séquence de cette modification chez ce
+ * lieur et l'horloge de Lamport au moment de la modification.
+ *
+ * Le numéro de séquence permet aux lieurs de savoir quelles modifications d'un autre lieur ils ont déjà intégrées,
+ * l'horloge de Lamport départage deux modifications d'un même service faites par des lieurs différents.
+ *
+ * Une entrée est transmise sur 28 bytes:
+ * [présent (1)][type de service (1)][IP du service (4)][port du service (2)][origine (4)][séquence (8)][lamport (8)]
+ *
+ * La durée du bail armé par ce lieur pour le service n'est pas transmise: chaque lieur arme ses propres baux à la
+ * réception des battements. Elle n'est utilisée que par la sauvegarde du registre (voir Persistance).
+ */
+class EntreeRegistre {
+    final Service service;
+    final boolean present;
+    final int origine;
+    final long sequence;
+    final long lamport;
+    final int bail;                                             // Durée du bail armé par ce lieur, 0 sans bail
+
+    /**
+     * Création d'une nouvelle entrée, sans bail
+     *
+     * @param service
+     * @param present
+     * @param origine
+     * @param sequence
+     * @param lamport
+     */
+    EntreeRegistre(Service service, boolean present, int origine, long sequence, long lamport) {
+        this(service, present, origine, sequence, lamport, 0);
+    }
+
+    /**
+     * Création d'une nouvelle entrée
+     *
+     * @param service
+     * @param present
+     * @param origine
+     * @param sequence
+     * @param lamport
+     * @param bail
+     */
+    EntreeRegistre(Service service, boolean present, int origine, long sequence, long lamport, int bail) {
+        this.service = service;
+        this.present = present;
+        this.origine = origine;
+        this.sequence = sequence;
+        this.lamport = lamport;
+        this.bail = bail;
+    }
+
+    /**
+     * Retourne la même entrée avec la durée de bail donnée
+     *
+     * @param bail
+     * @return
+     */
+    EntreeRegistre avecBail(int bail) {
+        return new EntreeRegistre(service, present, origine, sequence, lamport, bail);
+    }
+
+    /**
+     * Indique si cette entrée est plus récente qu'une autre version du même service
+     *
+     * @param lamport
+     * @param origine
+     * @return
+     */
+    boolean plusRecenteQue(long lamport, int origine) {
+        return this.lamport > lamport || (this.lamport == lamport && this.origine > origine);
+    }
+
+    /**
+     * Ecrit l'entrée dans le tampon
+     *
+     * @param tampon
+     */
+    void ecrire(ByteBuffer tampon) {
+        Codec.ecrireEntree(tampon, present, service.getIdService(), service.getIp(), service.getPort(), origine, sequence, lamport);
+    }
+
+    /**
+     * Lit une entrée depuis le tampon
+     *
+     * @param tampon
+     * @return
+     */
+    static EntreeRegistre lire(ByteBuffer tampon) {
+        boolean present = tampon.get() != 0;
+        int idService = Codec.lireIdService(tampon);
+        int ip = Codec.lireIp(tampon);
+        int port = Codec.lirePort(tampon);
+        Service service = new Service(idService, ip, port);
+        return new EntreeRegistre(service, present, tampon.getInt(), tampon.getLong(), tampon.getLong());
+    }
+
+    /**
+     * Transforme l'entrée en String pour l'affichage
+     *
+     * @return
+     */
+    public String toString() {
+        return service + (present ? " (ajout" : " (suppression") + ", origine " + origine + ", séquence " + sequence + ")";
+    }
+}
@@ -6,12 +6,33 @@
 package com.heig;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Le lieur permet de faire le lien entre les services et les client. Il contient la liste des services actifs
@@ -24,25 +45,157 @@ import java.util.NoSuchElementException;
  *
  * Le LieurServer va utiliser le port passé dans le constructeur pour toutes les requêtes sauf pour la requête
  * de vérification d'existence d'un service où il va utiliser le port portVerification passé au constructeur.
+ * Les vérifications se font en arrière plan: le lieur envoie VERIFIE_N_EXISTE_PAS sur le canal de vérification,
+ * note la vérification dans une table des vérifications en cours et continue de traiter les autres requêtes. La
+ * réponse J_EXISTE retire la vérification de la table, sinon le service est supprimé à l'expiration du délai. Les
+ * plaintes concernant un service dont la vérification est déjà en cours sont ignorées.
  *
- * Il aurait été plus performant d'utiliser le multicast pour l'envoi et la réception d'ajout/suppression
- * de services pour les lieurs mais il aurait fallu créer un thread supplémentaire pour l'écoute de ces requêtes et ça
- * aurait créer des problèmes de concurrence au niveau de la liste des services. Nous avons donc décider de ne pas le
- * faire pour garder la classe LieurServeur simple.
+ * Le lieur peut utiliser le multicast pour l'envoi et la réception d'ajout/suppression de services. Les lots de
+ * modifications sont alors publiés une seule fois sur le groupe et un thread supplémentaire (RecepteurMulticast)
+ * applique les lots reçus au registre, qui est synchronisé. La liste des autres lieurs sert alors à récupérer la liste
+ * des services au démarrage, à l'échange périodique des versions, qui rattrape les lots perdus, et à n'appliquer que
+ * les lots publiés par les lieurs de la liste.
  *
- * La taille du paquet contenant la liste des services ne peut excéder 702 bytes. De ce fait un park de lieur ne peut
- * pas avoir plus de 100 serveurs de service.
- * La taille max d'un requête ne peut pas excéder 100 bytes. Aucun message défini dans le protocole ne devrait excéder
+ * Les datagrammes sont reçus sur un DatagramChannel non bloquant surveillé par un Selector. Chaque requête reçue est
+ * transmise à un pool de threads travailleurs (un par coeur) qui exécute le traitement défini par le protocole. Le
+ * registre des services est partagé entre les travailleurs, il est donc synchronisé (voir RegistreServices).
+ *
+ * Chaque lieur a un id tiré au hasard à son démarrage. Les ajouts et suppressions de services sont versionnés par
+ * l'id du lieur qui les a faites et un numéro de séquence propre à ce lieur (voir RegistreServices). Les messages
+ * AJOUT_SERVICE et SUPPRESSION_SERVICE peuvent se perdre, le lieur envoie donc périodiquement à un autre lieur pris
+ * au hasard le résumé de son vecteur de versions (RESUME_VERSIONS). Le lieur qui le reçoit répond avec les seules
+ * modifications qui manquent (DELTA_REGISTRE), les lieurs convergent ainsi sans se renvoyer toute la liste.
+ * Les modifications faites par le lieur sont regroupées pendant une courte fenêtre et envoyées aux autres lieurs en
+ * un seul paquet LOT_MODIFICATIONS (voir Replicateur).
+ *
+ * La liste des services est transmise en plusieurs fragments d'au plus 1400 bytes. Chaque fragment porte l'id de
+ * l'instantané de la liste, son numéro, le nombre total de fragments et de services. Le lieur qui demande la liste
+ * réclame les fragments manquants avec DEMANDE_FRAGMENTS_MANQUANTS, les derniers instantanés envoyés sont gardés
+ * pour pouvoir les retransmettre.
+ * Un service peut s'abonner avec un bail: il doit alors renouveler son abonnement avant la fin du bail en envoyant
+ * BATTEMENT, sinon le lieur le supprime et en informe les autres lieurs. Les baux sont gérés par une roue temporelle
+ * (voir RoueTemporelle) qui avance d'une case à chaque tick du minuteur. Les serveurs envoient leurs battements à
+ * tous les lieurs: chaque lieur arme donc le bail et connait la charge des serveurs (voir RegistreServices). Un lieur
+ * qui ne reçoit pas les battements apprend l'expiration par la réplication de la suppression. Un battement pour un
+ * service inconnu (bail déjà expiré, lieur redémarré) l'ajoute à nouveau.
+ * Un serveur qui s'arrête envoie DESABONNEMENT: le lieur le retire immédiatement de la liste, en informe les autres
+ * lieurs et confirme avec CONFIRMATION_DESABONNEMENT, les clients ne reçoivent donc plus ce serveur sans attendre la
+ * fin de son bail ou l'échec d'une vérification.
+ *
+ * En mode partitionné, les ids de service sont répartis entre les lieurs par un anneau de hachage cohérent (voir
+ * AnneauCoherent) construit à partir de la liste des lieurs et de l'adresse de ce lieur: chaque id a autant de lieurs
+ * propriétaires que le facteur de réplication, seuls ses propriétaires gardent ses services. Un lieur qui n'est pas
+ * propriétaire de l'id demandé, ou auquel un service s'abonne pour un id qu'il ne possède pas, répond REDIRECTION avec
+ * la liste des propriétaires: il n'a aucun état à garder pour la demande et le client s'adresse ensuite directement
+ * aux propriétaires. Les battements des ids qui ne sont pas possédés sont ignorés. Les lots de modifications ne sont
+ * envoyés qu'aux propriétaires des ids modifiés. Comme un lieur ne connaît plus toutes les modifications des autres, il
+ * ne répond au résumé des versions qu'avec ses propres modifications, limitées aux ids possédés par le demandeur, et au
+ * démarrage il envoie son résumé à tous les lieurs au lieu de demander la liste complète. Les services dont la
+ * dernière modification vient d'un lieur arrêté sont rattrapés par leurs battements. Le multicast n'est pas utilisé
+ * en mode partitionné.
+ *
+ * Le registre peut être sauvegardé dans un répertoire (voir Persistance): un instantané est écrit périodiquement et
+ * chaque modification est journalisée. Au redémarrage le lieur reprend son id, ses compteurs et son registre depuis la
+ * sauvegarde, il ne demande alors pas la liste complète mais envoie son résumé des versions aux autres lieurs qui lui
+ * renvoient seulement les modifications manquées pendant son arrêt.
+ *
+ * Le lieur tient des métriques (voir Metriques): messages reçus et durée de traitement par type, nombre de services
+ * par id, issue des vérifications et retard de réplication, c'est-à-dire le nombre de modifications connues du dernier
+ * lieur qui nous a envoyé son résumé des versions et que nous n'avions pas encore. Elles sont exposées par JMX et
+ * envoyées en réponse à DEMANDE_STATISTIQUES.
+ *
+ * Les demandes de service des clients peuvent porter un id de requête. Les réponses aux demandes avec id sont gardées
+ * quelques secondes dans un cache (voir CacheReponses): une demande retransmise par un client qui n'a pas reçu la
+ * réponse reçoit la même réponse, sans qu'un autre service ne soit choisi.
+ *
+ * Les messages des clients et des services sont limités par expéditeur et par type (voir LimiteurDebit), avant
+ * d'être confiés aux travailleurs, par adresse IP pour les clients et par adresse IP et port pour les services: un client qui inonde le lieur de plaintes ou d'abonnements ne déclenche pas
+ * une vérification ou une réplication par message. Ces messages sont aussi refusés quand trop de requêtes attendent
+ * un travailleur. Une demande refusée qui attend une réponse reçoit SURCHARGE avec le délai avant un nouvel essai, au
+ * plus quelques fois par seconde et par expéditeur. Les messages entre lieurs ne sont jamais limités, mais ils ne sont
+ * acceptés que des lieurs de la liste: un autre hôte ne peut ni injecter de modifications ni se faire envoyer tout le
+ * registre. Deux lieurs qui se synchronisent doivent donc figurer chacun dans la liste de l'autre.
+ *
+ * La taille max d'un requête ne peut pas excéder 1400 bytes. Aucun message défini dans le protocole ne devrait excéder
  * cette taille de tampon.
  */
 public class LieurServeur {
-    private List<Service> services = new ArrayList<>(); // Liste des services
-    private final Lieur[] lieurs;                       // Liste des autres lieurs
-    private final int port;                             // Port d'écoute et d'envoi des requêtes
-    private final int portVerification;                 // Port pour les requêtes de vérification d'existence
-    private final int tailleMaxListeServices = 702;     // Taille maximale du paquet de la liste des services
-    private final int tailleMaxRequete = 100;           // Taille maximale d'un requête au lieur
-    private final int tempsMaxAttenteReponse = 2000;    // Temps avant d'attente maximal avant un tempsMaxAttenteReponse du socket
+    private int idLieur;                                      // Id du lieur, origine de ses modifications du registre
+    private RegistreServices services;                        // Registre des services
+    private final Lieur[] lieurs;                             // Liste des autres lieurs
+    private final InetSocketAddress[] adressesLieurs;         // Adresses des autres lieurs
+    private final Set<InetSocketAddress> lieursConnus = new HashSet<>(); // Seuls expéditeurs acceptés des messages entre lieurs
+    private final int port;                                   // Port d'écoute et d'envoi des requêtes
+    private final int portVerification;                       // Port pour les requêtes de vérification d'existence
+    private final int tailleMaxFragment = 1400;               // Taille maximale d'un fragment de la liste des services
+    private final int periodeAntiEntropie = 5000;             // Période d'envoi du résumé des versions à un autre lieur
+    private int fenetreReplication = 20;                      // Durée de regroupement des modifications avant leur envoi
+    private int limiteDemandes = 2000;                        // Demandes de service acceptées par seconde et par adresse IP, 0 sans limite
+    private int limitePlaintes = 5;                           // Plaintes SERVICE_EXISTE_PAS acceptées par seconde et par adresse IP
+    private int limiteAbonnements = 2;                        // Abonnements acceptés par seconde et par service (adresse IP et port)
+    private int limiteBattements = 10;                        // Battements acceptés par seconde et par service (adresse IP et port)
+    private Path repertoire;                                  // Répertoire de sauvegarde du registre, null si le registre n'est pas sauvegardé
+    private final int periodeSauvegarde = 60000;              // Période d'écriture de l'instantané du registre
+    private Persistance persistance;                          // Sauvegarde du registre
+    private int facteurReplication;                           // Nombre de propriétaires de chaque id en mode partitionné, 0 sans partitionnement
+    private String adresse = "127.0.0.1";                     // IP de ce lieur telle que les autres lieurs la connaissent, pour sa place dans l'anneau
+    private final int nbPointsAnneau = 128;                   // Nombre de points de chaque lieur sur l'anneau
+    private AnneauCoherent anneau;                            // Propriétaires des ids de service, null sans partitionnement
+    private InetSocketAddress adresseLocale;                  // Adresse de ce lieur dans l'anneau
+    private InetSocketAddress groupeMulticast;                // Groupe multicast des lieurs, null si le multicast n'est pas utilisé
+    private String interfaceMulticast;                        // Nom de l'interface réseau du multicast, null pour la choisir
+    private final long ageMaxSuppressions = 600000;           // Durée pendant laquelle les suppressions sont gardées
+    private final int nbMaxInstantanes = 4;                   // Nombre d'instantanés de la liste gardés pour les retransmissions
+    private final int nbMaxRelances = 5;                      // Nombre de demandes de fragments manquants avant d'abandonner
+    private final int tempsMaxAttenteFragment = 500;          // Temps d'attente maximal entre deux fragments
+    private final int tailleMaxRequete = 1400;                // Taille maximale d'un requête au lieur
+    private final int tailleTamponsSocket = 1 << 20;          // Taille des tampons d'envoi et de réception du système
+    private final int tempsMaxAttenteReponse = 2000;          // Temps avant d'attente maximal avant un tempsMaxAttenteReponse du socket
+    private final int nbTravailleurs = Runtime.getRuntime().availableProcessors(); // Nombre de threads de traitement
+    private final long dureeCaseBaux = 100;                   // Durée d'une case de la roue des baux en millisecondes
+    private final int nbCasesBaux = 512;                      // Nombre de cases de la roue des baux
+    private final int bailMax = 3600000;                      // Durée maximale d'un bail en millisecondes
+    private final RoueTemporelle baux = new RoueTemporelle(nbCasesBaux, dureeCaseBaux, this::expirationBail); // Baux des services abonnés à ce lieur
+    private final ConcurrentHashMap<InetSocketAddress, Service> verificationsEnCours = new ConcurrentHashMap<>(); // Services en cours de vérification par adresse
+    private final ScheduledExecutorService minuteur = Executors.newSingleThreadScheduledExecutor(); // Expiration des vérifications et tâches périodiques
+    private ExecutorService travailleurs;                      // Threads de traitement des requêtes
+    private final int nbMaxTamponsReception = 1024;           // Nombre de tampons de réception gardés en réserve
+    private final ArrayBlockingQueue<ByteBuffer> tamponsReception = new ArrayBlockingQueue<>(nbMaxTamponsReception); // Tampons de réception libres
+    private final ThreadLocal<ByteBuffer> tamponsReponse = ThreadLocal.withInitial(() -> Codec.allouer(tailleMaxRequete)); // Tampon d'envoi de chaque thread
+    private DatagramChannel canal;                            // Canal d'écoute et d'envoi sur le port principal
+    private DatagramChannel canalVerification;                // Canal d'envoi et de réception des vérifications d'existence
+    private Replicateur replicateur;                          // Envoi des modifications aux autres lieurs
+    private final AtomicInteger prochainInstantane = new AtomicInteger(); // Id du prochain instantané de la liste
+    private final Metriques metriques = new Metriques();      // Métriques du lieur
+    private final LongAdder nbVerifications = metriques.compteur("verifications.demandees");   // Vérifications envoyées
+    private final LongAdder nbVerificationsIgnorees = metriques.compteur("verifications.ignorees"); // Plaintes ignorées, service inconnu ou déjà en vérification
+    private final LongAdder nbVerificationsConfirmees = metriques.compteur("verifications.confirmees"); // Services qui ont répondu J_EXISTE
+    private final LongAdder nbVerificationsEchouees = metriques.compteur("verifications.echouees"); // Services supprimés faute de réponse
+    private final LongAdder nbBauxExpires = metriques.compteur("baux.expires");    // Services supprimés à la fin de leur bail
+    private final LongAdder nbDesabonnements = metriques.compteur("desabonnements"); // Services retirés à leur arrêt
+    private final LongAdder nbRedirections = metriques.compteur("redirections"); // Demandes et abonnements redirigés vers les propriétaires
+    private final AtomicLong retardReplication = new AtomicLong(); // Modifications manquantes d'après le dernier résumé reçu
+    private final int nbMaxReponses = 4096;                   // Nombre de réponses gardées pour les retransmissions des clients
+    private final int dureeVieReponses = 10000;               // Durée pendant laquelle une réponse peut être rejouée
+    private final CacheReponses reponses = new CacheReponses(nbMaxReponses, dureeVieReponses); // Dernières réponses aux clients
+    private final LongAdder nbReponsesRejouees = metriques.compteur("reponses.rejouees"); // Demandes retransmises répondues depuis le cache
+    private final LimiteurDebit limiteur = new LimiteurDebit(16384); // Seaux à jetons par expéditeur et par type de message
+    private final int limiteStatistiques = 20;                // Demandes de statistiques acceptées par seconde et par expéditeur
+    private final int limiteSurcharges = 5;                   // Réponses SURCHARGE envoyées par seconde et par expéditeur
+    private final int nbMaxEnAttente = 4096;                  // Requêtes en attente d'un travailleur au-delà desquelles les messages limités sont refusés
+    private final int delaiSurcharge = 100;                   // Délai avant un nouvel essai annoncé quand les travailleurs sont surchargés
+    private final AtomicInteger enAttente = new AtomicInteger(); // Requêtes confiées aux travailleurs et pas encore traitées
+    private final ByteBuffer tamponSurcharge = Codec.allouer(16); // Tampon des réponses SURCHARGE, propre au thread de réception
+    private final LongAdder nbLimitees = metriques.compteur("limitation.refusees");  // Messages refusés, limite de l'expéditeur dépassée
+    private final LongAdder nbBattementsRefuses = metriques.compteur("limitation.battements"); // Battements refusés, limite du service dépassée
+    private final LongAdder nbSurcharges = metriques.compteur("surcharge.refusees"); // Messages refusés, travailleurs surchargés
+    private final LongAdder nbLieursInconnus = metriques.compteur("lieurs.inconnus"); // Messages entre lieurs refusés, expéditeur hors de la liste
+    private final Map<Integer, List<byte[]>> instantanes = Collections.synchronizedMap(new LinkedHashMap<Integer, List<byte[]>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<byte[]>> eldest) {
+            return size() > nbMaxInstantanes;
+        }
+    });                                                       // Derniers instantanés envoyés, découpés en fragments
 
 
     /**
@@ -53,6 +206,101 @@ public class LieurServeur {
         this.port = port;
         this.portVerification = portVerification;
         this.lieurs = lieurs;
+
+        // Les adresses des lieurs sont résolues une fois pour toutes
+        this.adressesLieurs = new InetSocketAddress[lieurs.length];
+        for (int i = 0; i < lieurs.length; i++) {
+            adressesLieurs[i] = new InetSocketAddress(lieurs[i].getIp(), lieurs[i].getPort());
+            lieursConnus.add(adressesLieurs[i]);
+        }
+
+        // L'id 0 n'est pas utilisé pour qu'un vecteur de versions vide ne corresponde à aucun lieur
+        int id;
+        do {
+            id = new Random().nextInt();
+        } while (id == 0);
+        this.idLieur = id;
+        this.services = new RegistreServices(idLieur);
+    }
+
+    public int getFenetreReplication() {
+        return fenetreReplication;
+    }
+
+    public void setFenetreReplication(int fenetreReplication) {
+        this.fenetreReplication = fenetreReplication;
+    }
+
+    public Path getRepertoire() {
+        return repertoire;
+    }
+
+    public void setRepertoire(Path repertoire) {
+        this.repertoire = repertoire;
+    }
+
+    public int getLimiteDemandes() {
+        return limiteDemandes;
+    }
+
+    public void setLimiteDemandes(int limiteDemandes) {
+        this.limiteDemandes = limiteDemandes;
+    }
+
+    public int getLimitePlaintes() {
+        return limitePlaintes;
+    }
+
+    public void setLimitePlaintes(int limitePlaintes) {
+        this.limitePlaintes = limitePlaintes;
+    }
+
+    public int getLimiteAbonnements() {
+        return limiteAbonnements;
+    }
+
+    public void setLimiteAbonnements(int limiteAbonnements) {
+        this.limiteAbonnements = limiteAbonnements;
+    }
+
+    public int getLimiteBattements() {
+        return limiteBattements;
+    }
+
+    public void setLimiteBattements(int limiteBattements) {
+        this.limiteBattements = limiteBattements;
+    }
+
+    public int getFacteurReplication() {
+        return facteurReplication;
+    }
+
+    public void setFacteurReplication(int facteurReplication) {
+        this.facteurReplication = facteurReplication;
+    }
+
+    public String getAdresse() {
+        return adresse;
+    }
+
+    public void setAdresse(String adresse) {
+        this.adresse = adresse;
+    }
+
+    public InetSocketAddress getGroupeMulticast() {
+        return groupeMulticast;
+    }
+
+    public void setGroupeMulticast(InetSocketAddress groupeMulticast) {
+        this.groupeMulticast = groupeMulticast;
+    }
+
+    public String getInterfaceMulticast() {
+        return interfaceMulticast;
+    }
+
+    public void setInterfaceMulticast(String interfaceMulticast) {
+        this.interfaceMulticast = interfaceMulticast;
     }
 
     /**
@@ -63,107 +311,529 @@ public class LieurServeur {
      * @throws InterruptedException
      */
     public void demarrer() throws IOException, InterruptedException {
-        // Création d'une connexion UDP point à point sur le port principal
-        DatagramSocket pointAPointSocket = new DatagramSocket(port);
-        System.out.println("Démarrage du lieur");
+        // Restauration du registre sauvegardé, avant que le registre ne soit partagé avec les autres threads
+        boolean restaure = repertoire != null && restaurerRegistre();
 
-        // Syncronisation avec les autres lieurs
-        recupererListeServices(pointAPointSocket);
+        // Création d'un canal UDP point à point sur le port principal
+        canal = DatagramChannel.open(StandardProtocolFamily.INET);
+        canal.setOption(StandardSocketOptions.SO_RCVBUF, tailleTamponsSocket);
+        canal.setOption(StandardSocketOptions.SO_SNDBUF, tailleTamponsSocket);
+        canal.bind(new InetSocketAddress(port));
+        Journal.info("Démarrage du lieur ", idLieur);
+        declarerJauges();
+        metriques.enregistrerJmx("lieur-" + port);
 
-        // Traitement de toutes les requêtes reçues
-        while (true) {
-            System.out.println("Attente d'une nouvelle demande...");
+        // Limites des messages des clients et des services, les rafales sont d'une seconde de messages. Les messages
+        // des services sont limités par service: plusieurs serveurs d'une même machine ont chacun leur limite.
+        limiteur.limiter(Protocole.DEMANDE_DE_SERVICE, limiteDemandes, limiteDemandes);
+        limiteur.limiter(Protocole.DEMANDE_DE_SERVICES, limiteDemandes, limiteDemandes);
+        limiteur.limiter(Protocole.SERVICE_EXISTE_PAS, limitePlaintes, limitePlaintes);
+        limiteur.limiter(Protocole.ABONNEMENT, limiteAbonnements, limiteAbonnements, true);
+        limiteur.limiter(Protocole.DESABONNEMENT, limiteAbonnements, limiteAbonnements, true);
+        limiteur.limiter(Protocole.BATTEMENT, limiteBattements, limiteBattements, true);
+        limiteur.limiter(Protocole.DEMANDE_STATISTIQUES, limiteStatistiques, limiteStatistiques);
+        limiteur.limiter(Protocole.SURCHARGE, limiteSurcharges, limiteSurcharges);
 
-            // Réception d'une requête
-            byte[] buffer = new byte[tailleMaxRequete];
-            DatagramPacket receivePacket = new DatagramPacket(buffer, buffer.length);
-            pointAPointSocket.receive(receivePacket);
+        // En mode partitionné chaque id de service n'est gardé que par ses propriétaires
+        if (facteurReplication > 0) {
+            creerAnneau();
+        }
 
-            System.out.println("Liste actuelle");
-            services.forEach(System.out::println);
+        // En mode multicast les modifications sont publiées sur le groupe et reçues par un thread d'écoute
+        InetSocketAddress[] destinations = adressesLieurs;
+        if (groupeMulticast != null && anneau != null) {
+            Journal.avertissement("Le multicast n'est pas utilisé en mode partitionné");
+        } else if (groupeMulticast != null) {
+            NetworkInterface interfaceReseau = RecepteurMulticast.choisirInterface(interfaceMulticast);
+            canal.setOption(StandardSocketOptions.IP_MULTICAST_IF, interfaceReseau);
+            canal.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            destinations = new InetSocketAddress[]{groupeMulticast};
+            new RecepteurMulticast(groupeMulticast, interfaceReseau, services, lieursConnus, port, nbLieursInconnus, tailleMaxRequete).demarrer();
+            Journal.info("Réplication sur le groupe multicast " + groupeMulticast + " via " + interfaceReseau.getName());
+        }
+        replicateur = new Replicateur(canal, destinations, minuteur, fenetreReplication, tailleMaxRequete, anneau);
 
-            System.out.println("Nouvelle demande recue");
+        // Syncronisation avec les autres lieurs, le canal est encore bloquant à ce moment. Un registre restauré ou
+        // partitionné est seulement complété par l'échange des versions, une fois le lieur démarré
+        if (!restaure && anneau == null) {
+            recupererListeServices(canal.socket());
+        }
 
-            // Récupération du type de message
-            byte messageType = receivePacket.getData()[0];
-            System.out.println("Type de message: " + Protocole.getByOrdinale(messageType));
+        // Création du canal de vérification, ouvert pour toute la durée de vie du lieur
+        canalVerification = DatagramChannel.open(StandardProtocolFamily.INET);
+        canalVerification.bind(new InetSocketAddress(portVerification));
 
-            // Si le message reçu est une demande de liste de services d'un lieur (lieur -> lieur)
-            if (messageType == Protocole.DEMANDE_DE_LISTE_DE_SERVICES.ordinal()) {
-                envoiListeServices(receivePacket, pointAPointSocket);
+        // Passage en mode non bloquant et enregistrement auprès du sélecteur
+        canal.configureBlocking(false);
+        canalVerification.configureBlocking(false);
+        Selector selecteur = Selector.open();
+        canal.register(selecteur, SelectionKey.OP_READ);
+        canalVerification.register(selecteur, SelectionKey.OP_READ);
+        travailleurs = Executors.newFixedThreadPool(nbTravailleurs);
+
+        // Echanges périodiques des versions avec les autres lieurs et oubli des anciennes suppressions
+        minuteur.scheduleAtFixedRate(this::envoiResumeVersions, periodeAntiEntropie, periodeAntiEntropie, TimeUnit.MILLISECONDS);
+        minuteur.scheduleAtFixedRate(() -> services.purgerSuppressions(ageMaxSuppressions), ageMaxSuppressions, ageMaxSuppressions, TimeUnit.MILLISECONDS);
+        minuteur.scheduleAtFixedRate(baux::avancer, dureeCaseBaux, dureeCaseBaux, TimeUnit.MILLISECONDS);
+        if (persistance != null) {
+            minuteur.scheduleAtFixedRate(this::sauvegarderRegistre, periodeSauvegarde, periodeSauvegarde, TimeUnit.MILLISECONDS);
+        }
+        if (restaure || anneau != null) {
+            for (InetSocketAddress adresseLieur : adressesLieurs) {
+                minuteur.execute(() -> envoiResumeVersions(adresseLieur));
             }
-            // Si le message est une demande de service d'un client (client -> lieur)
-            else if(messageType == Protocole.DEMANDE_DE_SERVICE.ordinal()){
-                envoiServiceAuClient(receivePacket, pointAPointSocket);
+        }
+
+        // Réception de toutes les requêtes et transmission aux travailleurs. Les tampons de réception sont repris
+        // dans une réserve et y retournent une fois la requête traitée
+        ByteBuffer tamponVerification = Codec.allouer(1);
+        while (true) {
+            selecteur.select();
+            Iterator<SelectionKey> cles = selecteur.selectedKeys().iterator();
+            while (cles.hasNext()) {
+                SelectionKey cle = cles.next();
+                cles.remove();
+
+                // On vide le canal de tous les datagrammes en attente avant de retourner dans le select
+                SocketAddress source;
+                if (cle.channel() == canal) {
+                    while (true) {
+                        ByteBuffer requete = prendreTampon();
+                        if ((source = canal.receive(requete)) == null) {
+                            rendreTampon(requete);
+                            break;
+                        }
+                        requete.flip();
+                        final InetSocketAddress expediteur = (InetSocketAddress) source;
+                        if (!admettre(requete, expediteur)) {
+                            rendreTampon(requete);
+                            continue;
+                        }
+                        enAttente.incrementAndGet();
+                        travailleurs.execute(() -> {
+                            try {
+                                traiterRequete(requete, expediteur);
+                            } finally {
+                                enAttente.decrementAndGet();
+                                rendreTampon(requete);
+                            }
+                        });
+                    }
+                } else {
+                    while ((source = canalVerification.receive(tamponVerification)) != null) {
+                        tamponVerification.flip();
+                        reponseVerification((InetSocketAddress) source, Codec.lireType(tamponVerification));
+                        tamponVerification.clear();
+                    }
+                }
             }
-            // Ajout d'un nouveau service de la part d'un lieur (lieur -> lieur)
-            else if (messageType == Protocole.AJOUT_SERVICE.ordinal()) {
-                ajoutService(receivePacket);
+        }
+    }
+
+    /**
+     * Création de l'anneau des lieurs: ce lieur, à l'adresse donnée en option, et les autres lieurs de la liste
+     */
+    private void creerAnneau() {
+        adresseLocale = new InetSocketAddress(adresse, port);
+        InetSocketAddress[] membres = Arrays.copyOf(adressesLieurs, adressesLieurs.length + 1);
+        membres[adressesLieurs.length] = adresseLocale;
+        anneau = new AnneauCoherent(membres, facteurReplication, nbPointsAnneau);
+        Journal.info("Mode partitionné: " + membres.length + " lieurs, facteur de réplication " + facteurReplication
+                     + ", ids de service possédés par ce lieur: ", anneau.nombrePossedes(adresseLocale));
+    }
+
+    /**
+     * Indique si ce lieur est propriétaire d'un id de service, toujours vrai sans partitionnement
+     *
+     * @param idService
+     * @return
+     */
+    private boolean possede(int idService) {
+        return anneau == null || anneau.possede(adresseLocale, idService);
+    }
+
+    /**
+     * Redirige l'expéditeur d'une demande ou d'un abonnement vers les propriétaires d'un id de service que ce lieur ne
+     * possède pas
+     *
+     * @param idService
+     * @param idRequete id de la demande, 0 si elle n'en a pas
+     * @param expediteur
+     * @throws IOException
+     */
+    private void redirection(int idService, int idRequete, InetSocketAddress expediteur) throws IOException {
+        nbRedirections.increment();
+        Journal.debug("Redirection vers les propriétaires du service ", idService);
+        envoyer(Codec.encoderRedirection(tamponsReponse.get(), idService, anneau.proprietaires(idService), idRequete), expediteur);
+    }
+
+    /**
+     * Restaure le registre depuis le répertoire de sauvegarde s'il contient un instantané, puis écrit un nouvel
+     * instantané qui démarre le journal de ce lancement. La durée du bail de chaque service est sauvegardée avec son
+     * entrée: les services restaurés qui avaient un bail en reçoivent un nouveau de la même durée, renouvelé par leur
+     * prochain battement s'ils sont toujours en vie, les services sans bail restent sans bail. Un serveur arrêté
+     * pendant l'arrêt du lieur est ainsi supprimé à la fin de son propre bail.
+     *
+     * @return vrai si le registre a été restauré
+     * @throws IOException
+     */
+    private boolean restaurerRegistre() throws IOException {
+        persistance = new Persistance(repertoire);
+        long debut = System.nanoTime();
+        Persistance.Sauvegarde sauvegarde = persistance.lireInstantane();
+        if (sauvegarde != null) {
+            List<EntreeRegistre> journal = persistance.lireJournal(sauvegarde.generation);
+            idLieur = sauvegarde.idLieur;
+            services = new RegistreServices(idLieur);
+            services.restaurer(sauvegarde, journal);
+            for (Map.Entry<Service, Integer> bail : services.baux().entrySet()) {
+                baux.armer(bail.getKey(), bail.getValue());
             }
-            // Suppression d'un service (lieur -> lieur)
-            else if (messageType == Protocole.SUPPRESSION_SERVICE.ordinal()) {
-                suppressionService(receivePacket);
+            Journal.info("Registre restauré depuis " + repertoire + ": " + sauvegarde.entrees.size() + " entrées et "
+                               + journal.size() + " modifications journalisées en " + (System.nanoTime() - debut) / 1000000 + " ms");
+        }
+        services.setPersistance(persistance);
+        persistance.ecrireInstantane(services.sauvegarder());
+        return sauvegarde != null;
+    }
+
+    /**
+     * Déclare les jauges du lieur, lues à chaque lecture des métriques
+     */
+    private void declarerJauges() {
+        metriques.jauges(valeurs -> {
+            long total = 0;
+            for (Map.Entry<Integer, Integer> nombre : services.nombreParIdService().entrySet()) {
+                valeurs.put("registre.service." + nombre.getKey(), (long) nombre.getValue());
+                total += nombre.getValue();
             }
-            // Si un client n'a pas trouvé le service ( client -> lieur )
-            else if (messageType == Protocole.SERVICE_EXISTE_PAS.ordinal()) {
-                verifServiceExiste(receivePacket, pointAPointSocket);
+            valeurs.put("registre.services", total);
+        });
+        metriques.jauge("verifications.en_cours", verificationsEnCours::size);
+        metriques.jauge("replication.retard", retardReplication::get);
+    }
+
+    /**
+     * Ecriture périodique de l'instantané du registre
+     */
+    private void sauvegarderRegistre() {
+        try {
+            persistance.ecrireInstantane(services.sauvegarder());
+        } catch (IOException e) {
+            Journal.erreur("Erreur lors de la sauvegarde du registre: ", e.getMessage());
+        }
+    }
+
+    /**
+     * Prend un tampon de réception dans la réserve, un nouveau tampon est alloué si la réserve est vide
+     *
+     * @return
+     */
+    private ByteBuffer prendreTampon() {
+        ByteBuffer tampon = tamponsReception.poll();
+        if (tampon == null) {
+            tampon = Codec.allouer(tailleMaxRequete);
+        }
+        tampon.clear();
+        return tampon;
+    }
+
+    /**
+     * Remet un tampon de réception dans la réserve, il est abandonné si la réserve est pleine
+     *
+     * @param tampon
+     */
+    private void rendreTampon(ByteBuffer tampon) {
+        tamponsReception.offer(tampon);
+    }
+
+    /**
+     * Contrôle d'admission d'une requête par le thread de réception, avant qu'elle ne soit confiée aux travailleurs.
+     * Un message entre lieurs est refusé si son expéditeur n'est pas dans la liste des lieurs. Un message d'un type
+     * limité est refusé si trop de requêtes attendent un travailleur ou si son expéditeur a dépassé la limite de ce
+     * type. Une demande refusée qui attend une réponse reçoit SURCHARGE, si l'expéditeur n'en a pas déjà reçu trop.
+     *
+     * @param requete tampon positionné au début du message, sa position n'est pas modifiée
+     * @param expediteur
+     * @return vrai si la requête doit être traitée
+     * @throws IOException
+     */
+    private boolean admettre(ByteBuffer requete, InetSocketAddress expediteur) throws IOException {
+        Protocole type = Codec.lireType(requete);
+        requete.rewind();
+        if (estMessageLieur(type) && !lieursConnus.contains(expediteur)) {
+            nbLieursInconnus.increment();
+            return false;
+        }
+        if (type == null || !limiteur.estLimite(type)) {
+            return true;
+        }
+
+        int ip = Codec.ipVersEntier(expediteur.getAddress());
+        int port = expediteur.getPort();
+        long maintenant = System.nanoTime();
+        long attente;
+        if (enAttente.get() >= nbMaxEnAttente) {
+            nbSurcharges.increment();
+            attente = TimeUnit.MILLISECONDS.toNanos(delaiSurcharge);
+        } else {
+            attente = limiteur.prendre(ip, port, type, maintenant);
+            if (attente == 0) {
+                return true;
             }
-            // Si un service veut s'abonner à un lieur
-            else if (messageType == Protocole.ABONNEMENT.ordinal()) {
-                souscriptionService(receivePacket, pointAPointSocket);
+            nbLimitees.increment();
+            if (type == Protocole.BATTEMENT) {
+                nbBattementsRefuses.increment();
             }
         }
+
+        // Seules les demandes de service, les abonnements et les désabonnements attendent une réponse
+        if ((type == Protocole.DEMANDE_DE_SERVICE || type == Protocole.DEMANDE_DE_SERVICES || type == Protocole.ABONNEMENT
+             || type == Protocole.DESABONNEMENT)
+                && limiteur.prendre(ip, port, Protocole.SURCHARGE, maintenant) == 0) {
+            int delai = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(attente + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+            envoyer(Codec.encoderSurcharge(tamponSurcharge, type, delai, idRequeteDemande(requete, type)), expediteur);
+        }
+        return false;
+    }
+
+    /**
+     * Indique si un type de message n'est envoyé que par les autres lieurs
+     *
+     * @param type
+     * @return
+     */
+    private static boolean estMessageLieur(Protocole type) {
+        if (type == null) {
+            return false;
+        }
+        switch (type) {
+            case DEMANDE_DE_LISTE_DE_SERVICES:
+            case DEMANDE_FRAGMENTS_MANQUANTS:
+            case REPONSE_DEMANDE_LISTE_DE_SERVICES:
+            case RESUME_VERSIONS:
+            case DELTA_REGISTRE:
+            case LOT_MODIFICATIONS:
+            case AJOUT_SERVICE:
+            case SUPPRESSION_SERVICE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Lit l'id de requête d'une demande de service sans modifier la position du tampon
+     *
+     * @param demande tampon positionné au début du message
+     * @param type
+     * @return l'id ou 0 si la demande n'en a pas
+     */
+    private static int idRequeteDemande(ByteBuffer demande, Protocole type) {
+        int position;
+        if (type == Protocole.DEMANDE_DE_SERVICE) {
+            position = 2;
+        } else if (type == Protocole.DEMANDE_DE_SERVICES && demande.limit() > 1) {
+            position = 2 + (demande.get(1) & 0xFF);
+        } else {
+            return 0;
+        }
+        return demande.limit() >= position + Codec.TAILLE_ID_REQUETE ? demande.getInt(position) : 0;
+    }
+
+    /**
+     * Traitement d'une requête reçue par un thread travailleur. Le message est aiguillé vers la méthode correspondant
+     * à son type dans le protocole, le tampon est alors positionné après le type du message.
+     *
+     * @param requete
+     * @param expediteur
+     */
+    private void traiterRequete(ByteBuffer requete, InetSocketAddress expediteur) {
+        long debut = System.nanoTime();
+
+        // Récupération du type de message
+        Protocole messageType = Codec.lireType(requete);
+        if (Journal.debug()) {
+            Journal.debug("Nouvelle demande recue de type ", messageType);
+            Journal.debug("Liste actuelle");
+            services.pourChaque(service -> Journal.debug("", service));
+        }
+        metriques.recu(messageType);
+        if (messageType == null) {
+            return;
+        }
+
+        try {
+            switch (messageType) {
+                // Si le message reçu est une demande de liste de services d'un lieur (lieur -> lieur)
+                case DEMANDE_DE_LISTE_DE_SERVICES:
+                    envoiListeServices(expediteur);
+                    break;
+                // Si un lieur réclame des fragments de la liste qu'il n'a pas reçu (lieur -> lieur)
+                case DEMANDE_FRAGMENTS_MANQUANTS:
+                    envoiFragmentsManquants(requete, expediteur);
+                    break;
+                // Réception d'un lot d'ajouts et de suppressions d'un lieur (lieur -> lieur)
+                case LOT_MODIFICATIONS:
+                    receptionLot(requete);
+                    break;
+                // Si un lieur nous envoie le résumé de ses versions (lieur -> lieur)
+                case RESUME_VERSIONS:
+                    envoiDeltas(requete, expediteur);
+                    break;
+                // Si un lieur nous envoie des modifications qui nous manquent (lieur -> lieur)
+                case DELTA_REGISTRE:
+                    receptionDelta(requete);
+                    break;
+                // Si le message est une demande de service d'un client (client -> lieur)
+                case DEMANDE_DE_SERVICE:
+                    envoiServiceAuClient(requete, expediteur);
+                    break;
+                // Si un client demande des services de plusieurs types (client -> lieur)
+                case DEMANDE_DE_SERVICES:
+                    envoiServicesAuClient(requete, expediteur);
+                    break;
+                // Ajout d'un nouveau service de la part d'un lieur (lieur -> lieur)
+                case AJOUT_SERVICE:
+                    ajoutService(requete);
+                    break;
+                // Suppression d'un service (lieur -> lieur)
+                case SUPPRESSION_SERVICE:
+                    suppressionService(requete);
+                    break;
+                // Si un client n'a pas trouvé le service ( client -> lieur )
+                case SERVICE_EXISTE_PAS:
+                    verifServiceExiste(requete);
+                    break;
+                // Si un service veut s'abonner à un lieur
+                case ABONNEMENT:
+                    souscriptionService(requete, expediteur);
+                    break;
+                // Si un service renouvelle son bail (service -> lieur)
+                case BATTEMENT:
+                    renouvellementBail(requete, expediteur);
+                    break;
+                // Si un service s'arrête (service -> lieur)
+                case DESABONNEMENT:
+                    desabonnementService(requete, expediteur);
+                    break;
+                // Si un outil de supervision demande les métriques du lieur
+                case DEMANDE_STATISTIQUES:
+                    envoiStatistiques(requete, expediteur);
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException | InterruptedException | BufferUnderflowException e) {
+            Journal.erreur("Erreur lors du traitement de la demande: ", e.getMessage());
+        }
+        metriques.traite(messageType, debut);
+    }
+
+    /**
+     * Envoie un message sur le canal principal. Le canal peut être utilisé simultanément par plusieurs travailleurs.
+     * Si le tampon d'envoi du système est plein le datagramme est perdu, comme il pourrait l'être sur le réseau.
+     *
+     * @param message
+     * @param destination
+     * @throws IOException
+     */
+    private void envoyer(ByteBuffer message, SocketAddress destination) throws IOException {
+        canal.send(message, destination);
     }
 
     /**
      * Méthode qui permet la synchronisation du nouveau lieur, en récupérant la liste des services depuis un des services
-     * opérationels.
+     * opérationels. La liste est reçue en plusieurs fragments, les fragments manquants sont redemandés au lieur.
      *
      * @param pointAPointSocket
      * @throws IOException
      */
     private void recupererListeServices(DatagramSocket pointAPointSocket) throws IOException {
-        System.out.println("Reception de la liste des services");
+        Journal.info("Reception de la liste des services");
+
+        // Tampons de la demande et des fragments, réutilisés pour tous les paquets
+        ByteBuffer demande = Codec.allouer(tailleMaxRequete);
+        ByteBuffer fragment = Codec.allouer(tailleMaxFragment);
+        DatagramPacket paquetDemande = new DatagramPacket(demande.array(), 0);
+        DatagramPacket paquetFragment = new DatagramPacket(fragment.array(), fragment.capacity());
 
         // Parcourir la liste des lieurs jusqu'à trouver un Lieur opérationel
-        for (Lieur Lieur : lieurs) {
-            // Création du paquet de demande
-            DatagramPacket LieurPacket = new DatagramPacket(new byte[]{(byte) Protocole.DEMANDE_DE_LISTE_DE_SERVICES.ordinal()}, 1, InetAddress.getByName(Lieur.getIp()), Lieur.getPort());
-            pointAPointSocket.send(LieurPacket);
-
-            // Création du paquet pour la récéption de la liste des services, taille max de 702 bytes.
-            // 1 byte pour le type de message, 1 pour le nombre de service et 7 par service avec un max de 100 services
-            byte[] buffer = new byte[tailleMaxListeServices];
-            DatagramPacket serviceListAddressPacket = new DatagramPacket(buffer, buffer.length);
-
-            // On définit un tempsMaxAttenteReponse (si le Lieur n'est pas opérationel) et on reçoit le paquet.
-            // definition d'un time out et reception de la liste des services. Si un lieur met plus de 2sec pour
-            // répondre on passe au lieur suivant
-            try {
-                pointAPointSocket.setSoTimeout(tempsMaxAttenteReponse);
-                pointAPointSocket.receive(serviceListAddressPacket);
-            } catch (SocketTimeoutException e) {
-                // Dans le cas d'un tempsMaxAttenteReponse, on passe au suivant Lieur
-                continue;
-            }
+        for (InetSocketAddress adresseLieur : adressesLieurs) {
+            // Envoi de la demande
+            Codec.encoderSimple(demande, Protocole.DEMANDE_DE_LISTE_DE_SERVICES);
+            paquetDemande.setData(demande.array(), 0, demande.limit());
+            paquetDemande.setSocketAddress(adresseLieur);
+            pointAPointSocket.send(paquetDemande);
+
+            // Le premier fragment nous donne l'id de l'instantané et le nombre de fragments à recevoir, le fragment 0
+            // contient le vecteur de versions de l'instantané
+            Map<Integer, Long> vecteurInstantane = new HashMap<>();
+            int idInstantane = 0;
+            boolean[] fragmentsRecus = null;
+            int nbFragmentsRecus = 0;
+            int nbRelances = 0;
+
+            // On définit un tempsMaxAttenteReponse (si le Lieur n'est pas opérationel) et on reçoit les fragments.
+            // Si un lieur met plus de 2sec pour répondre on passe au lieur suivant
+            pointAPointSocket.setSoTimeout(tempsMaxAttenteReponse);
+            while (fragmentsRecus == null || nbFragmentsRecus < fragmentsRecus.length) {
+                try {
+                    paquetFragment.setLength(fragment.capacity());
+                    pointAPointSocket.receive(paquetFragment);
+                } catch (SocketTimeoutException e) {
+                    // Si aucun fragment n'est arrivé le lieur n'est pas opérationel, sinon on redemande ceux qui manquent
+                    if (fragmentsRecus == null || nbRelances == nbMaxRelances) {
+                        break;
+                    }
+                    nbRelances++;
+                    demanderFragmentsManquants(pointAPointSocket, paquetDemande, demande, adresseLieur, idInstantane, fragmentsRecus);
+                    continue;
+                }
+
+                // Vérification si le paquet est bien un fragment de la liste des services
+                // Si un client ou un serveur a envoyé une requête, elle sera ignorée car le lieur est entrain de démarrer
+                // C'est au rôle du client d'essayer un autre lieur si celui là ne répond pas
+                fragment.clear();
+                fragment.limit(paquetFragment.getLength());
+                if (fragment.remaining() < Codec.TAILLE_ENTETE_FRAGMENT || Codec.lireType(fragment) != Protocole.REPONSE_DEMANDE_LISTE_DE_SERVICES) {
+                    continue;
+                }
+                int id = fragment.getInt();
+                int numero = fragment.getInt();
+                int nbFragments = fragment.getInt();
+                int nbServices = fragment.getInt();
+                if (fragmentsRecus == null) {
+                    idInstantane = id;
+                    fragmentsRecus = new boolean[nbFragments];
+                    pointAPointSocket.setSoTimeout(tempsMaxAttenteFragment);
+                    Journal.info("Reception de " + nbServices + " services en " + nbFragments + " fragments");
+                }
+                // Les fragments d'un autre instantané ou déjà reçus sont ignorés
+                if (id != idInstantane || numero < 0 || numero >= fragmentsRecus.length || fragmentsRecus[numero]) {
+                    continue;
+                }
+                fragmentsRecus[numero] = true;
+                nbFragmentsRecus++;
 
-            // Vérification si le paquet est bien une réponse contenant la liste des services
-            // Si un client ou un serveur a envoyé une requête, elle sera ignorée car le lieur est entrain de démarrer
-            // C'est au rôle du client d'essayer un autre lieur si celui là ne répond pas
-            int type = serviceListAddressPacket.getData()[0];
-            if (type == (byte) Protocole.REPONSE_DEMANDE_LISTE_DE_SERVICES.ordinal()) {
                 // Ajout des nouveaux services dans la liste
-                int nbServices = serviceListAddressPacket.getData()[1];
-                for (int i = 0; i < nbServices; i++) {
-                    int idService = serviceListAddressPacket.getData()[2 + 7 * i];
-                    InetAddress ip = InetAddress.getByAddress(Arrays.copyOfRange(serviceListAddressPacket.getData(), 3 + i * 7, 7 + i * 7));
-                    byte[] portByte = Arrays.copyOfRange(serviceListAddressPacket.getData(), 7 + i * 7, 9 + i * 7);
-                    int port = ((portByte[1] & 0xff) << 8) | (portByte[0] & 0xff);
-                    Service service = new Service(idService, ip.getHostAddress(), port);
-                    services.add(service);
-
-                    System.out.println("Nouveau service reçu:");
-                    System.out.println(service);
+                int nbOrigines = Codec.lireNombre(fragment);
+                int nbEntrees = Codec.lireNombre(fragment);
+                for (int i = 0; i < nbOrigines; i++) {
+                    vecteurInstantane.put(fragment.getInt(), fragment.getLong());
+                }
+                for (int i = 0; i < nbEntrees; i++) {
+                    services.appliquer(EntreeRegistre.lire(fragment));
+                }
+            }
+
+            if (fragmentsRecus != null) {
+                // Le vecteur de versions n'est repris que si toute la liste a été reçue, sinon l'échange des versions
+                // avec les autres lieurs complétera le registre
+                if (nbFragmentsRecus < fragmentsRecus.length) {
+                    Journal.avertissement("Il manque " + (fragmentsRecus.length - nbFragmentsRecus) + " fragments de la liste des services");
+                } else {
+                    services.fusionnerVecteur(vecteurInstantane);
                 }
                 break;
             }
@@ -171,307 +841,632 @@ public class LieurServeur {
 
         // On remet le tempsMaxAttenteReponse à 0 (infini)
         pointAPointSocket.setSoTimeout(0);
-        System.out.println("La liste des services est à jour");
+        Journal.info("La liste des services est à jour");
     }
 
     /**
-     * Méthode de réponse à un lieur qui a demandé la liste des services
+     * Demande à un lieur de retransmettre les fragments qui n'ont pas été reçus. Les numéros des fragments manquants
+     * sont envoyés en autant de paquets que nécessaire.
      *
-     * @param serviceAddressPacket
      * @param pointAPointSocket
+     * @param paquetDemande paquet dont les données sont celles du tampon de la demande
+     * @param demande
+     * @param adresseLieur
+     * @param idInstantane
+     * @param fragmentsRecus
+     * @throws IOException
+     */
+    private void demanderFragmentsManquants(DatagramSocket pointAPointSocket, DatagramPacket paquetDemande, ByteBuffer demande,
+                                            InetSocketAddress adresseLieur, int idInstantane, boolean[] fragmentsRecus) throws IOException {
+        int nbMaxNumeros = (demande.capacity() - Codec.TAILLE_ENTETE_DEMANDE_FRAGMENTS) / 4;
+        int numero = 0;
+        while (numero < fragmentsRecus.length) {
+            // Type, id de l'instantané, nombre de numéros puis les numéros des fragments manquants
+            Codec.ecrireEnteteDemandeFragments(demande, idInstantane);
+            int nbNumeros = 0;
+            for (; numero < fragmentsRecus.length && nbNumeros < nbMaxNumeros; numero++) {
+                if (!fragmentsRecus[numero]) {
+                    demande.putInt(numero);
+                    nbNumeros++;
+                }
+            }
+            if (nbNumeros > 0) {
+                Codec.fixerNombreFragmentsDemandes(demande, nbNumeros);
+                Codec.terminer(demande);
+                paquetDemande.setData(demande.array(), 0, demande.limit());
+                paquetDemande.setSocketAddress(adresseLieur);
+                pointAPointSocket.send(paquetDemande);
+            }
+        }
+    }
+
+    /**
+     * Méthode de réponse à un lieur qui a demandé la liste des services. Un instantané de la liste est découpé en
+     * fragments qui sont tous envoyés, l'instantané est gardé pour pouvoir retransmettre les fragments perdus.
+     *
+     * @param expediteur
      * @throws InterruptedException
      * @throws IOException
      */
-    private void envoiListeServices(DatagramPacket serviceAddressPacket, DatagramSocket pointAPointSocket) throws InterruptedException, IOException {
-        System.out.println("Nouvelle demande de la liste des services");
+    private void envoiListeServices(InetSocketAddress expediteur) throws InterruptedException, IOException {
+        Journal.info("Nouvelle demande de la liste des services");
 
-        // Définition de la taille du paquet (2 + (le nombre de service * 7))
-        byte[] listeServiceData = new byte[2 + (7 * services.size())];
-        listeServiceData[0] = (byte) Protocole.REPONSE_DEMANDE_LISTE_DE_SERVICES.ordinal();
-        listeServiceData[1] = (byte)services.size();
+        // Copie de la liste pour ne pas bloquer les autres travailleurs pendant la construction des fragments
+        RegistreServices.Instantane instantane = services.instantane();
+        int idInstantane = prochainInstantane.incrementAndGet();
+        List<byte[]> fragments = fragmenter(instantane, idInstantane, tamponsReponse.get(), tailleMaxFragment);
+        instantanes.put(idInstantane, fragments);
 
-        // Ajout des services au paquet
-        int i = 0;
-        for (Service service : services) {
-            // Transformation en byte de l'ip et du port du service
-            byte[] ip = InetAddress.getByName(service.getIp()).getAddress();
-            byte[] port = Util.intToBytes(service.getPort(), 2);
+        Journal.info("Envoi de " + instantane.entrees.size() + " services en " + fragments.size() + " fragments");
 
-            // ajout de l'ip et du port dans le paquet
-            listeServiceData[2 + 7 * i] = (byte)service.getIdService();
-            listeServiceData[3 + 7 * i] = ip[0];
-            listeServiceData[4 + 7 * i] = ip[1];
-            listeServiceData[5 + 7 * i] = ip[2];
-            listeServiceData[6 + 7 * i] = ip[3];
-            listeServiceData[7 + 7 * i] = port[0];
-            listeServiceData[8 + 7 * i] = port[1];
+        // Envoi des fragments
+        for (byte[] copie : fragments) {
+            envoyer(ByteBuffer.wrap(copie), expediteur);
+        }
+    }
+
+    /**
+     * Découpe un instantané de la liste en fragments, le premier fragment contient aussi le vecteur de versions. Les
+     * fragments sont construits dans le tampon donné puis copiés à leur taille.
+     *
+     * @param instantane
+     * @param idInstantane
+     * @param fragment tampon d'au moins tailleMaxFragment bytes
+     * @param tailleMaxFragment
+     * @return
+     */
+    static List<byte[]> fragmenter(RegistreServices.Instantane instantane, int idInstantane, ByteBuffer fragment, int tailleMaxFragment) {
+        List<EntreeRegistre> entrees = instantane.entrees;
+        int nbOrigines = Math.min(instantane.vecteur.size(), (tailleMaxFragment - Codec.TAILLE_ENTETE_FRAGMENT) / Codec.TAILLE_VERSION);
+        int nbEntreesPremierFragment = (tailleMaxFragment - Codec.TAILLE_ENTETE_FRAGMENT - nbOrigines * Codec.TAILLE_VERSION) / Codec.TAILLE_ENTREE;
+        int nbEntreesParFragment = (tailleMaxFragment - Codec.TAILLE_ENTETE_FRAGMENT) / Codec.TAILLE_ENTREE;
+        int nbFragments = 1 + (Math.max(0, entrees.size() - nbEntreesPremierFragment) + nbEntreesParFragment - 1) / nbEntreesParFragment;
+        List<byte[]> fragments = new ArrayList<>(nbFragments);
+        int debut = 0;
+        for (int numero = 0; numero < nbFragments; numero++) {
+            int nbOriginesFragment = numero == 0 ? nbOrigines : 0;
+            int fin = Math.min(entrees.size(), debut + (numero == 0 ? nbEntreesPremierFragment : nbEntreesParFragment));
 
-            System.out.println("Envoi du service:");
-            System.out.println(service);
+            Codec.ecrireEnteteFragment(fragment, idInstantane, numero, nbFragments, entrees.size(), nbOriginesFragment, fin - debut);
 
-            i++;
+            // Ajout du vecteur de versions puis des services au fragment
+            if (nbOriginesFragment > 0) {
+                for (Map.Entry<Integer, Long> version : instantane.vecteur.entrySet()) {
+                    Codec.ecrireVersion(fragment, version.getKey(), version.getValue());
+                    if (--nbOriginesFragment == 0) {
+                        break;
+                    }
+                }
+            }
+            for (int i = debut; i < fin; i++) {
+                entrees.get(i).ecrire(fragment);
+            }
+
+            // Le fragment est copié à sa taille pour être gardé avec l'instantané
+            Codec.terminer(fragment);
+            byte[] copie = new byte[fragment.remaining()];
+            fragment.get(copie);
+            fragments.add(copie);
+            debut = fin;
         }
+        return fragments;
+    }
 
-        // Construction du paquet
-        DatagramPacket serviceListPacket = new DatagramPacket(listeServiceData, listeServiceData.length, InetAddress.getByName(serviceAddressPacket.getAddress().getHostName()), serviceAddressPacket.getPort());
+    /**
+     * Retransmission des fragments d'un instantané qu'un lieur n'a pas reçu. Si l'instantané n'est plus connu la
+     * demande est ignorée, le lieur redemandera la liste complète.
+     *
+     * @param demande
+     * @param expediteur
+     * @throws IOException
+     */
+    private void envoiFragmentsManquants(ByteBuffer demande, InetSocketAddress expediteur) throws IOException {
+        int idInstantane = demande.getInt();
+        int nbNumeros = Codec.lireNombre(demande);
 
-        // Envoi du paquet
-        pointAPointSocket.send(serviceListPacket);
+        List<byte[]> fragments = instantanes.get(idInstantane);
+        if (fragments == null) {
+            Journal.avertissement("Instantané " + idInstantane + " inconnu, fragments non retransmis");
+            return;
+        }
+
+        Journal.info("Retransmission de " + nbNumeros + " fragments de l'instantané " + idInstantane);
+        for (int i = 0; i < nbNumeros && demande.remaining() >= 4; i++) {
+            int numero = demande.getInt();
+            if (numero >= 0 && numero < fragments.size()) {
+                envoyer(ByteBuffer.wrap(fragments.get(numero)), expediteur);
+            }
+        }
     }
 
     /**
      * Envoie l'IP et le port d'un service au client qui a effectué une demande de service
      *
-     * @param serviceNumberPacket
-     * @param pointAPointSocket
+     * @param demande
+     * @param expediteur
      * @throws InterruptedException
      * @throws IOException
      */
-    private void envoiServiceAuClient(DatagramPacket serviceNumberPacket, DatagramSocket pointAPointSocket) throws InterruptedException, IOException {
-        System.out.println("Envoi du service au client");
-        
-        DatagramPacket servicePacket;
-
-        // Récupère le service qui a été utilisé le moins récemment si la liste des services n'est pas vide
-        if(!services.isEmpty()) {
-            Service service;
-            try {
-                // On récupère le service qui a été utilisé il y a le plus longtemps et qui a le bon id de service
-                 service = services.stream().filter(s -> s.getIdService() == serviceNumberPacket.getData()[1])
-                        .min((a, b) -> a.getDerniereUtilisation() == null ? -1 : b.getDerniereUtilisation() == null ? 1 : a.getDerniereUtilisation()
-                                .compareTo(b.getDerniereUtilisation())).get();
-            } catch (NoSuchElementException e)
-            {
-                service = null;
+    private void envoiServiceAuClient(ByteBuffer demande, InetSocketAddress expediteur) throws InterruptedException, IOException {
+        Journal.debug("Envoi du service au client");
+
+        int idService = Codec.lireIdService(demande);
+        int idRequete = Codec.lireIdRequete(demande);
+        ByteBuffer reponse = tamponsReponse.get();
+
+        // Une demande retransmise reçoit la réponse déjà envoyée
+        if (idRequete != 0 && reponses.chercher(expediteur, idRequete, reponse)) {
+            nbReponsesRejouees.increment();
+            envoyer(reponse, expediteur);
+            return;
+        }
+
+        // En mode partitionné, seuls les propriétaires de l'id connaissent ses services
+        if (!possede(idService)) {
+            redirection(idService, idRequete, expediteur);
+            return;
+        }
+
+        // On récupère le service qui a été utilisé il y a le plus longtemps et qui a le bon id de service
+        Service service = services.choisir(idService);
+
+        // Si on a trouvé aucun services correspondant on l'annonce au client
+        if (service == null) {
+            Journal.debug("Aucun service avec cet id n'a été trouvé");
+            Codec.encoderReponseServiceExistePas(reponse, idRequete);
+        }
+        // Sinon on lui retourne le service trouvé
+        else {
+            Codec.encoderReponseDemandeDeService(reponse, service.getIdService(), service.getIp(), service.getPort(), idRequete);
+
+            Journal.debug("Service envoyé au client: ", service);
+        }
+
+        // Envoi du paquet
+        if (idRequete != 0) {
+            reponses.enregistrer(expediteur, idRequete, reponse);
+        }
+        envoyer(reponse, expediteur);
+    }
+
+    /**
+     * Envoie au client un service pour chacun des types demandés. Les services sont choisis en un seul passage dans
+     * le registre, un type inconnu est indiqué par une IP et un port à 0.
+     *
+     * @param demande
+     * @param expediteur
+     * @throws IOException
+     */
+    private void envoiServicesAuClient(ByteBuffer demande, InetSocketAddress expediteur) throws IOException {
+        int nbIds = Math.min(Math.min(Codec.lireNombreIds(demande), demande.remaining()), Codec.NB_MAX_IDS_PAR_DEMANDE);
+        int[] idsServices = new int[nbIds];
+        for (int i = 0; i < nbIds; i++) {
+            idsServices[i] = Codec.lireIdService(demande);
+        }
+        int idRequete = Codec.lireIdRequete(demande);
+        ByteBuffer reponse = tamponsReponse.get();
+        if (idRequete != 0 && reponses.chercher(expediteur, idRequete, reponse)) {
+            nbReponsesRejouees.increment();
+            envoyer(reponse, expediteur);
+            return;
+        }
+
+        // En mode partitionné, la demande est redirigée pour le premier id qui n'est pas possédé
+        for (int i = 0; i < nbIds; i++) {
+            if (!possede(idsServices[i])) {
+                redirection(idsServices[i], idRequete, expediteur);
+                return;
             }
-            // Si on a trouvé aucun services correspondant on l'annonce au client
+        }
+
+        Service[] choisis = new Service[nbIds];
+        services.choisirPlusieurs(idsServices, nbIds, choisis);
+
+        if (Journal.debug()) {
+            Journal.debug("Envoi de services de " + nbIds + " types au client");
+        }
+
+        Codec.ecrireEnteteReponseServices(reponse, nbIds);
+        for (int i = 0; i < nbIds; i++) {
+            Service service = choisis[i];
             if (service == null) {
-                servicePacket = new DatagramPacket(new byte[]{(byte) Protocole.SERVICE_EXISTE_PAS.ordinal()}, 1, InetAddress.getByName(serviceNumberPacket.getAddress().getHostName()), serviceNumberPacket.getPort());
-            }
-            // Sinon on lui retourne le service trouvé
-            else {
-                byte[] ip = InetAddress.getByName(service.getIp()).getAddress();
-                byte[] port = Util.intToBytes(service.getPort(), 2);
-                byte[] serviceBuffer = {(byte) Protocole.REPONSE_DEMANDE_DE_SERVICE.ordinal(), (byte) service.getIdService(),
-                                         ip[0], ip[1], ip[2], ip[3], port[0], port[1]};
-
-                servicePacket = new DatagramPacket(serviceBuffer, serviceBuffer.length, InetAddress.getByName(serviceNumberPacket.getAddress().getHostName()), serviceNumberPacket.getPort());
-                service.utiliser();
-
-                System.out.println("Service envoyé au client:");
-                System.out.println(service);
+                Codec.ecrireService(reponse, idsServices[i], 0, 0);
+            } else {
+                Codec.ecrireService(reponse, service.getIdService(), service.getIp(), service.getPort());
             }
         }
-        // Si la liste est vide on envoie le message de non existence du service au client
-        else
-        {
-            System.out.println("Aucun service avec cet id n'a été trouvé");
-            servicePacket = new DatagramPacket(new byte[]{(byte) Protocole.SERVICE_EXISTE_PAS.ordinal()}, 1, InetAddress.getByName(serviceNumberPacket.getAddress().getHostName()), serviceNumberPacket.getPort());
+        Codec.ecrireIdRequete(reponse, idRequete);
+        Codec.terminer(reponse);
+        if (idRequete != 0) {
+            reponses.enregistrer(expediteur, idRequete, reponse);
         }
-
-        // Envoi du paquet
-        pointAPointSocket.send(servicePacket);
+        envoyer(reponse, expediteur);
     }
 
     /**
      * Methode permetant d'effacer un service de la liste après qu'un lieur nous a indiqué qu'il n'existe plus(lieur -> lieur)
      *
-     * @param deleteServicePacket
+     * @param suppression
      * @throws InterruptedException
      * @throws IOException
      */
-    private void suppressionService(DatagramPacket deleteServicePacket) throws InterruptedException, IOException {
-        // Récupération du service
-        int IDService = deleteServicePacket.getData()[1];
-        InetAddress ip = InetAddress.getByAddress(Arrays.copyOfRange(deleteServicePacket.getData(), 2, 6));
-        byte[] portByte = {deleteServicePacket.getData()[7], deleteServicePacket.getData()[6]};
-        int port = new BigInteger(portByte).intValue();
-        Service newService = new Service(IDService, ip.getHostAddress(), port);
-
-        System.out.println("Suppression du service: " + newService);
-
-        // Suppression du service
-        for(int i = 0 ; i< services.size() ; i++)
-        {
-            System.out.println(services.get(i));
-            if(services.get(i).getIdService() == newService.getIdService()
-                    && services.get(i).getIp().equals(newService.getIp())
-                    && services.get(i).getPort() == newService.getPort())
-            {
-                services.remove(i);
-            }
-        }
+    private void suppressionService(ByteBuffer suppression) throws InterruptedException, IOException {
+        // Récupération de la version du service
+        EntreeRegistre entree = EntreeRegistre.lire(suppression);
+
+        Journal.info("Suppression du service: ", entree);
+
+        // Suppression du service si cette version est plus récente que celle connue
+        services.appliquer(entree);
     }
 
     /**
      * Methode qui ajoute un service à la liste après qu'un autre lieur nous a signaler qu'il s'est souscri (lieur -> lieur)
      *
-     * @param addServicePacket
+     * @param ajout
      * @throws InterruptedException
      * @throws IOException
      */
-    private void ajoutService(DatagramPacket addServicePacket) throws InterruptedException, IOException {
-        // Récupération de l'ip de l'id et du port depuis le paquet reçu
-        int idService = addServicePacket.getData()[1];
-        InetAddress ip = InetAddress.getByAddress(Arrays.copyOfRange(addServicePacket.getData(), 2, 6));
-        byte[] portByte = {addServicePacket.getData()[7], addServicePacket.getData()[6]};
-        int port = new BigInteger(portByte).intValue();
+    private void ajoutService(ByteBuffer ajout) throws InterruptedException, IOException {
+        // Récupération de la version du service depuis le paquet reçu
+        EntreeRegistre entree = EntreeRegistre.lire(ajout);
 
         // Ajout du service à la liste s'il n'existe pas déjà
-        Service newService = new Service(idService, ip.getHostAddress(), port);
-        System.out.println("Ajout du service:");
-        System.out.println(newService);
-        if(!services.contains(newService)) {
-            services.add(newService);
-        }
+        Journal.info("Ajout du service: ", entree);
+        services.appliquer(entree);
     }
 
     /**
-     * Methode qui va verifier si un service et bien indisponible, si c'est le cas, il le supprime et informe les autres
-     * lieur de la suppression de ce service.
+     * Application en une fois d'un lot de modifications envoyé par un autre lieur (lieur -> lieur)
      *
-     * @param serviceNotExistPacket
-     * @param pointAPointSocket
-     * @throws InterruptedException
+     * @param lot
      * @throws IOException
      */
-    private void verifServiceExiste(DatagramPacket serviceNotExistPacket, DatagramSocket pointAPointSocket) throws InterruptedException, IOException {
-        // Création d'une connexion point à point
-        boolean check = false;
-        DatagramSocket verifServiceSocket = new DatagramSocket(portVerification);
+    private void receptionLot(ByteBuffer lot) throws IOException {
+        List<EntreeRegistre> entrees = Replicateur.lireLot(lot);
 
-        // Récupération du service depuis le packet
-        int idService = serviceNotExistPacket.getData()[1];
-        InetAddress ip = InetAddress.getByAddress(Arrays.copyOfRange(serviceNotExistPacket.getData(), 2, 6));
-        byte[] portByte = Arrays.copyOfRange(serviceNotExistPacket.getData(), 6, 8);
-        int port = ((portByte[1] & 0xff) << 8) | (portByte[0] & 0xff);
+        if (Journal.debug()) {
+            Journal.debug("Reception d'un lot de " + entrees.size() + " modifications");
+        }
+        services.appliquerLot(entrees);
+    }
 
-        // Envoie un paquet au service que le client n'a pas pu joindre
-        Service serviceNotReachable = new Service(idService, ip.getHostAddress(), port);
+    /**
+     * Envoi périodique du résumé de nos versions à un autre lieur pris au hasard
+     */
+    private void envoiResumeVersions() {
+        if (adressesLieurs.length == 0) {
+            return;
+        }
+        envoiResumeVersions(adressesLieurs[new Random().nextInt(adressesLieurs.length)]);
+    }
 
-        // Pour ne pas surcharger le reseau on teste si le service existe bien dans nore liste
-        for (Service service : services) {
-            if (service.getIdService() == serviceNotReachable.getIdService()
-                    && service.getIp().equals(serviceNotReachable.getIp())
-                    && service.getPort() == serviceNotReachable.getPort()) {
-                check = true;
-                System.out.println("service trouvé");
+    /**
+     * Envoi du résumé de nos versions à un lieur: pour chaque origine connue, la dernière séquence intégrée. Le lieur
+     * nous répondra avec les modifications qui nous manquent.
+     *
+     * @param adresseLieur
+     */
+    private void envoiResumeVersions(InetSocketAddress adresseLieur) {
+        Map<Integer, Long> vecteur = services.vecteur();
+        ByteBuffer resume = tamponsReponse.get();
+        int nbOrigines = Math.min(vecteur.size(), (resume.capacity() - Codec.TAILLE_ENTETE_RESUME) / Codec.TAILLE_VERSION);
+        Codec.ecrireEnteteResume(resume, nbOrigines);
+        for (Map.Entry<Integer, Long> version : vecteur.entrySet()) {
+            if (nbOrigines-- == 0) {
                 break;
             }
+            Codec.ecrireVersion(resume, version.getKey(), version.getValue());
         }
 
-        // Si le service à supprimer existe bien dans la liste des services, on vérifie son existence et on notifie les autres lieurs
-        if(check) {
-            DatagramPacket checkPacket = new DatagramPacket(new byte[]{(byte) Protocole.VERIFIE_N_EXISTE_PAS.ordinal()}, 1, InetAddress.getByName(serviceNotReachable.getIp()), serviceNotReachable.getPort());
-            verifServiceSocket.send(checkPacket);
+        try {
+            envoyer(Codec.terminer(resume), adresseLieur);
+        } catch (IOException e) {
+            Journal.erreur("Erreur lors de l'envoi du résumé des versions: ", e.getMessage());
+        }
+    }
 
-            System.out.println("Verification de l'existence du service:");
-            System.out.println(serviceNotReachable);
+    /**
+     * Réponse au résumé des versions d'un autre lieur: on lui envoie, pour chaque origine où il est en retard, les
+     * modifications qu'il n'a pas encore intégrées. Les modifications d'une origine sont découpées en paquets qui
+     * couvrent chacun une plage de séquences, un paquet perdu sera redemandé au prochain échange.
+     *
+     * @param resume
+     * @param expediteur
+     * @throws IOException
+     */
+    private void envoiDeltas(ByteBuffer resume, InetSocketAddress expediteur) throws IOException {
+        int nbOrigines = Codec.lireNombre(resume);
+        Map<Integer, Long> vecteurPair = new HashMap<>();
+        for (int i = 0; i < nbOrigines && resume.remaining() >= Codec.TAILLE_VERSION; i++) {
+            vecteurPair.put(resume.getInt(), resume.getLong());
+        }
+        retardReplication.set(services.retard(vecteurPair));
 
-            byte[] bufferResponse = new byte[1];
-            try {
-                // Si nous avons eu une réponse dans les deux secondes, le service existe toujours, si non
-                // on le supprime et notifie les autres lieurs
-                DatagramPacket serviceResponsePacket = new DatagramPacket(bufferResponse, bufferResponse.length);
-                verifServiceSocket.setSoTimeout(tempsMaxAttenteReponse);
-                verifServiceSocket.receive(serviceResponsePacket);
+        if (anneau != null && !anneau.estMembre(expediteur)) {
+            Journal.avertissement("Résumé des versions d'un lieur hors de l'anneau ignoré: ", expediteur);
+            return;
+        }
 
-                // Si on reçoit pas un message de type J_EXISTE, on le supprime
-                int messageType = serviceResponsePacket.getData()[0];
-                if (messageType != (byte) Protocole.J_EXISTE.ordinal()) {
-                    System.out.println("Le service n'existe pas");
-                    suppressionServiceEtNotificationLieurs(serviceNotReachable, pointAPointSocket);
-                } else {
-                    System.out.println("Le service existe");
+        ByteBuffer paquet = tamponsReponse.get();
+        int nbEntreesParPaquet = (paquet.capacity() - Codec.TAILLE_ENTETE_DELTA) / Codec.TAILLE_ENTREE;
+        for (RegistreServices.Delta delta : services.deltas(vecteurPair)) {
+            // En mode partitionné, seules nos propres modifications sont complètes: on n'envoie qu'elles, limitées
+            // aux ids du demandeur, la plage de séquences couvre quand même toutes nos modifications
+            if (anneau != null) {
+                if (delta.origine != idLieur) {
+                    continue;
                 }
-            } catch (SocketTimeoutException e) {
-                // Si on a un tempsMaxAttenteReponse on le supprime
-                System.out.println("Le service n'existe pas");
-                suppressionServiceEtNotificationLieurs(serviceNotReachable, pointAPointSocket);
+                delta.entrees.removeIf(entree -> !anneau.possede(expediteur, entree.service.getIdService()));
             }
+            Journal.info("Envoi de " + delta.entrees.size() + " modifications du lieur " + delta.origine);
+            long de = delta.de;
+            int debut = 0;
+            do {
+                int fin = Math.min(delta.entrees.size(), debut + nbEntreesParPaquet);
+                long a = fin == delta.entrees.size() ? delta.a : delta.entrees.get(fin - 1).sequence;
+
+                Codec.ecrireEnteteDelta(paquet, delta.origine, de, a, fin - debut);
+                for (int i = debut; i < fin; i++) {
+                    delta.entrees.get(i).ecrire(paquet);
+                }
+                envoyer(Codec.terminer(paquet), expediteur);
+
+                de = a;
+                debut = fin;
+            } while (debut < delta.entrees.size());
         }
-        else {
-            System.out.println("le service à déjà été supprimé ou ne se trouve pas dans la liste");
+    }
+
+    /**
+     * Intégration des modifications envoyées par un autre lieur en réponse à notre résumé des versions
+     *
+     * @param delta
+     * @throws IOException
+     */
+    private void receptionDelta(ByteBuffer delta) throws IOException {
+        int origine = delta.getInt();
+        long de = delta.getLong();
+        long a = delta.getLong();
+        int nbEntrees = Codec.lireNombre(delta);
+
+        for (int i = 0; i < nbEntrees; i++) {
+            EntreeRegistre entree = EntreeRegistre.lire(delta);
+            if (services.appliquer(entree)) {
+                Journal.info("Modification reçue: ", entree);
+            }
+        }
+        services.avancerVecteur(origine, de, a);
+    }
+
+    /**
+     * Methode qui va verifier si un service et bien indisponible. Elle envoie la demande de vérification au service et
+     * enregistre la vérification en cours, sans attendre la réponse. Si une vérification est déjà en cours pour
+     * l'adresse de ce service, la plainte est ignorée.
+     *
+     * @param plainte
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    private void verifServiceExiste(ByteBuffer plainte) throws InterruptedException, IOException {
+        // Récupération du service depuis le packet
+        int idService = Codec.lireIdService(plainte);
+        int ip = Codec.lireIp(plainte);
+        int port = Codec.lirePort(plainte);
+
+        // Pour ne pas surcharger le reseau on teste si le service existe bien dans nore liste
+        if (!services.contient(idService, ip, port)) {
+            Journal.debug("le service à déjà été supprimé ou ne se trouve pas dans la liste");
+            nbVerificationsIgnorees.increment();
+            return;
         }
+        Journal.debug("service trouvé");
 
-        verifServiceSocket.close();
+        // Envoie un paquet au service que le client n'a pas pu joindre
+        Service serviceNotReachable = new Service(idService, ip, port);
+
+        // Si une vérification est déjà en cours pour ce service, on ne la refait pas
+        InetSocketAddress adresseService = new InetSocketAddress(Codec.entierVersIp(ip), port);
+        if (verificationsEnCours.putIfAbsent(adresseService, serviceNotReachable) != null) {
+            Journal.debug("Vérification déjà en cours pour le service: ", serviceNotReachable);
+            nbVerificationsIgnorees.increment();
+            return;
+        }
+        nbVerifications.increment();
+
+        Journal.info("Verification de l'existence du service: ", serviceNotReachable);
+
+        // Si nous n'avons pas de réponse dans les deux secondes, on le supprime et notifie les autres lieurs
+        minuteur.schedule(() -> expirationVerification(adresseService, serviceNotReachable), tempsMaxAttenteReponse, TimeUnit.MILLISECONDS);
+        canalVerification.send(Codec.encoderSimple(tamponsReponse.get(), Protocole.VERIFIE_N_EXISTE_PAS), adresseService);
+    }
+
+    /**
+     * Traitement d'une réponse reçue sur le canal de vérification. Si on reçoit un message de type J_EXISTE le service
+     * existe, sinon on le supprime.
+     *
+     * @param adresseService
+     * @param messageType
+     */
+    private void reponseVerification(InetSocketAddress adresseService, Protocole messageType) {
+        Service service = verificationsEnCours.remove(adresseService);
+        if (service == null) {
+            return;
+        }
+        if (messageType == Protocole.J_EXISTE) {
+            Journal.info("Le service existe: ", service);
+            nbVerificationsConfirmees.increment();
+        } else {
+            travailleurs.execute(() -> serviceInexistant(service));
+        }
+    }
+
+    /**
+     * Appelée à la fin du délai de vérification, si la vérification est toujours en cours le service n'a pas répondu
+     * et on le supprime.
+     *
+     * @param adresseService
+     * @param service
+     */
+    private void expirationVerification(InetSocketAddress adresseService, Service service) {
+        if (verificationsEnCours.remove(adresseService, service)) {
+            serviceInexistant(service);
+        }
+    }
+
+    /**
+     * Suppression d'un service qui n'a pas répondu à la vérification
+     *
+     * @param service
+     */
+    private void serviceInexistant(Service service) {
+        Journal.info("Le service n'existe pas: ", service);
+        nbVerificationsEchouees.increment();
+        try {
+            suppressionServiceEtNotificationLieurs(service);
+        } catch (IOException e) {
+            Journal.erreur("Erreur lors de la suppression du service: ", e.getMessage());
+        }
     }
 
     /**
      * Méthode qui supprime le service de la liste des services et informe les autres lieurs
      *
      * @param service,
-     * @param pointAPointSocket
      * @throws IOException
      */
-    private void suppressionServiceEtNotificationLieurs(Service service, DatagramSocket pointAPointSocket) throws IOException {
-
-        System.out.println("Notification aux autres lieurs que ce service n'existe pas:");
-        System.out.println(service);
+    private void suppressionServiceEtNotificationLieurs(Service service) throws IOException {
 
-        // Suppression du service dans la liste des services
-        for(int i = 0 ; i< services.size() ; i++)
-        {
-            if(services.get(i).getIdService() == service.getIdService()
-                    && services.get(i).getIp().equals(service.getIp())
-                    && services.get(i).getPort() == service.getPort()) {
-                services.remove(i);
-            }
+        // Suppression du service dans la liste des services et de son bail
+        baux.annuler(service);
+        EntreeRegistre entree = services.supprimerLocal(service);
+        if (entree == null) {
+            return;
         }
 
+        Journal.info("Notification aux autres lieurs que ce service n'existe pas: ", entree);
+
         // Notification aux autres lieurs que le service a été supprimé
-        byte[] ip = InetAddress.getByName(service.getIp()).getAddress();
-        byte[] port = Util.intToBytes(service.getPort(), 2);
-        byte[] suppressionServiceBuffer = {(byte) Protocole.SUPPRESSION_SERVICE.ordinal(), (byte) service.getIdService(),
-                                            ip[0], ip[1], ip[2], ip[3], port[0], port[1]};
-        // On envoie le paquet à chaque lieur
-        for(Lieur Lieur : lieurs) {
-            DatagramPacket servicePacket = new DatagramPacket(suppressionServiceBuffer, suppressionServiceBuffer.length, InetAddress.getByName(Lieur.getIp()), Lieur.getPort());
-            pointAPointSocket.send(servicePacket);
-        }
+        replicateur.publier(entree);
     }
 
     /**
      * Méthode de souscription/abonnement d'un nouveau service, envoi de l'information aux autres lieurs de l'existance
      * de ce nouveau service, confirmation au service qu'il a bien été ajouté.
      *
-     * @param subscribeServicePacket
-     * @param pointAPointSocket
+     * @param abonnement
+     * @param expediteur
      * @throws InterruptedException
      * @throws IOException
      */
-    private void souscriptionService(DatagramPacket subscribeServicePacket, DatagramSocket pointAPointSocket) throws InterruptedException, IOException {
+    private void souscriptionService(ByteBuffer abonnement, InetSocketAddress expediteur) throws InterruptedException, IOException {
         // Récuperation des données du parquet
-        int idService = subscribeServicePacket.getData()[1];
-        InetAddress ip = subscribeServicePacket.getAddress();
-        int port = subscribeServicePacket.getPort();
+        int idService = Codec.lireIdService(abonnement);
+        int bail = Math.min(Codec.lireBail(abonnement), bailMax);
+
+        // En mode partitionné le service doit s'abonner auprès d'un propriétaire de son id
+        if (!possede(idService)) {
+            redirection(idService, 0, expediteur);
+            return;
+        }
 
         // Création du service et ajout a la liste
-        Service newService = new Service(idService, ip.getHostAddress(), port);
-        services.add(newService);
+        Service newService = new Service(idService, Codec.ipVersEntier(expediteur.getAddress()), expediteur.getPort());
+        EntreeRegistre entree = services.ajouterLocal(newService);
 
-        System.out.println("Nouvelle souscription du service:");
-        System.out.println(newService);
+        Journal.info("Nouvelle souscription du service: ", newService);
+
+        // Un abonnement sans bail remplace un éventuel bail précédent du même service
+        if (bail > 0) {
+            baux.armer(newService, bail);
+        } else {
+            baux.annuler(newService);
+        }
+        services.fixerBail(newService, bail);
 
-        byte[] ipByte = InetAddress.getByName(newService.getIp()).getAddress();
-        byte[] portbyte = Util.intToBytes(newService.getPort(), 2);
-        byte[] ajoutServiceBuffer = {(byte) Protocole.AJOUT_SERVICE.ordinal(), (byte) newService.getIdService(),
-                                      ipByte[0], ipByte[1], ipByte[2], ipByte[3], portbyte[0], portbyte[1]};
+        // Envoi de l'information aux autres lieurs si le service n'était pas déjà connu
+        if (entree != null) {
+            Journal.info("Notification aux autres lieurs de l'ajout du service");
+            replicateur.publier(entree);
+        }
+        Journal.debug("Envoi de la confirmation de souscription au service");
 
-        System.out.println("Notification aux autres lieurs de l'ajout du service");
+        // Envoi de la confirmation d'abonnement
+        envoyer(Codec.encoderSimple(tamponsReponse.get(), Protocole.CONFIRMATION_ABONNEMENT), expediteur);
+    }
 
-        // Envoi de l'information aux autres lieurs
-        for(Lieur Lieur : lieurs) {
-            // Création et envoi du paquet de signalement d'un nouveau service
-            DatagramPacket servicePacket = new DatagramPacket(ajoutServiceBuffer, ajoutServiceBuffer.length, InetAddress.getByName(Lieur.getIp()), Lieur.getPort());
-            pointAPointSocket.send(servicePacket);
+    /**
+     * Renouvellement du bail d'un service abonné (service -> lieur). Le battement n'a pas de réponse. Si le service
+     * n'est plus dans la liste il y est ajouté à nouveau et les autres lieurs en sont informés. La charge indiquée
+     * par le service est enregistrée pour le choix des services.
+     *
+     * @param battement
+     * @param expediteur
+     */
+    private void renouvellementBail(ByteBuffer battement, InetSocketAddress expediteur) {
+        int idService = Codec.lireIdService(battement);
+        int bail = Math.min(Codec.lireBail(battement), bailMax);
+        int charge = Codec.lireCharge(battement);
+        if (bail == 0 || !possede(idService)) {
+            return;
         }
-        System.out.println("Envoi de la confirmation de souscription au service");
 
-        // Création du paquet de confirmation d'abonnement
-        DatagramPacket confirmSubPacket = new DatagramPacket(new byte[]{(byte) Protocole.CONFIRMATION_ABONNEMENT.ordinal()}, 1, InetAddress.getByName(subscribeServicePacket.getAddress().getHostAddress()), subscribeServicePacket.getPort());
+        Service service = new Service(idService, Codec.ipVersEntier(expediteur.getAddress()), expediteur.getPort());
+        baux.armer(service, bail);
+        EntreeRegistre entree = services.ajouterLocal(service);
+        if (entree != null) {
+            Journal.info("Battement d'un service inconnu, ajout du service: ", service);
+            replicateur.publier(entree);
+        }
+        services.fixerBail(service, bail);
+        services.fixerCharge(service, charge);
+    }
 
-        // Envoi du paquet
-        pointAPointSocket.send(confirmSubPacket);
+    /**
+     * Appelée par la roue des baux quand un service n'a pas renouvelé son bail à temps: le service est supprimé et les
+     * autres lieurs en sont informés
+     *
+     * @param service
+     */
+    private void expirationBail(Service service) {
+        Journal.info("Bail expiré pour le service: ", service);
+        nbBauxExpires.increment();
+        try {
+            suppressionServiceEtNotificationLieurs(service);
+        } catch (IOException e) {
+            Journal.erreur("Erreur lors de la suppression du service: ", e.getMessage());
+        }
+    }
+
+    /**
+     * Désabonnement d'un service qui s'arrête (service -> lieur): le service est retiré immédiatement de la liste avec
+     * son bail et sa vérification éventuelle, les autres lieurs en sont informés. La confirmation est envoyée même si
+     * le service n'était plus dans la liste, le service peut donc renvoyer son désabonnement sans risque.
+     *
+     * @param desabonnement
+     * @param expediteur
+     * @throws IOException
+     */
+    private void desabonnementService(ByteBuffer desabonnement, InetSocketAddress expediteur) throws IOException {
+        int idService = Codec.lireIdService(desabonnement);
+        Service service = new Service(idService, Codec.ipVersEntier(expediteur.getAddress()), expediteur.getPort());
+        Journal.info("Désabonnement du service: ", service);
+        nbDesabonnements.increment();
+
+        verificationsEnCours.remove(expediteur, service);
+        suppressionServiceEtNotificationLieurs(service);
+        envoyer(Codec.encoderConfirmationDesabonnement(tamponsReponse.get(), idService), expediteur);
+    }
+
+    /**
+     * Envoi des métriques du lieur, à partir de l'index demandé (voir Metriques)
+     *
+     * @param demande
+     * @param expediteur
+     * @throws IOException
+     */
+    private void envoiStatistiques(ByteBuffer demande, InetSocketAddress expediteur) throws IOException {
+        int depuis = demande.remaining() >= 2 ? Codec.lireNombre(demande) : 0;
+        envoyer(metriques.encoderReponseStatistiques(tamponsReponse.get(), depuis), expediteur);
     }
 }
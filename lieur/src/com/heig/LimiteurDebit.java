@@ -0,0 +1,124 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limitation du débit des messages par adresse IP d'expéditeur et par type de message, avec un seau à jetons par
+ * couple (adresse, type). Par défaut le port n'en fait pas partie: un expéditeur qui change de port à chaque message
+ * garde le même seau. Les types limités par port ont un seau par couple (adresse IP et port, type), pour les messages
+ * des services dont l'adresse complète est l'identité: plusieurs services d'une même machine ont chacun leur limite.
+ * Un type peut envoyer parSeconde messages par seconde en moyenne, avec des rafales d'au plus rafale messages.
+ *
+ * Chaque seau est représenté par un seul long, l'instant théorique auquel le seau sera plein à nouveau (algorithme
+ * GCRA, équivalent au seau à jetons): un message est accepté si cet instant n'est pas plus loin que la durée de la
+ * rafale, il le repousse alors de l'intervalle entre deux messages. Les seaux sont gardés dans une table de taille
+ * fixe où chaque clé n'a qu'une case possible. Les clés qui tombent dans la même case partagent son seau: une case
+ * n'est jamais remise à plein par l'arrivée d'une autre clé, la limite ne peut donc qu'être plus stricte pour les clés
+ * en collision. La table ne grandit jamais, quel que soit le nombre d'expéditeurs. Les cases sont protégées par un
+ * ensemble de verrous, une case étant toujours protégée par le même verrou.
+ */
+class LimiteurDebit {
+    private static final int NB_VERROUS = 64;               // Nombre de verrous, une puissance de 2
+
+    private final long[] pleins;                            // Instant en nanosecondes auquel le seau de la case est plein
+    private final int masque;
+    private final Object[] verrous = new Object[NB_VERROUS];
+    private final long[] intervalles = new long[Protocole.values().length]; // Intervalle entre deux messages par type, 0 sans limite
+    private final long[] rafales = new long[Protocole.values().length];     // Durée d'une rafale complète par type
+    private final boolean[] parPort = new boolean[Protocole.values().length]; // Vrai si le port fait partie de la clé du type
+
+    /**
+     * Création d'un limiteur sans aucune limite
+     *
+     * @param capacite nombre de seaux, arrondi à la puissance de 2 supérieure
+     */
+    LimiteurDebit(int capacite) {
+        int taille = Integer.highestOneBit(Math.max(1, capacite - 1)) << 1;
+        pleins = new long[taille];
+        Arrays.fill(pleins, Long.MIN_VALUE);                // Une case jamais utilisée a un seau plein
+        masque = taille - 1;
+        for (int i = 0; i < NB_VERROUS; i++) {
+            verrous[i] = new Object();
+        }
+    }
+
+    /**
+     * Fixe la limite d'un type de message, à faire avant de partager le limiteur entre les threads
+     *
+     * @param type
+     * @param parSeconde nombre moyen de messages par seconde et par expéditeur, 0 pour aucune limite
+     * @param rafale nombre de messages acceptés d'affilée
+     */
+    void limiter(Protocole type, int parSeconde, int rafale) {
+        limiter(type, parSeconde, rafale, false);
+    }
+
+    /**
+     * Fixe la limite d'un type de message, à faire avant de partager le limiteur entre les threads
+     *
+     * @param type
+     * @param parSeconde nombre moyen de messages par seconde et par expéditeur, 0 pour aucune limite
+     * @param rafale nombre de messages acceptés d'affilée
+     * @param parPort vrai pour limiter chaque adresse IP et port séparément, faux pour limiter chaque adresse IP
+     */
+    void limiter(Protocole type, int parSeconde, int rafale, boolean parPort) {
+        this.parPort[type.ordinal()] = parPort;
+        if (parSeconde <= 0) {
+            intervalles[type.ordinal()] = 0;
+            return;
+        }
+        long intervalle = Math.max(1, TimeUnit.SECONDS.toNanos(1) / parSeconde);
+        intervalles[type.ordinal()] = intervalle;
+        rafales[type.ordinal()] = intervalle * Math.max(1, rafale);
+    }
+
+    /**
+     * Indique si le type de message a une limite
+     *
+     * @param type
+     * @return
+     */
+    boolean estLimite(Protocole type) {
+        return intervalles[type.ordinal()] != 0;
+    }
+
+    /**
+     * Prend un jeton pour un message reçu
+     *
+     * @param ip adresse de l'expéditeur
+     * @param port port de l'expéditeur, ignoré si le type n'est pas limité par port
+     * @param type type du message
+     * @param maintenant instant de réception en nanosecondes
+     * @return 0 si le message est accepté, sinon le temps en nanosecondes avant qu'un jeton soit disponible
+     */
+    long prendre(int ip, int port, Protocole type, long maintenant) {
+        long intervalle = intervalles[type.ordinal()];
+        if (intervalle == 0) {
+            return 0;
+        }
+        long rafale = rafales[type.ordinal()];
+        long expediteur = parPort[type.ordinal()] ? (ip & 0xFFFFFFFFL) << 16 | port : ip & 0xFFFFFFFFL;
+        long cle = expediteur << 8 | type.ordinal();
+        int index = index(cle);
+        synchronized (verrous[index & (NB_VERROUS - 1)]) {
+            long plein = Math.max(pleins[index], maintenant);
+            long attente = plein + intervalle - rafale - maintenant;
+            if (attente > 0) {
+                return attente;
+            }
+            pleins[index] = plein + intervalle;
+            return 0;
+        }
+    }
+
+    private int index(long cle) {
+        long h = cle * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & masque;
+    }
+}
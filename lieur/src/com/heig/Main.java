@@ -6,29 +6,67 @@
 package com.heig;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Cette classe permet de créer un nouveau lieur et de le démarrer.
  *
  * Pour appeler le programme lieur, il faut lui passer en paramêtre son port principal, son port pour la vérification de l'existence
- * d'un serveur et la listes des autres lieurs
+ * d'un serveur et la listes des autres lieurs. Des options de la forme --nom valeur peuvent être ajoutées:
+ *
+ * --fenetre-replication : durée en millisecondes pendant laquelle les modifications sont regroupées avant d'être
+ *                         envoyées aux autres lieurs (20 par défaut, 0 pour les envoyer immédiatement)
+ * --multicast            : adresse et port du groupe multicast des lieurs (ip:port), les ajouts et suppressions sont
+ *                         alors publiés sur le groupe au lieu d'être envoyés à chaque lieur
+ * --interface-multicast  : nom de l'interface réseau utilisée pour le multicast, par exemple lo pour tester sur une
+ *                         seule machine
+ * --repertoire           : répertoire de sauvegarde du registre, le lieur y reprend son état à son redémarrage
+ * --partition            : facteur de réplication du mode partitionné, chaque id de service n'est gardé que par ce
+ *                         nombre de lieurs (0 par défaut, tous les lieurs gardent tous les services)
+ * --adresse              : IP de ce lieur telle qu'elle figure dans la liste des autres lieurs, pour sa place dans
+ *                         l'anneau du mode partitionné (127.0.0.1 par défaut)
+ * --limite-demandes      : demandes de service acceptées par seconde et par adresse IP (2000 par défaut, 0 sans limite)
+ * --limite-plaintes      : plaintes SERVICE_EXISTE_PAS acceptées par seconde et par adresse IP (5 par défaut)
+ * --limite-abonnements   : abonnements et désabonnements acceptés par seconde et par service (2 par défaut)
+ * --limite-battements    : battements acceptés par seconde et par service (10 par défaut, 0 sans limite)
+ * --journal              : niveau du journal: erreur, avertissement, info (par défaut) ou debug
  *
  * Par example :
  *
- * java serveur.jar 1111 1112 127.0.0.1 2222 127.0.0.1 3333
+ * java serveur.jar 1111 1112 127.0.0.1 2222 127.0.0.1 3333 --fenetre-replication 50
  */
 public class Main {
 
     /**
      * Création et démarrage d'un lieur. Les paramêtres fournis doivent être dans cet ordre :
-     * <port principal> <port de vérification> [<ip> <port>] (liste des lieurs).
+     * <port principal> <port de vérification> [<ip> <port>] (liste des lieurs) [--option valeur].
      *
      * @param args
      * @throws InterruptedException
      * @throws IOException
      */
     public static void main(String[] args) throws InterruptedException, IOException {
+        // Séparation des options et des paramètres
+        Map<String, String> options = new HashMap<>();
+        List<String> parametres = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                parametres.add(args[i]);
+            }
+        }
+        args = parametres.toArray(new String[0]);
+        if (options.containsKey("journal")) {
+            Journal.setNiveau(Journal.Niveau.valueOf(options.get("journal").toUpperCase(Locale.ROOT)));
+        }
+
         // Récupération du port et de l'id
         if (args.length < 2) {
             System.out.println("Il faut fournir au moins le port principal et le port de verification");
@@ -45,6 +83,35 @@ public class Main {
 
         // Création et démarrage du lieur
         LieurServeur lieurServeur = new LieurServeur(port, portVerification, lieurs.toArray(new Lieur[0]));
+        if (options.containsKey("fenetre-replication")) {
+            lieurServeur.setFenetreReplication(Integer.parseInt(options.get("fenetre-replication")));
+        }
+        if (options.containsKey("multicast")) {
+            String[] groupe = options.get("multicast").split(":");
+            lieurServeur.setGroupeMulticast(new InetSocketAddress(groupe[0], Integer.parseInt(groupe[1])));
+            lieurServeur.setInterfaceMulticast(options.get("interface-multicast"));
+        }
+        if (options.containsKey("repertoire")) {
+            lieurServeur.setRepertoire(Paths.get(options.get("repertoire")));
+        }
+        if (options.containsKey("partition")) {
+            lieurServeur.setFacteurReplication(Integer.parseInt(options.get("partition")));
+        }
+        if (options.containsKey("adresse")) {
+            lieurServeur.setAdresse(options.get("adresse"));
+        }
+        if (options.containsKey("limite-demandes")) {
+            lieurServeur.setLimiteDemandes(Integer.parseInt(options.get("limite-demandes")));
+        }
+        if (options.containsKey("limite-plaintes")) {
+            lieurServeur.setLimitePlaintes(Integer.parseInt(options.get("limite-plaintes")));
+        }
+        if (options.containsKey("limite-abonnements")) {
+            lieurServeur.setLimiteAbonnements(Integer.parseInt(options.get("limite-abonnements")));
+        }
+        if (options.containsKey("limite-battements")) {
+            lieurServeur.setLimiteBattements(Integer.parseInt(options.get("limite-battements")));
+        }
         lieurServeur.demarrer();
     }
 }
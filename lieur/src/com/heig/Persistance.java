@@ -0,0 +1,281 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sauvegarde du registre des services sur disque, pour qu'un lieur redémarré retrouve immédiatement son état.
+ *
+ * La sauvegarde est faite d'un instantané du registre écrit périodiquement et d'un journal des modifications faites
+ * depuis cet instantané. L'instantané contient l'id du lieur, ses compteurs (séquence et horloge de Lamport), son
+ * vecteur de versions et toutes les entrées du registre, suppressions comprises. Il est écrit au travers d'un fichier
+ * projeté en mémoire dans un fichier temporaire, puis renommé: un instantané est donc toujours complet. Le journal
+ * est une suite d'entrées ajoutées à la fin du fichier à chaque modification.
+ *
+ * Chaque entrée sauvegardée est une entrée de 28 bytes (voir EntreeRegistre) suivie de la durée du bail armé par ce
+ * lieur (4), 0 si le service n'a pas de bail. Un changement de bail sans modification du registre est journalisé en
+ * répétant l'entrée courante du service avec son nouveau bail.
+ *
+ * Chaque instantané commence une nouvelle génération du journal (registre.journal.<génération>): les modifications
+ * faites pendant l'écriture de l'instantané vont dans le journal de la nouvelle génération et les journaux plus
+ * anciens sont supprimés une fois l'instantané renommé. A la restauration, l'instantané est relu puis les journaux de
+ * sa génération et des suivantes sont rejoués. Une entrée incomplète en fin de journal (arrêt pendant l'écriture) est
+ * ignorée.
+ *
+ * Le journal est écrit sans forcer l'écriture sur le disque à chaque modification: il survit à l'arrêt du lieur, pas
+ * forcément à celui de la machine. Les modifications perdues seront récupérées auprès des autres lieurs par l'échange
+ * des versions.
+ *
+ * Format de l'instantané:
+ * [magique (4)][id du lieur (4)][génération (8)][séquence (8)][lamport (8)][nb origines (4)][nb entrées (4)]
+ * [origine (4)][séquence (8)]* [entrée (28)][bail (4)]*
+ *
+ * Un instantané du format précédent, sans les baux, est ignoré avec ses journaux: le registre est alors récupéré
+ * auprès des autres lieurs.
+ */
+class Persistance {
+    private static final int MAGIQUE = 0x4C494556;              // Marque d'un fichier d'instantané
+    private static final int MAGIQUE_SANS_BAUX = 0x4C494555;    // Marque d'un instantané du format précédent
+    private static final int TAILLE_ENTREE_SAUVEGARDEE = Codec.TAILLE_ENTREE + 4; // Entrée suivie de son bail
+    private static final int TAILLE_ENTETE_INSTANTANE = 40;     // Taille de l'en-tête de l'instantané
+    private static final String NOM_INSTANTANE = "registre.instantane";
+    private static final String PREFIXE_JOURNAL = "registre.journal.";
+
+    private final Path repertoire;                              // Répertoire de la sauvegarde
+    private final ByteBuffer tamponJournal = Codec.allouer(TAILLE_ENTREE_SAUVEGARDEE); // Tampon d'écriture d'une entrée
+    private FileChannel journal;                                // Journal de la génération courante
+    private long generation = 0;                                // Génération du journal courant
+
+    /**
+     * Etat du registre au moment d'un instantané
+     */
+    static class Sauvegarde {
+        final int idLieur;
+        final long generation;
+        final long sequence;
+        final long lamport;
+        final Map<Integer, Long> vecteur;
+        final List<EntreeRegistre> entrees;
+
+        Sauvegarde(int idLieur, long generation, long sequence, long lamport, Map<Integer, Long> vecteur, List<EntreeRegistre> entrees) {
+            this.idLieur = idLieur;
+            this.generation = generation;
+            this.sequence = sequence;
+            this.lamport = lamport;
+            this.vecteur = vecteur;
+            this.entrees = entrees;
+        }
+    }
+
+    /**
+     * Création de la sauvegarde dans le répertoire donné, le répertoire est créé s'il n'existe pas
+     *
+     * @param repertoire
+     * @throws IOException
+     */
+    Persistance(Path repertoire) throws IOException {
+        this.repertoire = repertoire;
+        Files.createDirectories(repertoire);
+    }
+
+    /**
+     * Lit le dernier instantané écrit
+     *
+     * @return l'instantané ou null s'il n'y en a pas
+     * @throws IOException si l'instantané est illisible
+     */
+    Sauvegarde lireInstantane() throws IOException {
+        Path fichier = repertoire.resolve(NOM_INSTANTANE);
+        if (!Files.exists(fichier)) {
+            return null;
+        }
+        try (FileChannel canal = FileChannel.open(fichier, StandardOpenOption.READ)) {
+            MappedByteBuffer tampon = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+            tampon.order(Codec.ORDRE);
+            int magique = tampon.remaining() < TAILLE_ENTETE_INSTANTANE ? 0 : tampon.getInt();
+            if (magique == MAGIQUE_SANS_BAUX) {
+                Journal.avertissement("Instantané d'un format précédent ignoré: ", fichier);
+                for (Path journalGeneration : journaux().values()) {
+                    Files.deleteIfExists(journalGeneration);
+                }
+                return null;
+            }
+            if (magique != MAGIQUE) {
+                throw new IOException("Le fichier " + fichier + " n'est pas un instantané du registre");
+            }
+            int idLieur = tampon.getInt();
+            long generationInstantane = tampon.getLong();
+            long sequence = tampon.getLong();
+            long lamport = tampon.getLong();
+            int nbOrigines = tampon.getInt();
+            int nbEntrees = tampon.getInt();
+            Map<Integer, Long> vecteur = new TreeMap<>();
+            for (int i = 0; i < nbOrigines; i++) {
+                vecteur.put(tampon.getInt(), tampon.getLong());
+            }
+            List<EntreeRegistre> entrees = new ArrayList<>(nbEntrees);
+            for (int i = 0; i < nbEntrees; i++) {
+                entrees.add(lireEntree(tampon));
+            }
+            generation = Math.max(generation, generationInstantane);
+            return new Sauvegarde(idLieur, generationInstantane, sequence, lamport, vecteur, entrees);
+        }
+    }
+
+    /**
+     * Lit les entrées des journaux à partir de la génération donnée, dans l'ordre où elles ont été écrites
+     *
+     * @param depuis génération de l'instantané restauré
+     * @return
+     * @throws IOException
+     */
+    List<EntreeRegistre> lireJournal(long depuis) throws IOException {
+        List<EntreeRegistre> entrees = new ArrayList<>();
+        for (Map.Entry<Long, Path> journalGeneration : journaux().entrySet()) {
+            generation = Math.max(generation, journalGeneration.getKey());
+            if (journalGeneration.getKey() < depuis) {
+                continue;
+            }
+            try (FileChannel canal = FileChannel.open(journalGeneration.getValue(), StandardOpenOption.READ)) {
+                MappedByteBuffer tampon = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+                tampon.order(Codec.ORDRE);
+                while (tampon.remaining() >= TAILLE_ENTREE_SAUVEGARDEE) {
+                    entrees.add(lireEntree(tampon));
+                }
+            }
+        }
+        return entrees;
+    }
+
+    /**
+     * Ferme le journal courant et commence celui d'une nouvelle génération. Appelée sous le verrou du registre au
+     * moment de l'instantané, les modifications suivantes vont donc dans le nouveau journal.
+     *
+     * @return la nouvelle génération
+     * @throws IOException
+     */
+    synchronized long nouvelleGeneration() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        generation++;
+        journal = FileChannel.open(repertoire.resolve(PREFIXE_JOURNAL + generation),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return generation;
+    }
+
+    /**
+     * Ajoute une modification du registre à la fin du journal courant. Appelée sous le verrou du registre, les
+     * entrées sont donc écrites dans l'ordre des modifications.
+     *
+     * @param entree
+     */
+    synchronized void journaliser(EntreeRegistre entree) {
+        if (journal == null) {
+            return;
+        }
+        tamponJournal.clear();
+        ecrireEntree(tamponJournal, entree);
+        tamponJournal.flip();
+        try {
+            while (tamponJournal.hasRemaining()) {
+                journal.write(tamponJournal);
+            }
+        } catch (IOException e) {
+            Journal.erreur("Erreur lors de l'écriture du journal: ", e.getMessage());
+        }
+    }
+
+    /**
+     * Ecrit l'instantané puis supprime les journaux des générations précédentes, dont les modifications sont
+     * contenues dans l'instantané
+     *
+     * @param sauvegarde
+     * @throws IOException
+     */
+    void ecrireInstantane(Sauvegarde sauvegarde) throws IOException {
+        Path temporaire = repertoire.resolve(NOM_INSTANTANE + ".tmp");
+        long taille = TAILLE_ENTETE_INSTANTANE + (long) sauvegarde.vecteur.size() * Codec.TAILLE_VERSION
+                      + (long) sauvegarde.entrees.size() * TAILLE_ENTREE_SAUVEGARDEE;
+        try (FileChannel canal = FileChannel.open(temporaire, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer tampon = canal.map(FileChannel.MapMode.READ_WRITE, 0, taille);
+            tampon.order(Codec.ORDRE);
+            tampon.putInt(MAGIQUE).putInt(sauvegarde.idLieur).putLong(sauvegarde.generation)
+                  .putLong(sauvegarde.sequence).putLong(sauvegarde.lamport)
+                  .putInt(sauvegarde.vecteur.size()).putInt(sauvegarde.entrees.size());
+            for (Map.Entry<Integer, Long> version : sauvegarde.vecteur.entrySet()) {
+                Codec.ecrireVersion(tampon, version.getKey(), version.getValue());
+            }
+            for (EntreeRegistre entree : sauvegarde.entrees) {
+                ecrireEntree(tampon, entree);
+            }
+            tampon.force();
+        }
+        Files.move(temporaire, repertoire.resolve(NOM_INSTANTANE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (Map.Entry<Long, Path> journalGeneration : journaux().entrySet()) {
+            if (journalGeneration.getKey() < sauvegarde.generation) {
+                Files.deleteIfExists(journalGeneration.getValue());
+            }
+        }
+    }
+
+    /**
+     * Ecrit une entrée sauvegardée: l'entrée suivie de la durée de son bail
+     *
+     * @param tampon
+     * @param entree
+     */
+    private static void ecrireEntree(ByteBuffer tampon, EntreeRegistre entree) {
+        entree.ecrire(tampon);
+        tampon.putInt(entree.bail);
+    }
+
+    /**
+     * Lit une entrée sauvegardée
+     *
+     * @param tampon
+     * @return
+     */
+    private static EntreeRegistre lireEntree(ByteBuffer tampon) {
+        EntreeRegistre entree = EntreeRegistre.lire(tampon);
+        return entree.avecBail(tampon.getInt());
+    }
+
+    /**
+     * Retourne les fichiers de journal du répertoire, triés par génération
+     *
+     * @return
+     * @throws IOException
+     */
+    private TreeMap<Long, Path> journaux() throws IOException {
+        TreeMap<Long, Path> journaux = new TreeMap<>();
+        try (DirectoryStream<Path> fichiers = Files.newDirectoryStream(repertoire, PREFIXE_JOURNAL + "*")) {
+            for (Path fichier : fichiers) {
+                try {
+                    journaux.put(Long.parseLong(fichier.getFileName().toString().substring(PREFIXE_JOURNAL.length())), fichier);
+                } catch (NumberFormatException e) {
+                    // Fichier qui n'est pas un journal, ignoré
+                }
+            }
+        }
+        return journaux;
+    }
+}
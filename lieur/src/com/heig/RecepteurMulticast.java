@@ -0,0 +1,144 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ecoute les lots de modifications publiés par les lieurs sur un groupe multicast et les applique au registre. Le
+ * récepteur tourne dans son propre thread, le registre étant synchronisé il peut être modifié en même temps par les
+ * travailleurs du lieur.
+ *
+ * Comme les messages entre lieurs reçus par le lieur, les lots ne sont appliqués que s'ils viennent d'un lieur de la
+ * liste: n'importe quel hôte peut envoyer sur le groupe. Les lots publiés par le lieur lui-même sont aussi reçus, ils
+ * sont ignorés sans être comptés comme venant d'un lieur inconnu.
+ */
+class RecepteurMulticast implements Runnable {
+    private final InetSocketAddress groupe;       // Adresse et port du groupe multicast
+    private final NetworkInterface interfaceReseau; // Interface sur laquelle le groupe est rejoint
+    private final RegistreServices services;      // Registre auquel les modifications sont appliquées
+    private final Set<InetSocketAddress> lieursConnus; // Seuls expéditeurs dont les lots sont appliqués
+    private final Set<InetSocketAddress> propresAdresses = new HashSet<>(); // Adresses des lots publiés par ce lieur
+    private final LongAdder nbLieursInconnus;     // Lots refusés, expéditeur hors de la liste des lieurs
+    private final int tailleMaxPaquet;            // Taille maximale d'un lot
+    private DatagramChannel canal;                // Canal abonné au groupe
+
+    /**
+     * Création d'un récepteur pour le groupe donné
+     *
+     * @param groupe
+     * @param interfaceReseau
+     * @param services
+     * @param lieursConnus adresses des autres lieurs, qui publient depuis leur port principal
+     * @param port port principal de ce lieur, depuis lequel il publie sur le groupe
+     * @param nbLieursInconnus
+     * @param tailleMaxPaquet
+     */
+    RecepteurMulticast(InetSocketAddress groupe, NetworkInterface interfaceReseau, RegistreServices services,
+                       Set<InetSocketAddress> lieursConnus, int port, LongAdder nbLieursInconnus, int tailleMaxPaquet) {
+        this.groupe = groupe;
+        this.interfaceReseau = interfaceReseau;
+        this.services = services;
+        this.lieursConnus = lieursConnus;
+        this.nbLieursInconnus = nbLieursInconnus;
+        this.tailleMaxPaquet = tailleMaxPaquet;
+        for (InetAddress adresse : Collections.list(interfaceReseau.getInetAddresses())) {
+            propresAdresses.add(new InetSocketAddress(adresse, port));
+        }
+    }
+
+    /**
+     * Rejoint le groupe et démarre le thread d'écoute. Plusieurs lieurs d'une même machine peuvent écouter le même
+     * groupe.
+     *
+     * @throws IOException
+     */
+    void demarrer() throws IOException {
+        canal = DatagramChannel.open(StandardProtocolFamily.INET);
+        canal.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        canal.bind(new InetSocketAddress(groupe.getPort()));
+        canal.join(groupe.getAddress(), interfaceReseau);
+
+        Thread thread = new Thread(this, "recepteur-multicast");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Réception et application des lots de modifications
+     */
+    @Override
+    public void run() {
+        ByteBuffer tampon = Codec.allouer(tailleMaxPaquet);
+        while (true) {
+            try {
+                tampon.clear();
+                InetSocketAddress expediteur = (InetSocketAddress) canal.receive(tampon);
+                tampon.flip();
+                if (!lieursConnus.contains(expediteur)) {
+                    if (!propresAdresses.contains(expediteur)) {
+                        nbLieursInconnus.increment();
+                    }
+                    continue;
+                }
+                if (tampon.remaining() < Codec.TAILLE_ENTETE_LOT || Codec.lireType(tampon) != Protocole.LOT_MODIFICATIONS) {
+                    continue;
+                }
+                services.appliquerLot(Replicateur.lireLot(tampon));
+            } catch (IOException e) {
+                Journal.erreur("Erreur lors de la réception d'un lot multicast: ", e.getMessage());
+                if (!canal.isOpen()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Choix de l'interface réseau pour le multicast. Si aucun nom n'est donné, la première interface active qui
+     * supporte le multicast est choisie, à défaut l'interface de loopback.
+     *
+     * @param nom nom de l'interface ou null
+     * @return
+     * @throws SocketException
+     */
+    static NetworkInterface choisirInterface(String nom) throws SocketException {
+        if (nom != null) {
+            NetworkInterface interfaceReseau = NetworkInterface.getByName(nom);
+            if (interfaceReseau == null) {
+                throw new SocketException("Interface réseau inconnue: " + nom);
+            }
+            return interfaceReseau;
+        }
+        NetworkInterface loopback = null;
+        for (NetworkInterface interfaceReseau : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!interfaceReseau.isUp()) {
+                continue;
+            }
+            if (interfaceReseau.isLoopback()) {
+                loopback = interfaceReseau;
+            } else if (interfaceReseau.supportsMulticast()) {
+                return interfaceReseau;
+            }
+        }
+        if (loopback == null) {
+            throw new SocketException("Aucune interface réseau pour le multicast");
+        }
+        return loopback;
+    }
+}
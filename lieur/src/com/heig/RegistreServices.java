@@ -0,0 +1,608 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Registre des services connus par le lieur. Les services sont rangés par id de service, l'id étant transmis sur un
+ * byte il y a au plus 256 listes. Chaque liste est doublement chaînée et triée du service utilisé le moins récemment
+ * au service utilisé le plus récemment. Un index par clé de service (id, IP et port regroupés dans un long, voir
+ * Service) permet de retrouver directement le maillon d'un service, sans allocation.
+ *
+ * Le choix d'un service, l'ajout, la suppression et la recherche se font donc en temps constant. L'instant de
+ * dernière utilisation est donné par une horloge logique (un compteur) propre au registre.
+ *
+ * Les serveurs indiquent leur charge (demandes par seconde) dans leurs battements. Le choix se fait entre deux
+ * candidats, le service utilisé le moins récemment et le suivant dans la liste: le suivant n'est préféré que si sa
+ * charge est nettement plus faible, l'écart minimal évite que les lieurs basculent d'un serveur à l'autre à chaque
+ * battement. Comme la charge est mesurée par le serveur, elle tient compte des demandes reçues de tous les lieurs.
+ * Sans charge connue pour les deux candidats, le choix reste celui du moins récemment utilisé.
+ *
+ * Chaque modification est versionnée (voir EntreeRegistre). Le registre tient un vecteur de versions qui indique,
+ * pour chaque lieur d'origine, jusqu'à quel numéro de séquence toutes ses modifications ont été intégrées. Les
+ * services supprimés sont gardés comme suppressions pendant un certain temps pour pouvoir les transmettre aux autres
+ * lieurs. Les maillons sont aussi rangés par origine et par séquence pour retrouver rapidement les modifications
+ * qu'un autre lieur n'a pas encore intégrées.
+ *
+ * Si le registre est sauvegardé sur disque (voir Persistance), chaque modification est ajoutée au journal sous le
+ * verrou du registre, le journal suit donc l'ordre des modifications.
+ *
+ * Toutes les méthodes sont synchronisées car le registre est partagé entre les travailleurs du lieur.
+ */
+class RegistreServices {
+    private static final int ECART_MIN_CHARGE = 10;                           // Ecart de charge minimal pour écarter le moins récemment utilisé
+    private final ListeServices[] parIdService = new ListeServices[256];        // Listes LRU par id de service
+    private final TableHachageLong<Maillon> maillons = new TableHachageLong<>(1024); // Index des services par clé
+    private final Map<Integer, TreeMap<Long, Maillon>> parOrigine = new HashMap<>(); // Maillons par origine et séquence
+    private final Map<Integer, Long> vecteurVersions = new HashMap<>();       // Séquence intégrée par origine
+    private final int idLieur;                                                // Origine des modifications locales
+    private long sequence = 0;                                                // Séquence des modifications locales
+    private long lamport = 0;                                                 // Horloge de Lamport des modifications
+    private long horloge = 0;                                                 // Horloge logique des utilisations
+    private Persistance persistance;                                          // Sauvegarde du registre, null si le registre n'est pas sauvegardé
+
+    /**
+     * Maillon d'une liste de services, contient la dernière version connue du service
+     */
+    private static class Maillon {
+        final Service service;
+        boolean present;
+        int origine;
+        long sequence;
+        long lamport;
+        long instantSuppression;
+        int charge = -1;
+        int bail;
+        Maillon precedent;
+        Maillon suivant;
+
+        Maillon(Service service) {
+            this.service = service;
+        }
+
+        EntreeRegistre entree() {
+            return new EntreeRegistre(service, present, origine, sequence, lamport, bail);
+        }
+    }
+
+    /**
+     * Liste doublement chaînée des services d'un même id, la tête est le service utilisé le moins récemment
+     */
+    private static class ListeServices {
+        Maillon tete;
+        Maillon queue;
+        int taille;
+
+        void ajouterEnTete(Maillon maillon) {
+            taille++;
+            maillon.precedent = null;
+            maillon.suivant = tete;
+            if (tete == null) {
+                queue = maillon;
+            } else {
+                tete.precedent = maillon;
+            }
+            tete = maillon;
+        }
+
+        void ajouterEnQueue(Maillon maillon) {
+            taille++;
+            maillon.precedent = queue;
+            maillon.suivant = null;
+            if (queue == null) {
+                tete = maillon;
+            } else {
+                queue.suivant = maillon;
+            }
+            queue = maillon;
+        }
+
+        void retirer(Maillon maillon) {
+            taille--;
+            if (maillon.precedent == null) {
+                tete = maillon.suivant;
+            } else {
+                maillon.precedent.suivant = maillon.suivant;
+            }
+            if (maillon.suivant == null) {
+                queue = maillon.precedent;
+            } else {
+                maillon.suivant.precedent = maillon.precedent;
+            }
+            maillon.precedent = null;
+            maillon.suivant = null;
+        }
+    }
+
+    /**
+     * Modifications d'une origine qu'un autre lieur n'a pas encore intégrées, de la séquence de (exclue) à la
+     * séquence a (inclue).
+     */
+    static class Delta {
+        final int origine;
+        final long de;
+        final long a;
+        final List<EntreeRegistre> entrees;
+
+        Delta(int origine, long de, long a, List<EntreeRegistre> entrees) {
+            this.origine = origine;
+            this.de = de;
+            this.a = a;
+            this.entrees = entrees;
+        }
+    }
+
+    /**
+     * Copie cohérente des services présents et du vecteur de versions
+     */
+    static class Instantane {
+        final List<EntreeRegistre> entrees;
+        final Map<Integer, Long> vecteur;
+
+        Instantane(List<EntreeRegistre> entrees, Map<Integer, Long> vecteur) {
+            this.entrees = entrees;
+            this.vecteur = vecteur;
+        }
+    }
+
+    /**
+     * Création d'un registre vide pour le lieur d'id donné
+     *
+     * @param idLieur
+     */
+    RegistreServices(int idLieur) {
+        this.idLieur = idLieur;
+    }
+
+    /**
+     * Active la sauvegarde du registre: les modifications suivantes sont ajoutées au journal
+     *
+     * @param persistance
+     */
+    synchronized void setPersistance(Persistance persistance) {
+        this.persistance = persistance;
+    }
+
+    /**
+     * Restaure le registre depuis un instantané et les modifications journalisées après lui. Les modifications du
+     * journal sont appliquées comme si elles venaient d'être reçues, le vecteur de versions n'avance donc que sur des
+     * séquences continues et les modifications manquantes seront récupérées auprès des autres lieurs. Le bail d'une
+     * entrée est repris si elle est la version courante de son service.
+     *
+     * @param sauvegarde
+     * @param journal
+     */
+    synchronized void restaurer(Persistance.Sauvegarde sauvegarde, List<EntreeRegistre> journal) {
+        for (EntreeRegistre entree : sauvegarde.entrees) {
+            modifier(entree.service, entree.present, entree.origine, entree.sequence, entree.lamport);
+            restaurerBail(entree);
+        }
+        vecteurVersions.putAll(sauvegarde.vecteur);
+        sequence = sauvegarde.sequence;
+        lamport = sauvegarde.lamport;
+        for (EntreeRegistre entree : journal) {
+            appliquer(entree);
+            restaurerBail(entree);
+        }
+        // Les séquences locales déjà utilisées ne doivent jamais être réutilisées
+        sequence = Math.max(sequence, sequenceIntegree(idLieur));
+    }
+
+    /**
+     * Reprend le bail d'une entrée restaurée si elle est la version courante d'un service présent
+     *
+     * @param entree
+     */
+    private void restaurerBail(EntreeRegistre entree) {
+        Maillon maillon = maillons.get(entree.service.cle());
+        if (maillon != null && maillon.present && maillon.lamport == entree.lamport && maillon.origine == entree.origine) {
+            maillon.bail = entree.bail;
+        }
+    }
+
+    /**
+     * Copie l'état complet du registre, suppressions comprises, pour l'écrire dans un instantané. Le journal passe à
+     * une nouvelle génération au même moment, sous le verrou du registre.
+     *
+     * @return
+     * @throws IOException
+     */
+    synchronized Persistance.Sauvegarde sauvegarder() throws IOException {
+        List<EntreeRegistre> entrees = new ArrayList<>(maillons.taille());
+        maillons.pourChaque(maillon -> entrees.add(maillon.entree()));
+        long generation = persistance.nouvelleGeneration();
+        return new Persistance.Sauvegarde(idLieur, generation, sequence, lamport, new HashMap<>(vecteurVersions), entrees);
+    }
+
+    /**
+     * Ajoute un service au registre suite à une souscription reçue par ce lieur. Un nouveau service est placé en
+     * tête de sa liste afin d'être le prochain service choisi.
+     *
+     * @param service
+     * @return l'entrée à transmettre aux autres lieurs ou null si le service était déjà présent
+     */
+    synchronized EntreeRegistre ajouterLocal(Service service) {
+        Maillon maillon = maillons.get(service.cle());
+        if (maillon != null && maillon.present) {
+            return null;
+        }
+        sequence++;
+        vecteurVersions.put(idLieur, sequence);
+        return modifier(service, true, idLieur, sequence, ++lamport);
+    }
+
+    /**
+     * Supprime un service du registre suite à une vérification faite par ce lieur
+     *
+     * @param service
+     * @return l'entrée à transmettre aux autres lieurs ou null si le service n'était pas présent
+     */
+    synchronized EntreeRegistre supprimerLocal(Service service) {
+        Maillon maillon = maillons.get(service.cle());
+        if (maillon == null || !maillon.present) {
+            return null;
+        }
+        sequence++;
+        vecteurVersions.put(idLieur, sequence);
+        return modifier(service, false, idLieur, sequence, ++lamport);
+    }
+
+    /**
+     * Applique une modification reçue d'un autre lieur. Une modification déjà intégrée est ignorée, une modification
+     * plus ancienne que la version connue du service ne change pas le registre. Le vecteur de versions n'avance que si
+     * la modification suit directement la dernière séquence intégrée de son origine.
+     *
+     * @param entree
+     * @return vrai si le registre a été modifié
+     */
+    synchronized boolean appliquer(EntreeRegistre entree) {
+        long integree = sequenceIntegree(entree.origine);
+        if (entree.sequence <= integree) {
+            return false;
+        }
+        lamport = Math.max(lamport, entree.lamport);
+        if (entree.sequence == integree + 1) {
+            vecteurVersions.put(entree.origine, entree.sequence);
+        }
+
+        Maillon maillon = maillons.get(entree.service.cle());
+        if (maillon != null && !entree.plusRecenteQue(maillon.lamport, maillon.origine)) {
+            return false;
+        }
+        modifier(entree.service, entree.present, entree.origine, entree.sequence, entree.lamport);
+        return true;
+    }
+
+    /**
+     * Applique en une fois un lot de modifications reçu d'un autre lieur
+     *
+     * @param entrees
+     */
+    synchronized void appliquerLot(List<EntreeRegistre> entrees) {
+        for (EntreeRegistre entree : entrees) {
+            appliquer(entree);
+        }
+    }
+
+    /**
+     * Avance le vecteur de versions d'une origine après l'intégration de toutes ses modifications de la séquence de
+     * (exclue) à la séquence a (inclue). Rien n'est fait si des modifications précédant la séquence de manquent.
+     *
+     * @param origine
+     * @param de
+     * @param a
+     */
+    synchronized void avancerVecteur(int origine, long de, long a) {
+        long integree = sequenceIntegree(origine);
+        if (integree >= de && a > integree) {
+            vecteurVersions.put(origine, a);
+        }
+    }
+
+    /**
+     * Intègre le vecteur de versions d'un instantané complet reçu d'un autre lieur
+     *
+     * @param vecteur
+     */
+    synchronized void fusionnerVecteur(Map<Integer, Long> vecteur) {
+        for (Map.Entry<Integer, Long> version : vecteur.entrySet()) {
+            if (version.getValue() > sequenceIntegree(version.getKey())) {
+                vecteurVersions.put(version.getKey(), version.getValue());
+            }
+        }
+    }
+
+    /**
+     * Retourne une copie du vecteur de versions
+     *
+     * @return
+     */
+    synchronized Map<Integer, Long> vecteur() {
+        return new HashMap<>(vecteurVersions);
+    }
+
+    /**
+     * Calcule les modifications qu'un lieur ayant le vecteur de versions donné n'a pas encore intégrées
+     *
+     * @param vecteurPair
+     * @return un delta par origine pour laquelle le lieur est en retard
+     */
+    synchronized List<Delta> deltas(Map<Integer, Long> vecteurPair) {
+        List<Delta> deltas = new ArrayList<>();
+        for (Map.Entry<Integer, Long> version : vecteurVersions.entrySet()) {
+            int origine = version.getKey();
+            long de = vecteurPair.getOrDefault(origine, 0L);
+            long a = version.getValue();
+            if (a <= de) {
+                continue;
+            }
+            List<EntreeRegistre> entrees = new ArrayList<>();
+            TreeMap<Long, Maillon> maillonsOrigine = parOrigine.get(origine);
+            if (maillonsOrigine != null) {
+                for (Maillon maillon : maillonsOrigine.subMap(de, false, a, true).values()) {
+                    entrees.add(maillon.entree());
+                }
+            }
+            deltas.add(new Delta(origine, de, a, entrees));
+        }
+        return deltas;
+    }
+
+    /**
+     * Retourne une copie cohérente des services présents et du vecteur de versions
+     *
+     * @return
+     */
+    synchronized Instantane instantane() {
+        List<EntreeRegistre> entrees = new ArrayList<>(maillons.taille());
+        maillons.pourChaque(maillon -> {
+            if (maillon.present) {
+                entrees.add(maillon.entree());
+            }
+        });
+        return new Instantane(entrees, new HashMap<>(vecteurVersions));
+    }
+
+    /**
+     * Oublie les suppressions plus anciennes que l'âge donné. Elles doivent être gardées assez longtemps pour que
+     * tous les lieurs les aient reçues.
+     *
+     * @param ageMax en millisecondes
+     */
+    synchronized void purgerSuppressions(long ageMax) {
+        long limite = System.currentTimeMillis() - ageMax;
+        List<Maillon> anciennes = new ArrayList<>();
+        maillons.pourChaque(maillon -> {
+            if (!maillon.present && maillon.instantSuppression < limite) {
+                anciennes.add(maillon);
+            }
+        });
+        for (Maillon maillon : anciennes) {
+            maillons.remove(maillon.service.cle());
+            parOrigine.get(maillon.origine).remove(maillon.sequence);
+        }
+    }
+
+    /**
+     * Indique si le service est présent dans le registre
+     *
+     * @param idService
+     * @param ip
+     * @param port
+     * @return
+     */
+    synchronized boolean contient(int idService, int ip, int port) {
+        Maillon maillon = maillons.get(Service.cle(idService, ip, port));
+        return maillon != null && maillon.present;
+    }
+
+    /**
+     * Choisi le service de l'id donné qui a été utilisé le moins récemment, ou le suivant s'il est nettement moins
+     * chargé, le marque comme utilisé et le place en queue de sa liste.
+     *
+     * @param idService
+     * @return le service choisi ou null si aucun service de cet id n'est connu
+     */
+    synchronized Service choisir(int idService) {
+        ListeServices liste = liste(idService);
+        Maillon maillon = liste.tete;
+        if (maillon == null) {
+            return null;
+        }
+        if (maillon.suivant != null && nettementPlusCharge(maillon, maillon.suivant)) {
+            maillon = maillon.suivant;
+        }
+        maillon.service.utiliser(++horloge);
+        if (maillon != liste.queue) {
+            liste.retirer(maillon);
+            liste.ajouterEnQueue(maillon);
+        }
+        return maillon.service;
+    }
+
+    /**
+     * Indique si le premier service est nettement plus chargé que le second, d'au moins un quart de la charge du
+     * second et au moins ECART_MIN_CHARGE
+     *
+     * @param premier
+     * @param second
+     * @return faux si la charge de l'un des services n'est pas connue
+     */
+    private static boolean nettementPlusCharge(Maillon premier, Maillon second) {
+        return premier.charge >= 0 && second.charge >= 0
+               && premier.charge > second.charge + Math.max(second.charge / 4, ECART_MIN_CHARGE);
+    }
+
+    /**
+     * Enregistre la charge indiquée par un service dans son battement
+     *
+     * @param service
+     * @param charge en demandes par seconde, -1 si elle n'est pas connue
+     */
+    synchronized void fixerCharge(Service service, int charge) {
+        Maillon maillon = maillons.get(service.cle());
+        if (maillon != null) {
+            maillon.charge = charge;
+        }
+    }
+
+    /**
+     * Enregistre la durée du bail armé par ce lieur pour un service présent. Un changement de durée est journalisé
+     * pour que le bail soit armé à nouveau si le lieur redémarre.
+     *
+     * @param service
+     * @param bail en millisecondes, 0 si le service n'a pas de bail
+     */
+    synchronized void fixerBail(Service service, int bail) {
+        Maillon maillon = maillons.get(service.cle());
+        if (maillon != null && maillon.present && maillon.bail != bail) {
+            maillon.bail = bail;
+            if (persistance != null) {
+                persistance.journaliser(maillon.entree());
+            }
+        }
+    }
+
+    /**
+     * Retourne les services présents ayant un bail, avec la durée de leur bail
+     *
+     * @return
+     */
+    synchronized Map<Service, Integer> baux() {
+        Map<Service, Integer> baux = new HashMap<>();
+        maillons.pourChaque(maillon -> {
+            if (maillon.present && maillon.bail > 0) {
+                baux.put(maillon.service, maillon.bail);
+            }
+        });
+        return baux;
+    }
+
+    /**
+     * Choisi en une fois un service pour chacun des ids donnés, comme le ferait choisir pour chaque id
+     *
+     * @param idsServices
+     * @param nbIds
+     * @param choisis reçoit le service choisi pour chaque id, null si aucun service de cet id n'est connu
+     */
+    synchronized void choisirPlusieurs(int[] idsServices, int nbIds, Service[] choisis) {
+        for (int i = 0; i < nbIds; i++) {
+            choisis[i] = choisir(idsServices[i]);
+        }
+    }
+
+    /**
+     * Retourne le nombre de services présents pour chaque id de service qui en a au moins un
+     *
+     * @return
+     */
+    synchronized Map<Integer, Integer> nombreParIdService() {
+        Map<Integer, Integer> nombres = new TreeMap<>();
+        for (int i = 0; i < parIdService.length; i++) {
+            if (parIdService[i] != null && parIdService[i].taille > 0) {
+                nombres.put(i, parIdService[i].taille);
+            }
+        }
+        return nombres;
+    }
+
+    /**
+     * Retourne le nombre de modifications connues d'un autre lieur, d'après son vecteur de versions, que ce registre
+     * n'a pas encore intégrées
+     *
+     * @param vecteurPair
+     * @return
+     */
+    synchronized long retard(Map<Integer, Long> vecteurPair) {
+        long retard = 0;
+        for (Map.Entry<Integer, Long> version : vecteurPair.entrySet()) {
+            retard += Math.max(0, version.getValue() - sequenceIntegree(version.getKey()));
+        }
+        return retard;
+    }
+
+    /**
+     * Applique une action à chaque service présent dans le registre
+     *
+     * @param action
+     */
+    synchronized void pourChaque(Consumer<Service> action) {
+        maillons.pourChaque(maillon -> {
+            if (maillon.present) {
+                action.accept(maillon.service);
+            }
+        });
+    }
+
+    /**
+     * Enregistre la nouvelle version d'un service et met à jour sa liste et son rangement par origine
+     *
+     * @return la nouvelle version du service
+     */
+    private EntreeRegistre modifier(Service service, boolean present, int origine, long sequence, long lamport) {
+        Maillon maillon = maillons.get(service.cle());
+        if (maillon == null) {
+            maillon = new Maillon(service);
+            maillons.put(service.cle(), maillon);
+        } else {
+            parOrigine.get(maillon.origine).remove(maillon.sequence);
+        }
+
+        if (present && !maillon.present) {
+            liste(service.getIdService()).ajouterEnTete(maillon);
+        } else if (!present && maillon.present) {
+            liste(service.getIdService()).retirer(maillon);
+        }
+        if (!present) {
+            maillon.instantSuppression = System.currentTimeMillis();
+            maillon.bail = 0;
+        }
+
+        maillon.present = present;
+        maillon.origine = origine;
+        maillon.sequence = sequence;
+        maillon.lamport = lamport;
+        parOrigine.computeIfAbsent(origine, o -> new TreeMap<>()).put(sequence, maillon);
+        EntreeRegistre entree = maillon.entree();
+        if (persistance != null) {
+            persistance.journaliser(entree);
+        }
+        return entree;
+    }
+
+    /**
+     * Retourne la dernière séquence intégrée d'une origine
+     *
+     * @param origine
+     * @return
+     */
+    private long sequenceIntegree(int origine) {
+        return vecteurVersions.getOrDefault(origine, 0L);
+    }
+
+    /**
+     * Retourne la liste associée à un id de service, en la créant si nécessaire
+     *
+     * @param idService
+     * @return
+     */
+    private ListeServices liste(int idService) {
+        int index = idService & 0xFF;
+        ListeServices liste = parIdService[index];
+        if (liste == null) {
+            liste = new ListeServices();
+            parIdService[index] = liste;
+        }
+        return liste;
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Regroupe les modifications du registre faites par le lieur avant de les envoyer aux autres lieurs. Les
+ * modifications sont accumulées pendant une fenêtre de temps puis envoyées en un seul paquet LOT_MODIFICATIONS à
+ * chaque lieur. Le lot est envoyé avant la fin de la fenêtre s'il atteint la taille maximale d'un paquet.
+ *
+ * Une fenêtre de 0 ms envoie chaque modification immédiatement. En mode multicast, le lot est envoyé une seule fois
+ * à l'adresse du groupe au lieu d'être envoyé à chaque lieur. En mode partitionné, chaque lieur ne reçoit que les
+ * modifications des ids de service dont il est propriétaire (voir AnneauCoherent), un lot qui ne le concerne pas ne
+ * lui est pas envoyé.
+ */
+class Replicateur {
+    private final DatagramChannel canal;            // Canal d'envoi des lots
+    private final InetSocketAddress[] destinations; // Destinataires des lots, les lieurs ou le groupe multicast
+    private final ScheduledExecutorService minuteur; // Envoi des lots à la fin de la fenêtre
+    private final int fenetre;                      // Durée de la fenêtre en millisecondes
+    private final int nbMaxEntrees;                 // Nombre d'entrées qui déclenche l'envoi du lot
+    private final AnneauCoherent anneau;            // Propriétaires des ids de service, null sans partitionnement
+    private final ByteBuffer paquet;                // Tampon d'encodage des lots
+    private List<EntreeRegistre> lot = new ArrayList<>(); // Modifications en attente d'envoi
+
+    /**
+     * Création d'un réplicateur qui envoie les lots sur le canal donné
+     *
+     * @param canal
+     * @param destinations
+     * @param minuteur
+     * @param fenetre
+     * @param tailleMaxPaquet
+     * @param anneau propriétaires des ids de service, null pour envoyer toutes les modifications à chaque lieur
+     */
+    Replicateur(DatagramChannel canal, InetSocketAddress[] destinations, ScheduledExecutorService minuteur,
+                int fenetre, int tailleMaxPaquet, AnneauCoherent anneau) {
+        this.canal = canal;
+        this.anneau = anneau;
+        this.destinations = destinations;
+        this.minuteur = minuteur;
+        this.fenetre = fenetre;
+        this.paquet = Codec.allouer(tailleMaxPaquet);
+        this.nbMaxEntrees = (tailleMaxPaquet - Codec.TAILLE_ENTETE_LOT) / Codec.TAILLE_ENTREE;
+    }
+
+    /**
+     * Ajoute une modification au lot en cours. La première modification d'un lot programme son envoi à la fin de la
+     * fenêtre.
+     *
+     * @param entree
+     */
+    void publier(EntreeRegistre entree) {
+        List<EntreeRegistre> lotPlein = null;
+        synchronized (this) {
+            lot.add(entree);
+            if (lot.size() >= nbMaxEntrees || fenetre == 0) {
+                lotPlein = lot;
+                lot = new ArrayList<>();
+            } else if (lot.size() == 1) {
+                minuteur.schedule(this::vider, fenetre, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (lotPlein != null) {
+            envoyer(lotPlein);
+        }
+    }
+
+    /**
+     * Envoie le lot en cours, appelé à la fin de la fenêtre
+     */
+    private void vider() {
+        List<EntreeRegistre> lotAEnvoyer;
+        synchronized (this) {
+            if (lot.isEmpty()) {
+                return;
+            }
+            lotAEnvoyer = lot;
+            lot = new ArrayList<>();
+        }
+        envoyer(lotAEnvoyer);
+    }
+
+    /**
+     * Encode le lot et l'envoie à chaque destinataire. Le tampon d'encodage est partagé, un seul lot est envoyé à la
+     * fois. En mode partitionné le lot est encodé pour chaque destinataire avec ses seules modifications.
+     *
+     * @param entrees
+     */
+    private void envoyer(List<EntreeRegistre> entrees) {
+        synchronized (paquet) {
+            try {
+                if (Journal.debug()) {
+                    Journal.debug("Envoi d'un lot de " + entrees.size() + " modifications");
+                }
+                if (anneau == null) {
+                    encoder(entrees, null);
+                }
+                for (InetSocketAddress destination : destinations) {
+                    if (anneau != null && encoder(entrees, destination) == 0) {
+                        continue;
+                    }
+                    paquet.rewind();
+                    canal.send(paquet, destination);
+                }
+            } catch (IOException e) {
+                Journal.erreur("Erreur lors de l'envoi d'un lot de modifications: ", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Encode dans le tampon partagé les entrées du lot destinées à un lieur
+     *
+     * @param entrees
+     * @param destination lieur destinataire, null pour encoder toutes les entrées
+     * @return le nombre d'entrées encodées
+     */
+    private int encoder(List<EntreeRegistre> entrees, InetSocketAddress destination) {
+        int nbEntrees = 0;
+        for (EntreeRegistre entree : entrees) {
+            if (destination == null || anneau.possede(destination, entree.service.getIdService())) {
+                nbEntrees++;
+            }
+        }
+        Codec.ecrireEnteteLot(paquet, nbEntrees);
+        for (EntreeRegistre entree : entrees) {
+            if (destination == null || anneau.possede(destination, entree.service.getIdService())) {
+                entree.ecrire(paquet);
+            }
+        }
+        Codec.terminer(paquet);
+        return nbEntrees;
+    }
+
+    /**
+     * Lit les entrées d'un lot, le tampon doit être positionné après le type du paquet
+     *
+     * @param lot
+     * @return
+     */
+    static List<EntreeRegistre> lireLot(ByteBuffer lot) {
+        int nbEntrees = Codec.lireNombre(lot);
+        List<EntreeRegistre> entrees = new ArrayList<>(nbEntrees);
+        for (int i = 0; i < nbEntrees && lot.remaining() >= Codec.TAILLE_ENTREE; i++) {
+            entrees.add(EntreeRegistre.lire(lot));
+        }
+        return entrees;
+    }
+}
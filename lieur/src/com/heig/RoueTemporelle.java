@@ -0,0 +1,154 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Roue temporelle hachée qui gère l'expiration des baux des services. La roue est un tableau de cases, chaque case
+ * couvre une durée fixe et contient la liste doublement chaînée des échéances qui tombent dans cette case. Une échéance
+ * plus lointaine qu'un tour de roue garde le nombre de tours restants.
+ *
+ * Armer, renouveler ou annuler un bail se fait en temps constant, quel que soit le nombre de baux. A chaque case, le
+ * minuteur avance la roue d'une case et seules les échéances de cette case sont parcourues. La précision de
+ * l'expiration est d'une case.
+ *
+ * Les échéances sont retrouvées par la clé du service (voir Service). La roue est synchronisée, l'action d'expiration
+ * est appelée en dehors du verrou.
+ */
+class RoueTemporelle {
+    private final Echeance[] cases;                 // Têtes des listes d'échéances de chaque case
+    private final long dureeCase;                   // Durée couverte par une case en millisecondes
+    private final Consumer<Service> expiration;     // Action appelée pour chaque bail expiré
+    private final TableHachageLong<Echeance> echeances = new TableHachageLong<>(1024); // Echéances par clé de service
+    private int caseCourante = 0;                   // Case de la dernière avancée
+
+    /**
+     * Echéance du bail d'un service, maillon de la liste de sa case
+     */
+    private static class Echeance {
+        final Service service;
+        int indexCase;
+        long toursRestants;
+        Echeance precedente;
+        Echeance suivante;
+
+        Echeance(Service service) {
+            this.service = service;
+        }
+    }
+
+    /**
+     * Création d'une roue de nbCases cases de dureeCase millisecondes
+     *
+     * @param nbCases
+     * @param dureeCase
+     * @param expiration
+     */
+    RoueTemporelle(int nbCases, long dureeCase, Consumer<Service> expiration) {
+        this.cases = new Echeance[nbCases];
+        this.dureeCase = dureeCase;
+        this.expiration = expiration;
+    }
+
+    long getDureeCase() {
+        return dureeCase;
+    }
+
+    /**
+     * Arme ou renouvelle le bail d'un service
+     *
+     * @param service
+     * @param duree durée du bail en millisecondes
+     */
+    synchronized void armer(Service service, long duree) {
+        Echeance echeance = echeances.get(service.cle());
+        if (echeance == null) {
+            echeance = new Echeance(service);
+            echeances.put(service.cle(), echeance);
+        } else {
+            retirer(echeance);
+        }
+
+        // Le bail expire au plus tôt après sa durée, arrondie à la case supérieure
+        long nbCasesDuree = Math.max(1, (duree + dureeCase - 1) / dureeCase);
+        echeance.indexCase = (int) ((caseCourante + nbCasesDuree) % cases.length);
+        echeance.toursRestants = (nbCasesDuree - 1) / cases.length;
+        ajouter(echeance);
+    }
+
+    /**
+     * Annule le bail d'un service, sans appeler l'action d'expiration
+     *
+     * @param service
+     */
+    synchronized void annuler(Service service) {
+        Echeance echeance = echeances.remove(service.cle());
+        if (echeance != null) {
+            retirer(echeance);
+        }
+    }
+
+    /**
+     * Indique si le service a un bail en cours
+     *
+     * @param service
+     * @return
+     */
+    synchronized boolean contient(Service service) {
+        return echeances.get(service.cle()) != null;
+    }
+
+    /**
+     * Avance la roue d'une case et expire les baux échus, appelée par le minuteur à chaque durée de case
+     */
+    void avancer() {
+        List<Service> expires = new ArrayList<>();
+        synchronized (this) {
+            caseCourante = (caseCourante + 1) % cases.length;
+            Echeance echeance = cases[caseCourante];
+            while (echeance != null) {
+                Echeance suivante = echeance.suivante;
+                if (echeance.toursRestants == 0) {
+                    retirer(echeance);
+                    echeances.remove(echeance.service.cle());
+                    expires.add(echeance.service);
+                } else {
+                    echeance.toursRestants--;
+                }
+                echeance = suivante;
+            }
+        }
+        for (Service service : expires) {
+            expiration.accept(service);
+        }
+    }
+
+    private void ajouter(Echeance echeance) {
+        Echeance tete = cases[echeance.indexCase];
+        echeance.precedente = null;
+        echeance.suivante = tete;
+        if (tete != null) {
+            tete.precedente = echeance;
+        }
+        cases[echeance.indexCase] = echeance;
+    }
+
+    private void retirer(Echeance echeance) {
+        if (echeance.precedente == null) {
+            cases[echeance.indexCase] = echeance.suivante;
+        } else {
+            echeance.precedente.suivante = echeance.suivante;
+        }
+        if (echeance.suivante != null) {
+            echeance.suivante.precedente = echeance.precedente;
+        }
+        echeance.precedente = null;
+        echeance.suivante = null;
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.util.function.Consumer;
+
+/**
+ * Table de hachage à adressage ouvert dont les clés sont des long. Les clés sont gardées dans un tableau de long,
+ * sans objet Long ni entrée allouée par élément: la recherche, l'ajout et le retrait ne font aucune allocation
+ * (hors agrandissement de la table).
+ *
+ * Les collisions sont résolues par sondage linéaire. Au retrait, les éléments suivants du même groupe sont recalés
+ * pour ne pas laisser de trou, il n'y a donc pas de marqueur de suppression. La table est agrandie quand elle est
+ * à moitié pleine. Une case est libre si sa valeur est null, les valeurs null ne sont donc pas acceptées.
+ *
+ * La table n'est pas synchronisée.
+ *
+ * @param <V>
+ */
+class TableHachageLong<V> {
+    private long[] cles;        // Clés des éléments
+    private Object[] valeurs;   // Valeurs des éléments, null pour une case libre
+    private int masque;         // Taille des tableaux moins un, la taille est une puissance de 2
+    private int taille;         // Nombre d'éléments
+
+    /**
+     * Création d'une table vide
+     *
+     * @param capaciteInitiale nombre d'éléments attendus
+     */
+    TableHachageLong(int capaciteInitiale) {
+        int capacite = Integer.highestOneBit(Math.max(2, capaciteInitiale * 2 - 1)) << 1;
+        cles = new long[capacite];
+        valeurs = new Object[capacite];
+        masque = capacite - 1;
+    }
+
+    int taille() {
+        return taille;
+    }
+
+    /**
+     * Retourne la valeur associée à la clé
+     *
+     * @param cle
+     * @return la valeur ou null si la clé n'est pas dans la table
+     */
+    @SuppressWarnings("unchecked")
+    V get(long cle) {
+        for (int i = index(cle); valeurs[i] != null; i = (i + 1) & masque) {
+            if (cles[i] == cle) {
+                return (V) valeurs[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Associe la valeur à la clé
+     *
+     * @param cle
+     * @param valeur
+     * @return l'ancienne valeur associée à la clé ou null
+     */
+    @SuppressWarnings("unchecked")
+    V put(long cle, V valeur) {
+        if (valeur == null) {
+            throw new NullPointerException("Valeur null");
+        }
+        int i = index(cle);
+        for (; valeurs[i] != null; i = (i + 1) & masque) {
+            if (cles[i] == cle) {
+                V ancienne = (V) valeurs[i];
+                valeurs[i] = valeur;
+                return ancienne;
+            }
+        }
+        cles[i] = cle;
+        valeurs[i] = valeur;
+        if (++taille * 2 > valeurs.length) {
+            agrandir();
+        }
+        return null;
+    }
+
+    /**
+     * Retire la clé de la table
+     *
+     * @param cle
+     * @return la valeur qui était associée à la clé ou null
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long cle) {
+        int i = index(cle);
+        for (; valeurs[i] != null; i = (i + 1) & masque) {
+            if (cles[i] == cle) {
+                V ancienne = (V) valeurs[i];
+                recaler(i);
+                taille--;
+                return ancienne;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applique une action à chaque valeur de la table, la table ne doit pas être modifiée pendant le parcours
+     *
+     * @param action
+     */
+    @SuppressWarnings("unchecked")
+    void pourChaque(Consumer<? super V> action) {
+        for (Object valeur : valeurs) {
+            if (valeur != null) {
+                action.accept((V) valeur);
+            }
+        }
+    }
+
+    /**
+     * Libère la case i et y ramène les éléments suivants du groupe qui ne seraient plus trouvés à cause du trou
+     *
+     * @param i
+     */
+    private void recaler(int i) {
+        int libre = i;
+        for (int j = (i + 1) & masque; valeurs[j] != null; j = (j + 1) & masque) {
+            // L'élément en j peut combler le trou si sa case idéale n'est pas entre le trou (exclu) et j (inclu)
+            int ideal = index(cles[j]);
+            if (((j - ideal) & masque) >= ((j - libre) & masque)) {
+                cles[libre] = cles[j];
+                valeurs[libre] = valeurs[j];
+                libre = j;
+            }
+        }
+        valeurs[libre] = null;
+    }
+
+    /**
+     * Double la taille de la table et y replace tous les éléments
+     */
+    private void agrandir() {
+        long[] anciennesCles = cles;
+        Object[] anciennesValeurs = valeurs;
+        cles = new long[anciennesCles.length * 2];
+        valeurs = new Object[anciennesValeurs.length * 2];
+        masque = valeurs.length - 1;
+        for (int i = 0; i < anciennesValeurs.length; i++) {
+            if (anciennesValeurs[i] != null) {
+                int j = index(anciennesCles[i]);
+                while (valeurs[j] != null) {
+                    j = (j + 1) & masque;
+                }
+                cles[j] = anciennesCles[i];
+                valeurs[j] = anciennesValeurs[i];
+            }
+        }
+    }
+
+    /**
+     * Case idéale d'une clé, les bits de la clé sont mélangés pour que les clés proches soient dispersées
+     *
+     * @param cle
+     * @return
+     */
+    private int index(long cle) {
+        cle ^= cle >>> 33;
+        cle *= 0xff51afd7ed558ccdL;
+        cle ^= cle >>> 33;
+        return (int) cle & masque;
+    }
+}
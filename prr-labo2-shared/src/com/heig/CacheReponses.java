@@ -0,0 +1,107 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache borné des dernières réponses envoyées, par adresse du demandeur et id de requête. Une demande retransmise par
+ * un client qui n'a pas reçu la réponse est répondue depuis le cache, sans refaire le traitement: le client reçoit
+ * la même réponse que la première fois.
+ *
+ * Le cache est une table de taille fixe où chaque clé n'a qu'une case possible: une nouvelle réponse remplace celle
+ * qui occupait sa case, les réponses expirent après une durée de vie. Les cases gardent leur tableau d'une réponse à
+ * l'autre, enregistrer et chercher une réponse n'allouent donc rien une fois le cache rempli. Chaque case a son propre
+ * verrou, les threads ne se bloquent que s'ils utilisent la même case.
+ */
+public class CacheReponses {
+    /**
+     * Réponse mémorisée
+     */
+    private static class Case {
+        int ip;                 // Adresse du demandeur
+        int port;
+        int idRequete;          // 0 si la case est vide
+        long expiration;        // Instant en nanosecondes après lequel la réponse n'est plus rejouée
+        byte[] donnees = new byte[0];
+        int longueur;
+    }
+
+    private final Case[] cases;
+    private final int masque;
+    private final long dureeVie;    // Durée de vie d'une réponse en nanosecondes
+
+    /**
+     * @param capacite nombre de cases, arrondi à la puissance de 2 supérieure
+     * @param dureeVie durée de vie d'une réponse en millisecondes
+     */
+    public CacheReponses(int capacite, int dureeVie) {
+        int taille = Integer.highestOneBit(Math.max(1, capacite - 1)) << 1;
+        cases = new Case[taille];
+        for (int i = 0; i < taille; i++) {
+            cases[i] = new Case();
+        }
+        masque = taille - 1;
+        this.dureeVie = TimeUnit.MILLISECONDS.toNanos(dureeVie);
+    }
+
+    /**
+     * Cherche la réponse déjà envoyée pour une demande
+     *
+     * @param source adresse du demandeur
+     * @param idRequete id de la demande, différent de 0
+     * @param reponse tampon qui reçoit la réponse, prêt à être envoyé si elle est trouvée
+     * @return vrai si la réponse a été trouvée
+     */
+    public boolean chercher(InetSocketAddress source, int idRequete, ByteBuffer reponse) {
+        int ip = Codec.ipVersEntier(source.getAddress());
+        int port = source.getPort();
+        Case c = cases[index(ip, port, idRequete)];
+        synchronized (c) {
+            if (c.idRequete != idRequete || c.ip != ip || c.port != port || System.nanoTime() - c.expiration > 0) {
+                return false;
+            }
+            reponse.clear();
+            reponse.put(c.donnees, 0, c.longueur);
+            reponse.flip();
+            return true;
+        }
+    }
+
+    /**
+     * Mémorise la réponse à une demande, le tampon n'est pas modifié
+     *
+     * @param source adresse du demandeur
+     * @param idRequete id de la demande, différent de 0
+     * @param reponse tampon contenant la réponse, entre sa position et sa limite
+     */
+    public void enregistrer(InetSocketAddress source, int idRequete, ByteBuffer reponse) {
+        int ip = Codec.ipVersEntier(source.getAddress());
+        int port = source.getPort();
+        Case c = cases[index(ip, port, idRequete)];
+        synchronized (c) {
+            int longueur = reponse.remaining();
+            if (c.donnees.length < longueur) {
+                c.donnees = new byte[longueur];
+            }
+            int position = reponse.position();
+            reponse.get(c.donnees, 0, longueur);
+            reponse.position(position);
+            c.longueur = longueur;
+            c.ip = ip;
+            c.port = port;
+            c.idRequete = idRequete;
+            c.expiration = System.nanoTime() + dureeVie;
+        }
+    }
+
+    private int index(int ip, int port, int idRequete) {
+        int h = (ip * 31 + port) * 31 + idRequete;
+        return (h ^ (h >>> 16)) & masque;
+    }
+}
@@ -0,0 +1,513 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client asynchrone des lieurs et des services, destiné aux applications qui résolvent et appellent des services
+ * sans bloquer leurs threads. Une résolution ou un appel retourne immédiatement un CompletableFuture, complété à la
+ * réception de la réponse. Un même client peut avoir un grand nombre de demandes en cours à la fois.
+ *
+ * Toutes les demandes partagent un seul DatagramChannel. Chaque demande porte un id de requête propre à ce client,
+ * que le lieur ou le service reprend à la fin de sa réponse: un seul thread de réception lit les réponses et retrouve
+ * la demande en cours par son id dans une table. Une réponse en retard ou en double ne trouve plus sa demande et est
+ * ignorée.
+ *
+ * Les délais sont gérés par un seul minuteur et non par le délai de réception du socket: chaque envoi programme une
+ * échéance, annulée à la réponse. A l'échéance la demande est retransmise avec le même id, avec un délai qui double à
+ * chaque essai. Le premier délai est choisi pour que les délais de tous les essais fassent ensemble le temps d'attente
+ * maximal. Une demande à un lieur passe au lieur suivant à chaque essai. Après le dernier essai le futur échoue avec
+ * une TimeoutException. Une réponse n'est acceptée que si elle vient d'une adresse à laquelle la demande a été
+ * envoyée.
+ *
+ * Un lieur surchargé (SURCHARGE) fait renvoyer la demande au lieur suivant après le délai qu'il indique, ce renvoi
+ * compte comme un essai. Un lieur partitionné (REDIRECTION) la fait renvoyer au premier propriétaire du type, au plus
+ * NB_MAX_REDIRECTIONS fois. Ce propriétaire est retenu pour les résolutions suivantes de ce type et oublié dès qu'il ne
+ * répond plus.
+ *
+ * Les futurs sont complétés par le thread de réception ou par le minuteur: les traitements longs enchaînés sur un
+ * futur doivent utiliser les variantes ...Async pour ne pas retarder les autres réponses.
+ */
+public class ClientAsynchrone implements AutoCloseable {
+    private static final int NB_MAX_REDIRECTIONS = 2;       // Nombre de redirections suivies par une demande
+
+    private final InetSocketAddress[] lieurs;               // Adresses des lieurs
+    private final DatagramChannel canal;                    // Canal partagé par toutes les demandes
+    private final ScheduledExecutorService minuteur;        // Echéances et renvois des demandes
+    private final ConcurrentHashMap<Integer, Demande<?>> enCours = new ConcurrentHashMap<>(); // Demandes en cours par id de requête
+    private final ConcurrentHashMap<Integer, InetSocketAddress> proprietaires = new ConcurrentHashMap<>(); // Propriétaire retenu par type après une REDIRECTION
+    private final AtomicInteger dernierIdRequete = new AtomicInteger(ThreadLocalRandom.current().nextInt()); // Id de la dernière demande
+    private final AtomicInteger prochainLieur = new AtomicInteger(); // Lieur de la prochaine demande, à tour de rôle
+    private final int tailleMaxReponse = 1400;              // Taille maximale d'une réponse d'un lieur ou d'un service
+    private final int tailleMaxMessage = 255;               // Taille maximale du message d'un appel
+    private int tempsMaxAttenteReponse = 2000;              // Temps d'attente maximal d'une réponse, retransmissions comprises, hors délais de SURCHARGE
+    private int nbMaxEssais = 3;                            // Nombre d'envois d'une demande avant son échec
+    private volatile boolean ferme;                         // Vrai une fois le client fermé
+
+    /**
+     * Demande en cours: le message encodé, gardé pour les retransmissions, sa destination et son futur. L'état d'envoi
+     * est protégé par la demande, la demande n'est terminée qu'une fois, par celui qui la retire de la table.
+     *
+     * @param <T> type du résultat
+     */
+    private abstract class Demande<T> {
+        final int idRequete;
+        final ByteBuffer message;
+        final CompletableFuture<T> resultat = new CompletableFuture<>();
+        final List<InetSocketAddress> contactes = new ArrayList<>(); // Adresses auxquelles la demande a été envoyée
+        InetSocketAddress destination;
+        int essai;
+        int nbRedirections;
+        long delai;                 // Délai avant la prochaine retransmission en millisecondes
+        ScheduledFuture<?> echeance;
+
+        Demande(int idRequete, ByteBuffer message, InetSocketAddress destination) {
+            this.idRequete = idRequete;
+            this.message = message;
+            this.destination = destination;
+            // Délais d, 2d, 4d... dont la somme sur tous les essais est le temps d'attente maximal
+            long somme = (1L << Math.min(Math.max(1, nbMaxEssais), 62)) - 1;
+            this.delai = Math.max(1, tempsMaxAttenteReponse / somme);
+        }
+
+        /**
+         * Traite une réponse à la demande, le tampon est positionné après le type
+         *
+         * @param type
+         * @param reponse
+         */
+        abstract void recevoir(Protocole type, ByteBuffer reponse);
+
+        /**
+         * Destination d'une retransmission
+         *
+         * @return
+         */
+        InetSocketAddress destinationSuivante() {
+            return destination;
+        }
+
+        /**
+         * Appelée quand la destination n'a pas répondu à temps
+         */
+        void sansReponse() {
+        }
+
+        /**
+         * Indique si une réponse peut venir de cette adresse
+         *
+         * @param source
+         * @return vrai si la demande a été envoyée à cette adresse
+         */
+        synchronized boolean aContacte(SocketAddress source) {
+            return contactes.contains(source);
+        }
+
+        /**
+         * Envoie la demande et programme son échéance
+         */
+        synchronized void envoyer() {
+            if (enCours.get(idRequete) != this) {
+                return;
+            }
+            if (!contactes.contains(destination)) {
+                contactes.add(destination);
+            }
+            try {
+                canal.send(message.duplicate(), destination);
+            } catch (IOException e) {
+                echouer(e);
+                return;
+            }
+            echeance = minuteur.schedule(this::expirer, delai, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Echéance de l'envoi: retransmission avec un délai double, ou échec après le dernier essai
+         */
+        synchronized void expirer() {
+            if (enCours.get(idRequete) != this) {
+                return;
+            }
+            sansReponse();
+            if (++essai >= nbMaxEssais) {
+                echouer(new TimeoutException("Pas de réponse de " + destination + " après " + essai + " essais"));
+                return;
+            }
+            delai *= 2;
+            destination = destinationSuivante();
+            envoyer();
+        }
+
+        /**
+         * Renvoie la demande au lieur suivant après le délai demandé par un lieur surchargé. Le renvoi compte comme un
+         * essai: des lieurs qui restent surchargés font échouer la demande.
+         *
+         * @param attente en millisecondes
+         */
+        synchronized void differer(long attente) {
+            if (++essai >= nbMaxEssais) {
+                echouer(new TimeoutException("Lieurs surchargés après " + essai + " essais"));
+                return;
+            }
+            renvoyer(destinationSuivante(), attente);
+        }
+
+        /**
+         * Renvoie la demande au propriétaire indiqué par une redirection, au plus NB_MAX_REDIRECTIONS fois
+         *
+         * @param proprietaire
+         */
+        synchronized void rediriger(InetSocketAddress proprietaire) {
+            if (++nbRedirections > NB_MAX_REDIRECTIONS) {
+                echouer(new IOException("Trop de redirections pour la demande " + idRequete));
+                return;
+            }
+            renvoyer(proprietaire, 0);
+        }
+
+        /**
+         * Renvoie la demande à une autre destination, après un délai éventuel
+         *
+         * @param nouvelleDestination
+         * @param attente en millisecondes
+         */
+        private void renvoyer(InetSocketAddress nouvelleDestination, long attente) {
+            if (enCours.get(idRequete) != this) {
+                return;
+            }
+            if (echeance != null) {
+                echeance.cancel(false);
+            }
+            destination = nouvelleDestination;
+            if (attente > 0) {
+                echeance = minuteur.schedule(this::envoyer, attente, TimeUnit.MILLISECONDS);
+            } else {
+                envoyer();
+            }
+        }
+
+        void terminer(T valeur) {
+            if (retirer()) {
+                resultat.complete(valeur);
+            }
+        }
+
+        void echouer(Throwable erreur) {
+            if (retirer()) {
+                resultat.completeExceptionally(erreur);
+            }
+        }
+
+        private boolean retirer() {
+            if (!enCours.remove(idRequete, this)) {
+                return false;
+            }
+            synchronized (this) {
+                if (echeance != null) {
+                    echeance.cancel(false);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Demande de service à un lieur, le résultat est null si le lieur ne connaît aucun service du type
+     */
+    private class Resolution extends Demande<Service> {
+        final int idService;
+
+        Resolution(int idRequete, ByteBuffer message, InetSocketAddress destination, int idService) {
+            super(idRequete, message, destination);
+            this.idService = idService;
+        }
+
+        @Override
+        InetSocketAddress destinationSuivante() {
+            return lieurSuivant();
+        }
+
+        @Override
+        void sansReponse() {
+            // Un propriétaire retenu qui ne répond plus est oublié, les résolutions suivantes repartent des lieurs
+            proprietaires.remove(idService, destination);
+        }
+
+        @Override
+        void recevoir(Protocole type, ByteBuffer reponse) {
+            if (type == Protocole.REPONSE_DEMANDE_DE_SERVICE && reponse.remaining() >= Codec.TAILLE_SERVICE) {
+                int id = Codec.lireIdService(reponse);
+                int ip = Codec.lireIp(reponse);
+                terminer(new Service(id, ip, Codec.lirePort(reponse)));
+            } else if (type == Protocole.SERVICE_EXISTE_PAS) {
+                terminer(null);
+            } else if (type == Protocole.SURCHARGE && reponse.remaining() >= 5) {
+                reponse.get();
+                differer(Codec.lireDelaiNouvelEssai(reponse));
+            } else if (type == Protocole.REDIRECTION && reponse.remaining() >= 2) {
+                Codec.lireIdService(reponse);
+                InetSocketAddress[] adresses = Codec.lireProprietaires(reponse);
+                if (adresses.length > 0) {
+                    proprietaires.put(idService, adresses[0]);
+                    rediriger(adresses[0]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appel d'un service, le résultat est le message renvoyé par le service
+     */
+    private class Appel extends Demande<ByteBuffer> {
+        Appel(int idRequete, ByteBuffer message, InetSocketAddress destination) {
+            super(idRequete, message, destination);
+        }
+
+        @Override
+        void recevoir(Protocole type, ByteBuffer reponse) {
+            if (type != Protocole.REPONSE_DU_SERVICE || !reponse.hasRemaining()) {
+                return;
+            }
+            int longueur = Math.min(Codec.lireLongueurMessage(reponse), reponse.remaining());
+            byte[] copie = new byte[longueur];
+            reponse.get(copie);
+            terminer(ByteBuffer.wrap(copie));
+        }
+    }
+
+    /**
+     * Création d'un client pour la liste des lieurs donnée. Le canal est ouvert sur un port libre et le thread de
+     * réception démarré, ce sont des threads démons.
+     *
+     * @param lieurs
+     * @throws IOException
+     */
+    public ClientAsynchrone(Lieur[] lieurs) throws IOException {
+        this.lieurs = new InetSocketAddress[lieurs.length];
+        for (int i = 0; i < lieurs.length; i++) {
+            this.lieurs[i] = new InetSocketAddress(lieurs[i].getIp(), lieurs[i].getPort());
+        }
+        canal = DatagramChannel.open(StandardProtocolFamily.INET);
+        canal.bind(new InetSocketAddress(0));
+        minuteur = Executors.newSingleThreadScheduledExecutor(tache -> {
+            Thread thread = new Thread(tache, "client-asynchrone-minuteur");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread reception = new Thread(this::recevoir, "client-asynchrone-reception");
+        reception.setDaemon(true);
+        reception.start();
+    }
+
+    public int getTempsMaxAttenteReponse() {
+        return tempsMaxAttenteReponse;
+    }
+
+    public void setTempsMaxAttenteReponse(int tempsMaxAttenteReponse) {
+        this.tempsMaxAttenteReponse = tempsMaxAttenteReponse;
+    }
+
+    public int getNbMaxEssais() {
+        return nbMaxEssais;
+    }
+
+    public void setNbMaxEssais(int nbMaxEssais) {
+        this.nbMaxEssais = nbMaxEssais;
+    }
+
+    /**
+     * Demande à un lieur un service du type donné
+     *
+     * @param idService
+     * @return le futur du service, null si le lieur ne connaît aucun service de ce type
+     */
+    public CompletableFuture<Service> resoudre(int idService) {
+        int idRequete = nouvelIdRequete();
+        ByteBuffer message = Codec.encoderDemandeDeService(Codec.allouer(2 + Codec.TAILLE_ID_REQUETE), idService, idRequete);
+        return demarrer(new Resolution(idRequete, message, lieurPour(idService), idService));
+    }
+
+    /**
+     * Envoie un message à un service et attend sa réponse
+     *
+     * @param service
+     * @param message tampon contenant le message, entre sa position et sa limite, au plus 255 bytes
+     * @return le futur du message renvoyé par le service
+     */
+    public CompletableFuture<ByteBuffer> appeler(Service service, ByteBuffer message) {
+        if (message.remaining() > tailleMaxMessage) {
+            throw new IllegalArgumentException("Message de plus de " + tailleMaxMessage + " bytes");
+        }
+        int idRequete = nouvelIdRequete();
+        ByteBuffer contact = Codec.encoderContactService(Codec.allouer(2 + message.remaining() + Codec.TAILLE_ID_REQUETE),
+                                                         message.duplicate(), idRequete);
+        InetSocketAddress adresse = new InetSocketAddress(Codec.entierVersIp(service.getIp()), service.getPort());
+        return demarrer(new Appel(idRequete, contact, adresse));
+    }
+
+    /**
+     * Résout un service du type donné puis lui envoie le message. Si le service ne répond pas, il est signalé au
+     * lieur et le futur échoue.
+     *
+     * @param idService
+     * @param message tampon contenant le message, entre sa position et sa limite, au plus 255 bytes
+     * @return le futur du message renvoyé par le service, null si aucun service de ce type n'est connu
+     */
+    public CompletableFuture<ByteBuffer> appeler(int idService, ByteBuffer message) {
+        ByteBuffer copie = Codec.allouer(message.remaining()).put(message.duplicate());
+        copie.flip();
+        return resoudre(idService).thenCompose(service -> {
+            if (service == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<ByteBuffer> appel = appeler(service, copie);
+            appel.whenComplete((reponse, erreur) -> {
+                if (erreur instanceof TimeoutException) {
+                    signalerInjoignable(service);
+                }
+            });
+            return appel;
+        });
+    }
+
+    /**
+     * Indique au lieur qu'un service ne répond pas, sans attendre de réponse
+     *
+     * @param service
+     */
+    public void signalerInjoignable(Service service) {
+        ByteBuffer plainte = Codec.encoderServiceExistePas(Codec.allouer(1 + Codec.TAILLE_SERVICE),
+                                                           service.getIdService(), service.getIp(), service.getPort());
+        try {
+            canal.send(plainte, lieurPour(service.getIdService()));
+        } catch (IOException e) {
+            Journal.avertissement("Erreur lors du signalement du service: ", e.getMessage());
+        }
+    }
+
+    /**
+     * Nombre de demandes en cours
+     *
+     * @return
+     */
+    public int nombreEnCours() {
+        return enCours.size();
+    }
+
+    /**
+     * Ferme le canal et arrête le minuteur, les demandes en cours échouent
+     */
+    @Override
+    public void close() {
+        ferme = true;
+        try {
+            canal.close();
+        } catch (IOException e) {
+            Journal.avertissement("Erreur lors de la fermeture du canal: ", e.getMessage());
+        }
+        minuteur.shutdownNow();
+        for (Demande<?> demande : enCours.values()) {
+            demande.echouer(new ClosedChannelException());
+        }
+    }
+
+    /**
+     * Enregistre une demande dans la table et l'envoie
+     *
+     * @param demande
+     * @return le futur de la demande
+     */
+    private <T> CompletableFuture<T> demarrer(Demande<T> demande) {
+        if (ferme) {
+            demande.resultat.completeExceptionally(new ClosedChannelException());
+            return demande.resultat;
+        }
+        enCours.put(demande.idRequete, demande);
+        demande.envoyer();
+        return demande.resultat;
+    }
+
+    /**
+     * Boucle du thread de réception: chaque réponse est transmise à la demande qui porte son id de requête, qui se
+     * trouve à la fin de la réponse
+     */
+    private void recevoir() {
+        ByteBuffer reponse = Codec.allouer(tailleMaxReponse);
+        while (!ferme) {
+            try {
+                reponse.clear();
+                SocketAddress source = canal.receive(reponse);
+                reponse.flip();
+                if (source == null || reponse.remaining() < 1 + Codec.TAILLE_ID_REQUETE) {
+                    continue;
+                }
+                Demande<?> demande = enCours.get(reponse.getInt(reponse.limit() - Codec.TAILLE_ID_REQUETE));
+                Protocole type = Codec.lireType(reponse);
+                if (demande == null || type == null || !demande.aContacte(source)) {
+                    continue;
+                }
+                reponse.limit(reponse.limit() - Codec.TAILLE_ID_REQUETE);
+                demande.recevoir(type, reponse);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                Journal.erreur("Erreur lors de la réception d'une réponse: ", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Id de requête de la demande suivante, jamais 0
+     *
+     * @return
+     */
+    private int nouvelIdRequete() {
+        int id;
+        do {
+            id = dernierIdRequete.incrementAndGet();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * Lieur à interroger pour un type: son propriétaire s'il a été retenu, sinon le lieur suivant de la liste
+     *
+     * @param idService
+     * @return
+     */
+    private InetSocketAddress lieurPour(int idService) {
+        InetSocketAddress proprietaire = proprietaires.get(idService);
+        return proprietaire != null ? proprietaire : lieurSuivant();
+    }
+
+    /**
+     * Lieur suivant de la liste, à tour de rôle
+     *
+     * @return
+     */
+    private InetSocketAddress lieurSuivant() {
+        return lieurs[Math.floorMod(prochainLieur.getAndIncrement(), lieurs.length)];
+    }
+}
@@ -0,0 +1,756 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodage et décodage des messages du protocole dans des ByteBuffer. Les méthodes écrivent et lisent directement
+ * dans le tampon fourni, sans tableau intermédiaire, les tampons peuvent donc être réutilisés d'un message à l'autre.
+ *
+ * Les entiers (ports, compteurs, séquences) sont transmis en little-endian, les adresses IPv4 dans l'ordre du réseau
+ * (l'octet de poids fort en premier). Une adresse IPv4 est représentée par un int.
+ *
+ * Les méthodes encoder... vident le tampon, y écrivent le message complet et le préparent pour l'envoi (flip). Les
+ * messages de taille variable sont construits avec les méthodes ecrire... puis le tampon doit être préparé par
+ * l'appelant. Pour décoder, on lit le type avec lireType puis les champs du message dans l'ordre avec les méthodes
+ * lire... ou directement avec les getters du tampon.
+ *
+ * Les demandes des clients (DEMANDE_DE_SERVICE, DEMANDE_DE_SERVICES, CONTACT_SERVICE) et leurs réponses peuvent se
+ * terminer par un id de requête sur 4 bytes, que la réponse reprend. L'id 0 signifie qu'il n'y a pas d'id, il n'est
+ * alors pas transmis: les messages sans id restent ceux des versions précédentes du protocole.
+ */
+public class Codec {
+    public static final ByteOrder ORDRE = ByteOrder.LITTLE_ENDIAN;
+
+    public static final int TAILLE_SERVICE = 7;            // Type de service, IP et port
+    public static final int TAILLE_ADRESSE = 6;            // IP et port d'un lieur
+    public static final int TAILLE_ENTREE = 28;            // Présent, service, origine, séquence et lamport
+    public static final int TAILLE_VERSION = 12;           // Origine et séquence
+    public static final int TAILLE_ENTETE_FRAGMENT = 21;   // Type, id instantané, numéro, nb fragments, nb services, nb origines, nb entrées
+    public static final int TAILLE_ENTETE_DEMANDE_FRAGMENTS = 7; // Type, id instantané, nb numéros
+    public static final int TAILLE_ENTETE_RESUME = 3;      // Type et nb origines
+    public static final int TAILLE_ENTETE_DELTA = 23;      // Type, origine, séquence de début, séquence de fin, nb entrées
+    public static final int TAILLE_ENTETE_LOT = 3;         // Type et nb entrées
+    public static final int NB_MAX_IDS_PAR_DEMANDE = 128;  // Nombre maximal de types de service dans DEMANDE_DE_SERVICES
+    public static final int TAILLE_ID_REQUETE = 4;         // Id de requête à la fin des demandes des clients et de leurs réponses
+    public static final int TAILLE_ENTETE_STATISTIQUES = 7; // Type, nb total de valeurs, index de la première valeur, nb valeurs
+
+    private static final Protocole[] TYPES = Protocole.values();
+
+    /**
+     * Alloue un tampon dans l'ordre des octets du protocole
+     *
+     * @param taille
+     * @return
+     */
+    public static ByteBuffer allouer(int taille) {
+        return ByteBuffer.allocate(taille).order(ORDRE);
+    }
+
+    /**
+     * Alloue un tampon hors du tas, dans l'ordre des octets du protocole
+     *
+     * @param taille
+     * @return
+     */
+    public static ByteBuffer allouerDirect(int taille) {
+        return ByteBuffer.allocateDirect(taille).order(ORDRE);
+    }
+
+    /**
+     * Lit le type du message
+     *
+     * @param tampon
+     * @return le type ou null si le tampon est vide ou le type inconnu
+     */
+    public static Protocole lireType(ByteBuffer tampon) {
+        if (!tampon.hasRemaining()) {
+            return null;
+        }
+        int ordinal = tampon.get() & 0xFF;
+        return ordinal < TYPES.length ? TYPES[ordinal] : null;
+    }
+
+    /**
+     * Ecrit le type du message
+     *
+     * @param tampon
+     * @param type
+     */
+    public static void ecrireType(ByteBuffer tampon, Protocole type) {
+        tampon.put((byte) type.ordinal());
+    }
+
+    /**
+     * Vide le tampon, le met dans l'ordre du protocole et écrit le type du message
+     *
+     * @param tampon
+     * @param type
+     */
+    public static void commencer(ByteBuffer tampon, Protocole type) {
+        tampon.clear();
+        tampon.order(ORDRE);
+        ecrireType(tampon, type);
+    }
+
+    /**
+     * Prépare le tampon pour l'envoi du message qui vient d'être écrit
+     *
+     * @param tampon
+     * @return le tampon
+     */
+    public static ByteBuffer terminer(ByteBuffer tampon) {
+        tampon.flip();
+        return tampon;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Champs
+
+    /**
+     * Ecrit l'id, l'IP et le port d'un service
+     *
+     * @param tampon
+     * @param idService
+     * @param ip
+     * @param port
+     */
+    public static void ecrireService(ByteBuffer tampon, int idService, int ip, int port) {
+        tampon.put((byte) idService);
+        ecrireIp(tampon, ip);
+        ecrirePort(tampon, port);
+    }
+
+    /**
+     * Lit un id de service, transmis sur un byte non signé
+     *
+     * @param tampon
+     * @return entre 0 et 255
+     */
+    public static int lireIdService(ByteBuffer tampon) {
+        return tampon.get() & 0xFF;
+    }
+
+    /**
+     * Ecrit une adresse IPv4 dans l'ordre du réseau, quel que soit l'ordre du tampon
+     *
+     * @param tampon
+     * @param ip
+     */
+    public static void ecrireIp(ByteBuffer tampon, int ip) {
+        tampon.put((byte) (ip >>> 24)).put((byte) (ip >>> 16)).put((byte) (ip >>> 8)).put((byte) ip);
+    }
+
+    /**
+     * Lit une adresse IPv4 écrite dans l'ordre du réseau
+     *
+     * @param tampon
+     * @return
+     */
+    public static int lireIp(ByteBuffer tampon) {
+        return (tampon.get() & 0xFF) << 24 | (tampon.get() & 0xFF) << 16 | (tampon.get() & 0xFF) << 8 | (tampon.get() & 0xFF);
+    }
+
+    public static void ecrirePort(ByteBuffer tampon, int port) {
+        tampon.putShort((short) port);
+    }
+
+    public static int lirePort(ByteBuffer tampon) {
+        return tampon.getShort() & 0xFFFF;
+    }
+
+    /**
+     * Ecrit la version d'un lieur dans un vecteur de versions
+     *
+     * @param tampon
+     * @param origine
+     * @param sequence
+     */
+    public static void ecrireVersion(ByteBuffer tampon, int origine, long sequence) {
+        tampon.putInt(origine).putLong(sequence);
+    }
+
+    /**
+     * Ecrit une entrée du registre
+     *
+     * @param tampon
+     * @param present
+     * @param idService
+     * @param ip
+     * @param port
+     * @param origine
+     * @param sequence
+     * @param lamport
+     */
+    public static void ecrireEntree(ByteBuffer tampon, boolean present, int idService, int ip, int port,
+                                    int origine, long sequence, long lamport) {
+        tampon.put((byte) (present ? 1 : 0));
+        ecrireService(tampon, idService, ip, port);
+        tampon.putInt(origine).putLong(sequence).putLong(lamport);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Conversions des adresses
+
+    /**
+     * Converti une adresse IPv4 en int
+     *
+     * @param adresse
+     * @return
+     */
+    public static int ipVersEntier(InetAddress adresse) {
+        byte[] ip = adresse.getAddress();
+        return (ip[0] & 0xFF) << 24 | (ip[1] & 0xFF) << 16 | (ip[2] & 0xFF) << 8 | (ip[3] & 0xFF);
+    }
+
+    /**
+     * Converti une adresse IPv4 représentée par un int en InetAddress
+     *
+     * @param ip
+     * @return
+     */
+    public static InetAddress entierVersIp(int ip) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip});
+        } catch (UnknownHostException e) {
+            // N'arrive pas, l'adresse a toujours 4 bytes
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Converti une adresse IPv4 représentée par un int en texte
+     *
+     * @param ip
+     * @return
+     */
+    public static String entierVersTexte(int ip) {
+        return (ip >>> 24) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    /**
+     * Ecrit l'id de requête à la fin d'un message, rien n'est écrit pour l'id 0
+     *
+     * @param tampon
+     * @param idRequete
+     */
+    public static void ecrireIdRequete(ByteBuffer tampon, int idRequete) {
+        if (idRequete != 0) {
+            tampon.putInt(idRequete);
+        }
+    }
+
+    /**
+     * Lit l'id de requête qui termine un message
+     *
+     * @param tampon
+     * @return l'id ou 0 si le message n'en a pas
+     */
+    public static int lireIdRequete(ByteBuffer tampon) {
+        return tampon.remaining() >= TAILLE_ID_REQUETE ? tampon.getInt() : 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Messages client <-> service
+
+    /**
+     * CONTACT_SERVICE: [type][longueur du message][message]
+     *
+     * @param tampon
+     * @param message tampon contenant le message, entre sa position et sa limite
+     * @return
+     */
+    public static ByteBuffer encoderContactService(ByteBuffer tampon, ByteBuffer message) {
+        return encoderMessageService(tampon, Protocole.CONTACT_SERVICE, message, 0);
+    }
+
+    /**
+     * CONTACT_SERVICE avec id de requête: [type][longueur du message][message][id de requête]
+     *
+     * @param tampon
+     * @param message tampon contenant le message, entre sa position et sa limite
+     * @param idRequete
+     * @return
+     */
+    public static ByteBuffer encoderContactService(ByteBuffer tampon, ByteBuffer message, int idRequete) {
+        return encoderMessageService(tampon, Protocole.CONTACT_SERVICE, message, idRequete);
+    }
+
+    /**
+     * REPONSE_DU_SERVICE: [type][longueur du message][message]
+     *
+     * @param tampon
+     * @param message tampon contenant le message, entre sa position et sa limite
+     * @return
+     */
+    public static ByteBuffer encoderReponseDuService(ByteBuffer tampon, ByteBuffer message) {
+        return encoderMessageService(tampon, Protocole.REPONSE_DU_SERVICE, message, 0);
+    }
+
+    /**
+     * REPONSE_DU_SERVICE avec l'id de la requête: [type][longueur du message][message][id de requête]
+     *
+     * @param tampon
+     * @param message tampon contenant le message, entre sa position et sa limite
+     * @param idRequete
+     * @return
+     */
+    public static ByteBuffer encoderReponseDuService(ByteBuffer tampon, ByteBuffer message, int idRequete) {
+        return encoderMessageService(tampon, Protocole.REPONSE_DU_SERVICE, message, idRequete);
+    }
+
+    private static ByteBuffer encoderMessageService(ByteBuffer tampon, Protocole type, ByteBuffer message, int idRequete) {
+        commencer(tampon, type);
+        tampon.put((byte) message.remaining());
+        tampon.put(message);
+        ecrireIdRequete(tampon, idRequete);
+        return terminer(tampon);
+    }
+
+    /**
+     * Lit la longueur du message de CONTACT_SERVICE ou REPONSE_DU_SERVICE, le message suit dans le tampon
+     *
+     * @param tampon
+     * @return
+     */
+    public static int lireLongueurMessage(ByteBuffer tampon) {
+        return tampon.get() & 0xFF;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Messages client/service <-> lieur
+
+    /**
+     * Messages sans contenu: CONFIRMATION_ABONNEMENT, DEMANDE_DE_LISTE_DE_SERVICES, VERIFIE_N_EXISTE_PAS, J_EXISTE
+     * et SERVICE_EXISTE_PAS en réponse à une demande de service.
+     *
+     * @param tampon
+     * @param type
+     * @return
+     */
+    public static ByteBuffer encoderSimple(ByteBuffer tampon, Protocole type) {
+        commencer(tampon, type);
+        return terminer(tampon);
+    }
+
+    /**
+     * DEMANDE_DE_SERVICE: [type][type de service]
+     *
+     * @param tampon
+     * @param idService
+     * @return
+     */
+    public static ByteBuffer encoderDemandeDeService(ByteBuffer tampon, int idService) {
+        return encoderDemandeDeService(tampon, idService, 0);
+    }
+
+    /**
+     * DEMANDE_DE_SERVICE avec id de requête: [type][type de service][id de requête]
+     *
+     * @param tampon
+     * @param idService
+     * @param idRequete
+     * @return
+     */
+    public static ByteBuffer encoderDemandeDeService(ByteBuffer tampon, int idService, int idRequete) {
+        commencer(tampon, Protocole.DEMANDE_DE_SERVICE);
+        tampon.put((byte) idService);
+        ecrireIdRequete(tampon, idRequete);
+        return terminer(tampon);
+    }
+
+    /**
+     * ABONNEMENT: [type][type de service][durée du bail]
+     *
+     * @param tampon
+     * @param idService
+     * @param bail durée du bail en millisecondes, 0 pour un abonnement sans bail
+     * @return
+     */
+    public static ByteBuffer encoderAbonnement(ByteBuffer tampon, int idService, int bail) {
+        commencer(tampon, Protocole.ABONNEMENT);
+        tampon.put((byte) idService);
+        tampon.putInt(bail);
+        return terminer(tampon);
+    }
+
+    /**
+     * BATTEMENT: [type][type de service][durée du bail][charge]
+     *
+     * @param tampon
+     * @param idService
+     * @param bail durée du bail renouvelé en millisecondes
+     * @param charge charge du service en demandes par seconde
+     * @return
+     */
+    public static ByteBuffer encoderBattement(ByteBuffer tampon, int idService, int bail, int charge) {
+        commencer(tampon, Protocole.BATTEMENT);
+        tampon.put((byte) idService);
+        tampon.putInt(bail);
+        tampon.putInt(charge);
+        return terminer(tampon);
+    }
+
+    /**
+     * DESABONNEMENT: [type][type de service]
+     *
+     * @param tampon
+     * @param idService
+     * @return
+     */
+    public static ByteBuffer encoderDesabonnement(ByteBuffer tampon, int idService) {
+        commencer(tampon, Protocole.DESABONNEMENT);
+        tampon.put((byte) idService);
+        return terminer(tampon);
+    }
+
+    /**
+     * CONFIRMATION_DESABONNEMENT: [type][type de service]
+     *
+     * @param tampon
+     * @param idService
+     * @return
+     */
+    public static ByteBuffer encoderConfirmationDesabonnement(ByteBuffer tampon, int idService) {
+        commencer(tampon, Protocole.CONFIRMATION_DESABONNEMENT);
+        tampon.put((byte) idService);
+        return terminer(tampon);
+    }
+
+    /**
+     * Lit la durée du bail de ABONNEMENT ou BATTEMENT. Un abonnement sans durée de bail (ancien format) n'a pas de bail.
+     *
+     * @param tampon
+     * @return la durée en millisecondes, 0 s'il n'y a pas de bail
+     */
+    public static int lireBail(ByteBuffer tampon) {
+        return tampon.remaining() >= 4 ? Math.max(0, tampon.getInt()) : 0;
+    }
+
+    /**
+     * REPONSE_DEMANDE_DE_SERVICE: [type][type de service][IP du service][port du service]
+     *
+     * @param tampon
+     * @param idService
+     * @param ip
+     * @param port
+     * @return
+     */
+    public static ByteBuffer encoderReponseDemandeDeService(ByteBuffer tampon, int idService, int ip, int port) {
+        return encoderReponseDemandeDeService(tampon, idService, ip, port, 0);
+    }
+
+    /**
+     * REPONSE_DEMANDE_DE_SERVICE avec l'id de la demande: [type][type de service][IP du service][port du service][id de requête]
+     *
+     * @param tampon
+     * @param idService
+     * @param ip
+     * @param port
+     * @param idRequete
+     * @return
+     */
+    public static ByteBuffer encoderReponseDemandeDeService(ByteBuffer tampon, int idService, int ip, int port, int idRequete) {
+        commencer(tampon, Protocole.REPONSE_DEMANDE_DE_SERVICE);
+        ecrireService(tampon, idService, ip, port);
+        ecrireIdRequete(tampon, idRequete);
+        return terminer(tampon);
+    }
+
+    /**
+     * SERVICE_EXISTE_PAS du lieur au client, en réponse à une demande de service: [type][id de requête]
+     *
+     * @param tampon
+     * @param idRequete
+     * @return
+     */
+    public static ByteBuffer encoderReponseServiceExistePas(ByteBuffer tampon, int idRequete) {
+        commencer(tampon, Protocole.SERVICE_EXISTE_PAS);
+        ecrireIdRequete(tampon, idRequete);
+        return terminer(tampon);
+    }
+
+    /**
+     * SERVICE_EXISTE_PAS du client au lieur: [type][type de service][IP du service][port du service]
+     *
+     * @param tampon
+     * @param idService
+     * @param ip
+     * @param port
+     * @return
+     */
+    public static ByteBuffer encoderServiceExistePas(ByteBuffer tampon, int idService, int ip, int port) {
+        commencer(tampon, Protocole.SERVICE_EXISTE_PAS);
+        ecrireService(tampon, idService, ip, port);
+        return terminer(tampon);
+    }
+
+    /**
+     * DEMANDE_DE_SERVICES: [type][nombre de types][type de service]*
+     *
+     * @param tampon
+     * @param idsServices
+     * @param nbIds nombre de types de service à demander, au plus NB_MAX_IDS_PAR_DEMANDE
+     * @return
+     */
+    public static ByteBuffer encoderDemandeDeServices(ByteBuffer tampon, int[] idsServices, int nbIds) {
+        return encoderDemandeDeServices(tampon, idsServices, nbIds, 0);
+    }
+
+    /**
+     * DEMANDE_DE_SERVICES avec id de requête: [type][nombre de types][type de service]*[id de requête]
+     *
+     * @param tampon
+     * @param idsServices
+     * @param nbIds nombre de types de service à demander, au plus NB_MAX_IDS_PAR_DEMANDE
+     * @param idRequete
+     * @return
+     */
+    public static ByteBuffer encoderDemandeDeServices(ByteBuffer tampon, int[] idsServices, int nbIds, int idRequete) {
+        commencer(tampon, Protocole.DEMANDE_DE_SERVICES);
+        tampon.put((byte) nbIds);
+        for (int i = 0; i < nbIds; i++) {
+            tampon.put((byte) idsServices[i]);
+        }
+        ecrireIdRequete(tampon, idRequete);
+        return terminer(tampon);
+    }
+
+    /**
+     * En-tête de REPONSE_DEMANDE_DE_SERVICES: [type][nombre de services], suivi d'un service par type demandé, dans
+     * l'ordre de la demande, puis de l'id de requête de la demande. Un type pour lequel aucun service n'est connu a une
+     * IP et un port à 0.
+     *
+     * @param tampon
+     * @param nbServices
+     */
+    public static void ecrireEnteteReponseServices(ByteBuffer tampon, int nbServices) {
+        commencer(tampon, Protocole.REPONSE_DEMANDE_DE_SERVICES);
+        tampon.put((byte) nbServices);
+    }
+
+    /**
+     * Lit le nombre de types de service de DEMANDE_DE_SERVICES ou REPONSE_DEMANDE_DE_SERVICES
+     *
+     * @param tampon
+     * @return
+     */
+    public static int lireNombreIds(ByteBuffer tampon) {
+        return tampon.get() & 0xFF;
+    }
+
+    /**
+     * Lit la charge d'un BATTEMENT, qui suit la durée du bail
+     *
+     * @param tampon
+     * @return la charge en demandes par seconde, -1 si elle n'est pas indiquée
+     */
+    public static int lireCharge(ByteBuffer tampon) {
+        return tampon.remaining() >= 4 ? Math.max(0, tampon.getInt()) : -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Messages lieur <-> lieur
+
+    /**
+     * AJOUT_SERVICE ou SUPPRESSION_SERVICE: [type][entrée]
+     */
+    public static ByteBuffer encoderModification(ByteBuffer tampon, boolean present, int idService, int ip, int port,
+                                                 int origine, long sequence, long lamport) {
+        commencer(tampon, present ? Protocole.AJOUT_SERVICE : Protocole.SUPPRESSION_SERVICE);
+        ecrireEntree(tampon, present, idService, ip, port, origine, sequence, lamport);
+        return terminer(tampon);
+    }
+
+    /**
+     * En-tête de REPONSE_DEMANDE_LISTE_DE_SERVICES, suivi des versions puis des entrées du fragment
+     */
+    public static void ecrireEnteteFragment(ByteBuffer tampon, int idInstantane, int numero, int nbFragments,
+                                            int nbServices, int nbOrigines, int nbEntrees) {
+        commencer(tampon, Protocole.REPONSE_DEMANDE_LISTE_DE_SERVICES);
+        tampon.putInt(idInstantane).putInt(numero).putInt(nbFragments).putInt(nbServices)
+              .putShort((short) nbOrigines).putShort((short) nbEntrees);
+    }
+
+    /**
+     * En-tête de DEMANDE_FRAGMENTS_MANQUANTS, suivi des numéros des fragments (4 bytes chacun). Le nombre de numéros
+     * est complété par fixerNombreFragmentsDemandes une fois les numéros écrits.
+     */
+    public static void ecrireEnteteDemandeFragments(ByteBuffer tampon, int idInstantane) {
+        commencer(tampon, Protocole.DEMANDE_FRAGMENTS_MANQUANTS);
+        tampon.putInt(idInstantane).putShort((short) 0);
+    }
+
+    public static void fixerNombreFragmentsDemandes(ByteBuffer tampon, int nbNumeros) {
+        tampon.putShort(5, (short) nbNumeros);
+    }
+
+    /**
+     * En-tête de RESUME_VERSIONS, suivi des versions
+     */
+    public static void ecrireEnteteResume(ByteBuffer tampon, int nbOrigines) {
+        commencer(tampon, Protocole.RESUME_VERSIONS);
+        tampon.putShort((short) nbOrigines);
+    }
+
+    /**
+     * En-tête de DELTA_REGISTRE, suivi des entrées
+     */
+    public static void ecrireEnteteDelta(ByteBuffer tampon, int origine, long de, long a, int nbEntrees) {
+        commencer(tampon, Protocole.DELTA_REGISTRE);
+        tampon.putInt(origine).putLong(de).putLong(a).putShort((short) nbEntrees);
+    }
+
+    /**
+     * En-tête de LOT_MODIFICATIONS, suivi des entrées
+     */
+    public static void ecrireEnteteLot(ByteBuffer tampon, int nbEntrees) {
+        commencer(tampon, Protocole.LOT_MODIFICATIONS);
+        tampon.putShort((short) nbEntrees);
+    }
+
+    /**
+     * Lit un nombre d'éléments (versions, entrées, numéros) sur 2 bytes
+     *
+     * @param tampon
+     * @return
+     */
+    public static int lireNombre(ByteBuffer tampon) {
+        return tampon.getShort() & 0xFFFF;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Surcharge
+
+    /**
+     * SURCHARGE: [type][type de la demande refusée][délai avant un nouvel essai en millisecondes][id de requête]
+     *
+     * @param tampon
+     * @param refusee type de la demande refusée
+     * @param delai
+     * @param idRequete id de la demande refusée, 0 si elle n'en a pas
+     * @return
+     */
+    public static ByteBuffer encoderSurcharge(ByteBuffer tampon, Protocole refusee, int delai, int idRequete) {
+        commencer(tampon, Protocole.SURCHARGE);
+        tampon.put((byte) refusee.ordinal());
+        tampon.putInt(delai);
+        ecrireIdRequete(tampon, idRequete);
+        return terminer(tampon);
+    }
+
+    /**
+     * Lit le délai avant un nouvel essai de SURCHARGE, qui suit le type de la demande refusée (lu avec lireType)
+     *
+     * @param tampon
+     * @return en millisecondes
+     */
+    public static int lireDelaiNouvelEssai(ByteBuffer tampon) {
+        return tampon.getInt();
+    }
+
+    /**
+     * REDIRECTION: [type][type de service][nombre de lieurs][IP du lieur][port du lieur]*[id de requête]
+     *
+     * @param tampon
+     * @param idService type de service que le lieur ne possède pas
+     * @param proprietaires lieurs propriétaires du type de service, au plus 255
+     * @param idRequete id de la demande redirigée, 0 si elle n'en a pas
+     * @return
+     */
+    public static ByteBuffer encoderRedirection(ByteBuffer tampon, int idService, InetSocketAddress[] proprietaires, int idRequete) {
+        commencer(tampon, Protocole.REDIRECTION);
+        tampon.put((byte) idService);
+        tampon.put((byte) proprietaires.length);
+        for (InetSocketAddress proprietaire : proprietaires) {
+            ecrireIp(tampon, ipVersEntier(proprietaire.getAddress()));
+            ecrirePort(tampon, proprietaire.getPort());
+        }
+        ecrireIdRequete(tampon, idRequete);
+        return terminer(tampon);
+    }
+
+    /**
+     * Lit les lieurs propriétaires de REDIRECTION, qui suivent le type de service
+     *
+     * @param tampon
+     * @return
+     */
+    public static InetSocketAddress[] lireProprietaires(ByteBuffer tampon) {
+        int nbLieurs = Math.min(tampon.get() & 0xFF, tampon.remaining() / TAILLE_ADRESSE);
+        InetSocketAddress[] proprietaires = new InetSocketAddress[nbLieurs];
+        for (int i = 0; i < nbLieurs; i++) {
+            int ip = lireIp(tampon);
+            proprietaires[i] = new InetSocketAddress(entierVersIp(ip), lirePort(tampon));
+        }
+        return proprietaires;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Statistiques
+
+    /**
+     * DEMANDE_STATISTIQUES: [type][index de la première valeur demandée]
+     *
+     * @param tampon
+     * @param depuis
+     * @return
+     */
+    public static ByteBuffer encoderDemandeStatistiques(ByteBuffer tampon, int depuis) {
+        commencer(tampon, Protocole.DEMANDE_STATISTIQUES);
+        tampon.putShort((short) depuis);
+        return terminer(tampon);
+    }
+
+    /**
+     * En-tête de REPONSE_STATISTIQUES: [type][nombre total de valeurs][index de la première valeur][nombre de valeurs],
+     * suivi des valeurs écrites par ecrireValeur. Le nombre de valeurs est complété par fixerNombreValeurs.
+     */
+    public static void ecrireEnteteReponseStatistiques(ByteBuffer tampon, int nbTotal, int depuis) {
+        commencer(tampon, Protocole.REPONSE_STATISTIQUES);
+        tampon.putShort((short) nbTotal).putShort((short) depuis).putShort((short) 0);
+    }
+
+    public static void fixerNombreValeurs(ByteBuffer tampon, int nbValeurs) {
+        tampon.putShort(5, (short) nbValeurs);
+    }
+
+    /**
+     * Ecrit une valeur nommée: [longueur du nom][nom][valeur sur 8 bytes]
+     *
+     * @param tampon
+     * @param nom
+     * @param valeur
+     * @return faux si la valeur ne tient pas dans la place restante du tampon, rien n'est alors écrit
+     */
+    public static boolean ecrireValeur(ByteBuffer tampon, String nom, long valeur) {
+        byte[] octets = nom.getBytes(StandardCharsets.UTF_8);
+        int longueur = Math.min(octets.length, 255);
+        if (tampon.remaining() < 1 + longueur + 8) {
+            return false;
+        }
+        tampon.put((byte) longueur).put(octets, 0, longueur).putLong(valeur);
+        return true;
+    }
+
+    /**
+     * Lit le nom d'une valeur de REPONSE_STATISTIQUES, suivi de la valeur à lire avec getLong
+     *
+     * @param tampon
+     * @return
+     */
+    public static String lireNom(ByteBuffer tampon) {
+        byte[] octets = new byte[tampon.get() & 0xFF];
+        tampon.get(octets);
+        return new String(octets, StandardCharsets.UTF_8);
+    }
+}
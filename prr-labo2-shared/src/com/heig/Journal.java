@@ -0,0 +1,212 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Journal des lieurs, serveurs et clients. Les messages ne sont pas écrits par le thread qui les journalise: ils sont
+ * déposés dans un tampon circulaire et un thread d'écriture démon les formate et les écrit sur la sortie standard.
+ * Journaliser ne prend donc aucun verrou et ne fait aucune entrée/sortie.
+ *
+ * Le tampon circulaire a une taille fixe et plusieurs producteurs pour un seul consommateur: chaque case a un numéro de
+ * séquence qui indique si elle est libre pour la position d'écriture courante ou prête à être lue. Un producteur
+ * réserve une position par compare-and-set, remplit la case puis publie sa séquence. Si le tampon est plein le message
+ * est abandonné plutôt que de bloquer le producteur, le nombre de messages abandonnés est écrit ensuite.
+ *
+ * Un message est un texte constant et un argument optionnel, concaténés par le thread d'écriture: journaliser un texte
+ * constant et un objet existant n'alloue rien. Les messages d'un niveau inactif sont ignorés dès l'appel, les messages
+ * dont la construction coûte (concaténations, parcours du registre) doivent être protégés par estActif ou debug().
+ */
+public class Journal {
+    /**
+     * Niveaux des messages, du plus grave au plus détaillé
+     */
+    public enum Niveau {
+        ERREUR,
+        AVERTISSEMENT,
+        INFO,
+        DEBUG
+    }
+
+    private static final int CAPACITE = 1 << 14;                  // Nombre de cases du tampon, une puissance de 2
+    private static final int MASQUE = CAPACITE - 1;
+    private static final long ATTENTE_VIDE = TimeUnit.MILLISECONDS.toNanos(1); // Pause du thread d'écriture quand le tampon est vide
+
+    private static volatile Niveau niveau = Niveau.INFO;          // Niveau le plus détaillé écrit
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITE); // Séquence de chaque case
+    private static final Niveau[] niveaux = new Niveau[CAPACITE];
+    private static final long[] instants = new long[CAPACITE];
+    private static final String[] textes = new String[CAPACITE];
+    private static final Object[] arguments = new Object[CAPACITE];
+    private static final AtomicLong ecriture = new AtomicLong();  // Prochaine position à réserver par un producteur
+    private static final AtomicLong abandonnes = new AtomicLong(); // Messages abandonnés, tampon plein
+    private static long lecture;                                  // Prochaine position à lire, propre au thread d'écriture
+    private static final PrintStream sortie = System.out;
+
+    static {
+        for (int i = 0; i < CAPACITE; i++) {
+            sequences.set(i, i);
+        }
+        Thread ecrivain = new Thread(Journal::ecrire, "journal");
+        ecrivain.setDaemon(true);
+        ecrivain.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Journal::vider, "journal-arret"));
+    }
+
+    private Journal() {
+    }
+
+    public static Niveau getNiveau() {
+        return niveau;
+    }
+
+    public static void setNiveau(Niveau niveau) {
+        Journal.niveau = niveau;
+    }
+
+    /**
+     * Indique si les messages du niveau donné sont écrits
+     *
+     * @param niveauMessage
+     * @return
+     */
+    public static boolean estActif(Niveau niveauMessage) {
+        return niveauMessage.ordinal() <= niveau.ordinal();
+    }
+
+    public static boolean debug() {
+        return estActif(Niveau.DEBUG);
+    }
+
+    public static void erreur(String texte) {
+        journaliser(Niveau.ERREUR, texte, null);
+    }
+
+    public static void erreur(String texte, Object argument) {
+        journaliser(Niveau.ERREUR, texte, argument);
+    }
+
+    public static void avertissement(String texte) {
+        journaliser(Niveau.AVERTISSEMENT, texte, null);
+    }
+
+    public static void avertissement(String texte, Object argument) {
+        journaliser(Niveau.AVERTISSEMENT, texte, argument);
+    }
+
+    public static void info(String texte) {
+        journaliser(Niveau.INFO, texte, null);
+    }
+
+    public static void info(String texte, Object argument) {
+        journaliser(Niveau.INFO, texte, argument);
+    }
+
+    public static void debug(String texte) {
+        journaliser(Niveau.DEBUG, texte, null);
+    }
+
+    public static void debug(String texte, Object argument) {
+        journaliser(Niveau.DEBUG, texte, argument);
+    }
+
+    /**
+     * Dépose un message dans le tampon s'il est du niveau actif et qu'une case est libre
+     *
+     * @param niveauMessage
+     * @param texte
+     * @param argument écrit à la suite du texte, null s'il n'y en a pas
+     */
+    public static void journaliser(Niveau niveauMessage, String texte, Object argument) {
+        if (!estActif(niveauMessage)) {
+            return;
+        }
+
+        // Réservation d'une position dont la case a été lue
+        long position;
+        int index;
+        while (true) {
+            position = ecriture.get();
+            index = (int) position & MASQUE;
+            long sequence = sequences.get(index);
+            if (sequence < position) {
+                abandonnes.incrementAndGet();
+                return;
+            }
+            if (sequence == position && ecriture.compareAndSet(position, position + 1)) {
+                break;
+            }
+        }
+
+        // Remplissage puis publication de la case pour le thread d'écriture
+        niveaux[index] = niveauMessage;
+        instants[index] = System.currentTimeMillis();
+        textes[index] = texte;
+        arguments[index] = argument;
+        sequences.lazySet(index, position + 1);
+    }
+
+    /**
+     * Boucle du thread d'écriture: écrit les messages publiés et attend brièvement quand le tampon est vide
+     */
+    private static void ecrire() {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        Date date = new Date();
+        StringBuilder ligne = new StringBuilder();
+        while (true) {
+            if (!ecrireSuivants(format, date, ligne)) {
+                sortie.flush();
+                LockSupport.parkNanos(ATTENTE_VIDE);
+            }
+        }
+    }
+
+    /**
+     * Ecrit tous les messages publiés
+     *
+     * @return faux si aucun message n'était publié
+     */
+    private static synchronized boolean ecrireSuivants(SimpleDateFormat format, Date date, StringBuilder ligne) {
+        boolean ecrit = false;
+        long perdus = abandonnes.getAndSet(0);
+        if (perdus > 0) {
+            sortie.println(Niveau.AVERTISSEMENT + " " + perdus + " messages du journal abandonnés, tampon plein");
+        }
+        while (true) {
+            int index = (int) lecture & MASQUE;
+            if (sequences.get(index) != lecture + 1) {
+                return ecrit;
+            }
+            date.setTime(instants[index]);
+            ligne.setLength(0);
+            ligne.append(format.format(date)).append(' ').append(niveaux[index]).append(' ').append(textes[index]);
+            if (arguments[index] != null) {
+                ligne.append(arguments[index]);
+            }
+            textes[index] = null;
+            arguments[index] = null;
+            sequences.lazySet(index, lecture + CAPACITE);
+            lecture++;
+            sortie.println(ligne);
+            ecrit = true;
+        }
+    }
+
+    /**
+     * Ecrit les messages en attente, appelé à l'arrêt de la JVM pour ne pas perdre les derniers messages
+     */
+    public static void vider() {
+        ecrireSuivants(new SimpleDateFormat("HH:mm:ss.SSS"), new Date(), new StringBuilder());
+        sortie.flush();
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Métriques d'un lieur ou d'un serveur: nombre de messages reçus et durée de traitement par type de message, compteurs
+ * et jauges nommés. Les compteurs sont des LongAdder, répartis en cellules par thread: les travailleurs les incrémentent
+ * sans se disputer une même variable ni prendre de verrou. Les durées sont comptées dans un histogramme à intervalles
+ * de puissances de 2 en microsecondes, un LongAdder par intervalle, les centiles sont donc donnés à un facteur 2 près
+ * (bornés par la durée maximale).
+ *
+ * Les valeurs ne sont assemblées qu'à la lecture (getValeurs): les jauges (taille du registre, vérifications en cours,
+ * ...) sont alors lues auprès de leur source. Les métriques sont exposées par JMX (MetriquesMXBean) et par le message
+ * DEMANDE_STATISTIQUES, auquel la réponse est construite par encoderReponseStatistiques. Les noms des valeurs sont de
+ * la forme groupe.nom, par exemple messages.DEMANDE_DE_SERVICE.recus ou verifications.confirmees.
+ */
+public class Metriques implements MetriquesMXBean {
+    private static final Protocole[] TYPES = Protocole.values();
+    private static final int NB_INTERVALLES = 32;       // Intervalle i: durées de 2^(i-1) à 2^i - 1 microsecondes
+
+    private final LongAdder[] recus = new LongAdder[TYPES.length];               // Messages reçus par type
+    private final LongAdder inconnus = new LongAdder();                          // Messages de type inconnu
+    private final LongAdder[][] durees = new LongAdder[TYPES.length][NB_INTERVALLES]; // Histogramme des durées de traitement par type
+    private final LongAdder[] sommesDurees = new LongAdder[TYPES.length];        // Somme des durées par type, pour la moyenne
+    private final LongAccumulator[] maxDurees = new LongAccumulator[TYPES.length]; // Durée maximale par type
+    private final Map<String, LongAdder> compteurs = new ConcurrentHashMap<>();  // Compteurs nommés
+    private final List<Consumer<Map<String, Long>>> sources = new CopyOnWriteArrayList<>(); // Sources des jauges
+
+    /**
+     * Création de métriques vides
+     */
+    public Metriques() {
+        for (int i = 0; i < TYPES.length; i++) {
+            recus[i] = new LongAdder();
+            sommesDurees[i] = new LongAdder();
+            maxDurees[i] = new LongAccumulator(Long::max, 0);
+            for (int j = 0; j < NB_INTERVALLES; j++) {
+                durees[i][j] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Compte un message reçu
+     *
+     * @param type null pour un message de type inconnu
+     */
+    public void recu(Protocole type) {
+        if (type == null) {
+            inconnus.increment();
+        } else {
+            recus[type.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Enregistre la durée de traitement d'un message
+     *
+     * @param type
+     * @param debut instant de la réception du message (System.nanoTime)
+     */
+    public void traite(Protocole type, long debut) {
+        long duree = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - debut);
+        int i = type.ordinal();
+        durees[i][Math.min(NB_INTERVALLES - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, duree)))].increment();
+        sommesDurees[i].add(duree);
+        maxDurees[i].accumulate(duree);
+    }
+
+    /**
+     * Retourne le compteur du nom donné, créé au premier appel. L'appelant garde le compteur pour l'incrémenter
+     * ensuite sans recherche.
+     *
+     * @param nom
+     * @return
+     */
+    public LongAdder compteur(String nom) {
+        return compteurs.computeIfAbsent(nom, n -> new LongAdder());
+    }
+
+    /**
+     * Ajoute une jauge, lue à chaque lecture des métriques
+     *
+     * @param nom
+     * @param valeur
+     */
+    public void jauge(String nom, LongSupplier valeur) {
+        sources.add(valeurs -> valeurs.put(nom, valeur.getAsLong()));
+    }
+
+    /**
+     * Ajoute une source de plusieurs jauges, dont le nombre peut varier (par exemple une par id de service). La source
+     * ajoute ses valeurs à la table reçue à chaque lecture des métriques.
+     *
+     * @param source
+     */
+    public void jauges(Consumer<Map<String, Long>> source) {
+        sources.add(source);
+    }
+
+    @Override
+    public SortedMap<String, Long> getValeurs() {
+        SortedMap<String, Long> valeurs = new TreeMap<>();
+        for (int i = 0; i < TYPES.length; i++) {
+            long nombre = recus[i].sum();
+            if (nombre == 0) {
+                continue;
+            }
+            String prefixe = "messages." + TYPES[i].name() + ".";
+            valeurs.put(prefixe + "recus", nombre);
+            long nbTraites = 0;
+            for (LongAdder intervalle : durees[i]) {
+                nbTraites += intervalle.sum();
+            }
+            if (nbTraites > 0) {
+                valeurs.put(prefixe + "moyenne_us", sommesDurees[i].sum() / nbTraites);
+                long max = maxDurees[i].get();
+                valeurs.put(prefixe + "p50_us", Math.min(centile(durees[i], nbTraites, 50), max));
+                valeurs.put(prefixe + "p99_us", Math.min(centile(durees[i], nbTraites, 99), max));
+                valeurs.put(prefixe + "max_us", max);
+            }
+        }
+        if (inconnus.sum() > 0) {
+            valeurs.put("messages.inconnus", inconnus.sum());
+        }
+        for (Map.Entry<String, LongAdder> compteur : compteurs.entrySet()) {
+            valeurs.put(compteur.getKey(), compteur.getValue().sum());
+        }
+        for (Consumer<Map<String, Long>> source : sources) {
+            source.accept(valeurs);
+        }
+        return valeurs;
+    }
+
+    /**
+     * Borne haute de l'intervalle qui contient le centile donné des durées
+     *
+     * @param intervalles
+     * @param nombre
+     * @param centile
+     * @return
+     */
+    private static long centile(LongAdder[] intervalles, long nombre, int centile) {
+        long rang = Math.max(1, (nombre * centile + 99) / 100);
+        long cumul = 0;
+        for (int i = 0; i < intervalles.length; i++) {
+            cumul += intervalles[i].sum();
+            if (cumul >= rang) {
+                return (1L << i) - 1;
+            }
+        }
+        return (1L << (intervalles.length - 1)) - 1;
+    }
+
+    /**
+     * Enregistre les métriques auprès du serveur JMX de la JVM, sous le nom com.heig:type=Metriques,name=nom
+     *
+     * @param nom nom du lieur ou du serveur, par exemple lieur-1111
+     */
+    public void enregistrerJmx(String nom) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("com.heig:type=Metriques,name=" + nom));
+        } catch (JMException e) {
+            Journal.erreur("Erreur lors de l'enregistrement des métriques JMX: ", e.getMessage());
+        }
+    }
+
+    /**
+     * Construit la réponse à DEMANDE_STATISTIQUES: les valeurs à partir de l'index demandé, autant que le tampon peut
+     * en contenir. Le demandeur redemande à partir de l'index suivant tant qu'il n'a pas reçu toutes les valeurs.
+     *
+     * @param tampon
+     * @param depuis index de la première valeur
+     * @return le tampon prêt pour l'envoi
+     */
+    public ByteBuffer encoderReponseStatistiques(ByteBuffer tampon, int depuis) {
+        SortedMap<String, Long> valeurs = getValeurs();
+        Codec.ecrireEnteteReponseStatistiques(tampon, valeurs.size(), depuis);
+        int index = 0;
+        int nbValeurs = 0;
+        for (Map.Entry<String, Long> valeur : valeurs.entrySet()) {
+            if (index++ < depuis) {
+                continue;
+            }
+            if (!Codec.ecrireValeur(tampon, valeur.getKey(), valeur.getValue())) {
+                break;
+            }
+            nbValeurs++;
+        }
+        Codec.fixerNombreValeurs(tampon, nbValeurs);
+        return Codec.terminer(tampon);
+    }
+}
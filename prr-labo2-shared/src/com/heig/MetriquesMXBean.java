@@ -0,0 +1,20 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.util.Map;
+
+/**
+ * Interface JMX des métriques d'un lieur ou d'un serveur (voir Metriques)
+ */
+public interface MetriquesMXBean {
+    /**
+     * Retourne toutes les valeurs des métriques, triées par nom
+     *
+     * @return
+     */
+    Map<String, Long> getValeurs();
+}
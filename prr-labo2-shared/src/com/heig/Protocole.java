@@ -6,7 +6,8 @@
 package com.heig;
 
 /**
- * Défini les différents types de message du protocole d'échange de paquet UDP entre le client, le serveur et le lieur
+ * Défini les différents types de message du protocole d'échange de paquet UDP entre le client, le serveur et le lieur.
+ * Le type d'un message est transmis par son ordinal, les nouveaux types doivent donc être ajoutés à la fin.
  */
 public enum Protocole {
     CONTACT_SERVICE,
@@ -21,7 +22,20 @@ public enum Protocole {
     AJOUT_SERVICE,
     SUPPRESSION_SERVICE,
     VERIFIE_N_EXISTE_PAS,
-    J_EXISTE;
+    J_EXISTE,
+    DEMANDE_FRAGMENTS_MANQUANTS,
+    RESUME_VERSIONS,
+    DELTA_REGISTRE,
+    LOT_MODIFICATIONS,
+    DEMANDE_DE_SERVICES,
+    REPONSE_DEMANDE_DE_SERVICES,
+    BATTEMENT,
+    DEMANDE_STATISTIQUES,
+    REPONSE_STATISTIQUES,
+    SURCHARGE,
+    DESABONNEMENT,
+    CONFIRMATION_DESABONNEMENT,
+    REDIRECTION;
 
     /**
      * Retourne le nom du message de type protocole à partir de l'ordinale
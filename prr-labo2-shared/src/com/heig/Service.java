@@ -5,16 +5,21 @@
  */
 package com.heig;
 
-import java.util.Date;
-
 /**
- * Défini un service avec une ip, un port et un id de service
+ * Défini un service avec une ip, un port et un id de service. Deux services sont égaux s'ils ont le même id, la même ip
+ * et le même port. L'adresse IPv4 est gardée sous forme d'un int (voir Codec), elle n'a donc pas à être résolue à
+ * chaque envoi. L'id, l'ip et le port tiennent ensemble dans un long, la clé du service.
+ *
+ * Un client garde un service obtenu d'un lieur au plus DUREE_VIE_CACHE_MAX millisecondes. Un serveur qui se désabonne
+ * répond encore aux clients pendant au moins cette durée par défaut: aucun client ne l'utilise plus ensuite.
  */
 public class Service {
+    public static final int DUREE_VIE_CACHE_MAX = 30000; // Durée maximale du cache des clients, couverte par le drainage des serveurs
+
     int idService;
-    String ip;
+    int ip;                   // Adresse IPv4, l'octet de poids fort en premier
     int port;
-    Date derniereUtilisation;
+    long derniereUtilisation; // Instant de la dernière utilisation selon une horloge monotone, 0 si jamais utilisé
 
     /**
      * Crée un nouveau service avec un id, une ip et un port
@@ -23,11 +28,11 @@ public class Service {
      * @param ip
      * @param port
      */
-    public Service(int idService, String ip, int port) {
+    public Service(int idService, int ip, int port) {
         this.idService = idService;
         this.ip = ip;
         this.port = port;
-        this.derniereUtilisation = null;
+        this.derniereUtilisation = 0;
     }
 
     public int getIdService() {
@@ -38,11 +43,11 @@ public class Service {
         this.idService = idService;
     }
 
-    public String getIp() {
+    public int getIp() {
         return ip;
     }
 
-    public void setIp(String ip) {
+    public void setIp(int ip) {
         this.ip = ip;
     }
 
@@ -54,15 +59,57 @@ public class Service {
         this.port = port;
     }
 
-    public Date getDerniereUtilisation() {
+    public long getDerniereUtilisation() {
         return derniereUtilisation;
     }
 
     /**
-     * Met à jour le champs dernière utilisation avec la date actuelle
+     * Met à jour le champs dernière utilisation avec la valeur d'une horloge monotone
+     *
+     * @param instant
+     */
+    public void utiliser(long instant) {
+        this.derniereUtilisation = instant;
+    }
+
+    /**
+     * Retourne la clé du service
+     *
+     * @return
+     */
+    public long cle() {
+        return cle(idService, ip, port);
+    }
+
+    /**
+     * Regroupe l'id de service (8 bits), l'IP (32 bits) et le port (16 bits) d'un service dans un long
+     *
+     * @param idService
+     * @param ip
+     * @param port
+     * @return
      */
-    public void utiliser() {
-        this.derniereUtilisation = new Date();
+    public static long cle(int idService, int ip, int port) {
+        return (long) (idService & 0xFF) << 48 | (ip & 0xFFFFFFFFL) << 16 | (port & 0xFFFF);
+    }
+
+    /**
+     * Deux services sont égaux s'ils ont le même id de service, la même ip et le même port
+     *
+     * @param o
+     * @return
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Service)) return false;
+        Service service = (Service) o;
+        return cle() == service.cle();
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(cle());
     }
 
     /**
@@ -71,6 +118,6 @@ public class Service {
      * @return
      */
     public String toString() {
-        return "Service: id " + idService + ", ip " + ip + ", port " + port;
+        return "Service: id " + idService + ", ip " + Codec.entierVersTexte(ip) + ", port " + port;
     }
 }
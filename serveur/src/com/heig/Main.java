@@ -7,16 +7,28 @@ package com.heig;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Cette classe permet de créer un nouveau serveur de service echo et de le démarrer.
  *
  * Pour appeler le programme serveur, il faut lui passer en paramêtre son port, l'id du service qu'il va fournir
- * et la liste des lieurs.
+ * et la liste des lieurs. Des options de la forme --nom valeur peuvent être ajoutées:
+ *
+ * --travailleurs : nombre de threads qui traitent les demandes des clients (par défaut le nombre de processeurs)
+ * --bail         : durée en millisecondes du bail de l'abonnement, renouvelé par des battements (15000 par défaut,
+ *                  0 pour s'abonner sans bail)
+ * --drainage     : durée en millisecondes pendant laquelle le serveur répond encore aux clients après s'être
+ *                  désabonné, à son arrêt (30000 par défaut, la durée de vie maximale du cache des clients).
+ *                  Le drainage se termine plus tôt après 2 secondes sans demande
+ * --journal      : niveau du journal: erreur, avertissement, info (par défaut) ou debug
  *
  * Par example :
  *
- * java serveur.jar 1234 1 127.0.0.1 1111 127.0.0.1 2222
+ * java serveur.jar 1234 1 127.0.0.1 1111 127.0.0.1 2222 --travailleurs 4
  */
 public class Main {
 
@@ -28,6 +40,21 @@ public class Main {
      * @throws IOException
      */
     public static void main(String[] args) throws InterruptedException, IOException {
+        // Séparation des options et des paramètres
+        Map<String, String> options = new HashMap<>();
+        List<String> parametres = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                parametres.add(args[i]);
+            }
+        }
+        args = parametres.toArray(new String[0]);
+        if (options.containsKey("journal")) {
+            Journal.setNiveau(Journal.Niveau.valueOf(options.get("journal").toUpperCase(Locale.ROOT)));
+        }
+
         // Récupération du port et de l'id
         if (args.length < 4) {
             System.out.println("Il faut fournir au moins le port, l'id du service et l'ip et le port d'un lieur");
@@ -44,6 +71,15 @@ public class Main {
 
         // Création et démarrage du serveur
         ServiceServeur serviceServeur = new ServiceServeur(port, id, lieurs.toArray(new Lieur[0]));
+        if (options.containsKey("travailleurs")) {
+            serviceServeur.setNbTravailleurs(Integer.parseInt(options.get("travailleurs")));
+        }
+        if (options.containsKey("bail")) {
+            serviceServeur.setBail(Integer.parseInt(options.get("bail")));
+        }
+        if (options.containsKey("drainage")) {
+            serviceServeur.setDelaiDrainage(Integer.parseInt(options.get("drainage")));
+        }
         serviceServeur.demarrer();
     }
 }
@@ -7,12 +7,51 @@ package com.heig;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Au lancement le serveur va se souscrire à un lieur dans sa liste de lieurs. Une fois qu'il aura reçu la confirmation
  * de sa souscription/abonnement, il va répondre aux demandes des clients et aux verifications d'existance des lieurs.
  * La taille maximale d'une requête d'un client est de 1000 bytes.
+ *
+ * Les requêtes sont reçues par un seul thread sur un DatagramChannel. Les vérifications d'existence
+ * (VERIFIE_N_EXISTE_PAS) sont répondues directement par ce thread, elles ne font donc jamais la queue derrière les
+ * demandes des clients. Les demandes des clients sont transmises à des threads travailleurs qui renvoient le message
+ * reçu. Les requêtes sont reçues dans une réserve de tampons directs qui passent du thread de réception aux
+ * travailleurs puis retournent dans la réserve: le traitement d'une requête n'alloue aucun tampon. La réponse ne
+ * contient que les bytes effectivement reçus. Quand tous les tampons attendent un travailleur, le thread de réception
+ * n'attend pas: il reçoit dans un tampon de secours, répond aux vérifications, aux confirmations et aux statistiques,
+ * et abandonne les demandes des clients, qui seront retransmises.
+ *
+ * L'abonnement est fait avec un bail: le serveur envoie un BATTEMENT à tous les lieurs trois fois par durée de bail
+ * pour le renouveler, un battement perdu ne fait donc pas expirer le bail. Le battement indique la charge du serveur,
+ * le nombre de demandes reçues par seconde depuis le battement précédent, que les lieurs utilisent pour répartir les
+ * clients. Si le serveur s'arrête, le lieur le supprime à la fin du bail sans attendre la plainte d'un client. Avec un
+ * bail de 0 le serveur reste inscrit jusqu'à ce qu'une vérification échoue.
+ *
+ * Le serveur tient des métriques (voir Metriques), exposées par JMX et envoyées en réponse à DEMANDE_STATISTIQUES. La
+ * durée de traitement d'une demande d'echo est comptée depuis sa réception, attente d'un travailleur comprise.
+ *
+ * A l'arrêt du serveur (fin normale de la JVM, SIGTERM ou Ctrl-C), un crochet d'arrêt arrête les battements et envoie
+ * DESABONNEMENT à tous les lieurs jusqu'à leur confirmation: les lieurs ne donnent plus ce serveur aux clients. Le
+ * serveur répond encore aux demandes pendant le délai de drainage, pour les clients qui l'ont obtenu avant. Par défaut
+ * le délai de drainage couvre la durée de vie maximale du cache des clients (voir Service), l'arrêt ne fait donc
+ * perdre aucune demande. Le drainage se termine plus tôt dès qu'aucune demande n'est arrivée pendant le délai
+ * d'inactivité: un serveur qui n'est plus utilisé s'arrête sans attendre. Un délai de drainage plus court est accepté,
+ * pour les essais, mais signalé au démarrage.
+ *
+ * Une demande avec un id de requête est répondue avec cet id et sa réponse est gardée quelques secondes (voir
+ * CacheReponses): une demande retransmise par le client reçoit la réponse déjà envoyée.
  */
 public class ServiceServeur {
     private final Lieur[] lieurs;                    // Liste de tous les lieurs
@@ -20,6 +59,39 @@ public class ServiceServeur {
     private final int port;                          // Port utilisé pour la réception des paquets point à poinr
     private final int tailleMaxRequete = 1000;       // Taille maximum d'une requête d'un client au serveur
     private final int tempsMaxAttenteReponse = 4000; // Temps avant d'attente maximal avant un tempsMaxAttenteReponse du socket
+    private int nbTravailleurs = Runtime.getRuntime().availableProcessors(); // Nombre de threads de traitement des demandes
+    private int bail = 15000;                        // Durée du bail de l'abonnement en millisecondes, 0 pour aucun bail
+    private final int nbTampons = 256;               // Nombre de tampons de réception dans la réserve
+    private final ArrayBlockingQueue<Requete> libres = new ArrayBlockingQueue<>(nbTampons);   // Tampons disponibles pour la réception
+    private final ArrayBlockingQueue<Requete> aTraiter = new ArrayBlockingQueue<>(nbTampons); // Demandes en attente d'un travailleur
+    private final Requete secours = new Requete(Codec.allouerDirect(tailleMaxRequete)); // Tampon de réception quand la réserve est vide
+    private final AtomicLong nbDemandesRecues = new AtomicLong(); // Nombre de demandes d'echo reçues, pour la charge
+    private DatagramChannel canal;                   // Canal de réception et d'envoi
+    private final Metriques metriques = new Metriques(); // Métriques du serveur
+    private final LongAdder nbBattements = metriques.compteur("battements.envoyes"); // Battements envoyés aux lieurs
+    private final CacheReponses reponses = new CacheReponses(1024, 10000); // Dernières réponses aux demandes avec id
+    private final LongAdder nbReponsesRejouees = metriques.compteur("reponses.rejouees"); // Demandes retransmises répondues depuis le cache
+    private final LongAdder nbDemandesAbandonnees = metriques.compteur("demandes.abandonnees"); // Demandes reçues sans tampon libre
+    private int delaiDrainage = Service.DUREE_VIE_CACHE_MAX; // Durée pendant laquelle le serveur répond encore après son désabonnement
+    private final int delaiInactiviteDrainage = 2000; // Durée sans demande après laquelle le drainage se termine
+    private volatile long derniereDemande = System.nanoTime(); // Instant de réception de la dernière demande d'echo, en nanosecondes
+    private final int nbMaxEssaisDesabonnement = 3;  // Nombre d'envois du désabonnement aux lieurs qui ne l'ont pas confirmé
+    private final int tempsMaxAttenteConfirmation = 500; // Temps d'attente des confirmations de désabonnement par essai
+    private final Set<SocketAddress> desabonnementsConfirmes = ConcurrentHashMap.newKeySet(); // Lieurs qui ont confirmé le désabonnement
+    private ScheduledExecutorService battements;     // Thread des battements, arrêté avant le désabonnement
+
+    /**
+     * Requête reçue, avec son tampon de réception. Les requêtes sont créées une fois au démarrage et réutilisées.
+     */
+    private static class Requete {
+        final ByteBuffer tampon;
+        SocketAddress expediteur;
+        long debut;                                  // Instant de réception
+
+        Requete(ByteBuffer tampon) {
+            this.tampon = tampon;
+        }
+    }
 
     /**
      * Création d'un nouveau serveur de service avec son id, son ip, son port et la liste des lieurs
@@ -33,6 +105,30 @@ public class ServiceServeur {
         this.idService = idService;
     }
 
+    public int getNbTravailleurs() {
+        return nbTravailleurs;
+    }
+
+    public void setNbTravailleurs(int nbTravailleurs) {
+        this.nbTravailleurs = nbTravailleurs;
+    }
+
+    public int getDelaiDrainage() {
+        return delaiDrainage;
+    }
+
+    public void setDelaiDrainage(int delaiDrainage) {
+        this.delaiDrainage = delaiDrainage;
+    }
+
+    public int getBail() {
+        return bail;
+    }
+
+    public void setBail(int bail) {
+        this.bail = bail;
+    }
+
     /**
      * Démarre le serveur de service. Il va se souscrire à un lieur et faire son service d'echo lors de la réception
      * de requêtes. Il va également répondre au requête
@@ -44,74 +140,328 @@ public class ServiceServeur {
         // Utilisé pour générer des valeurs aléatoires
         Random rand = new Random();
 
-        // Création du socket point à point pour l'envoi de packet udp
-        DatagramSocket pointAPointSocket = new DatagramSocket(port);
-        System.out.println("Démarrage du serveur");
+        // Création du canal point à point pour l'envoi de packet udp, bloquant et utilisé au travers de son socket
+        // pendant la souscription
+        canal = DatagramChannel.open(StandardProtocolFamily.INET);
+        canal.bind(new InetSocketAddress(port));
+        DatagramSocket pointAPointSocket = canal.socket();
+        Journal.info("Démarrage du serveur");
+
+        // Tampons d'envoi et de réception de la souscription
+        ByteBuffer envoi = Codec.allouer(tailleMaxRequete);
+        ByteBuffer reception = Codec.allouer(tailleMaxRequete);
+        DatagramPacket paquetEnvoi = new DatagramPacket(envoi.array(), 0);
+        DatagramPacket paquetReception = new DatagramPacket(reception.array(), reception.capacity());
 
         // Souscription à un lieur aléatoire dans la liste des lieurs
         int linkerNumber = rand.nextInt(lieurs.length);
-        byte[] souscriptionBuffer = {(byte) Protocole.ABONNEMENT.ordinal(), (byte)idService};
 
-        System.out.println("Tentative de souscription au lieur:");
-        System.out.println(lieurs[linkerNumber]);
+        Journal.info("Tentative de souscription au lieur: ", lieurs[linkerNumber]);
 
         // Envoi du paquet de souscription
-        DatagramPacket linkerSubscribePacket = new DatagramPacket(souscriptionBuffer, souscriptionBuffer.length, InetAddress.getByName(lieurs[linkerNumber].getIp()), lieurs[linkerNumber].getPort());
-        pointAPointSocket.send(linkerSubscribePacket);
+        InetSocketAddress adresseLieur = new InetSocketAddress(lieurs[linkerNumber].getIp(), lieurs[linkerNumber].getPort());
+        envoyer(pointAPointSocket, paquetEnvoi, Codec.encoderAbonnement(envoi, idService, bail), adresseLieur);
 
-        // Attente de la confirmation du lieur
-        byte[] buffer = new byte[1];
-        DatagramPacket linkerConfirmationPacket = new DatagramPacket(buffer, buffer.length);
+        // Attente de la confirmation du lieur. Un lieur surchargé indique le délai après lequel renvoyer l'abonnement,
+        // un lieur partitionné qui ne possède pas notre id nous redirige vers ses propriétaires
+        Protocole reponse;
         do {
             try {
                 pointAPointSocket.setSoTimeout(tempsMaxAttenteReponse);
-                pointAPointSocket.receive(linkerConfirmationPacket);
+                recevoir(pointAPointSocket, paquetReception, reception);
             } catch (SocketTimeoutException e) {
-                System.out.print("Le lieur n'a pas pu etre atteint, arret du serveur");
+                Journal.erreur("Le lieur n'a pas pu etre atteint, arret du serveur");
                 return;
             }
-        } while (linkerConfirmationPacket.getData()[0] != Protocole.CONFIRMATION_ABONNEMENT.ordinal());
+            reponse = Codec.lireType(reception);
+            if (reponse == Protocole.SURCHARGE && reception.remaining() >= 5) {
+                Codec.lireType(reception);
+                int delai = Codec.lireDelaiNouvelEssai(reception);
+                Journal.avertissement("Lieur surchargé, nouvel essai de souscription dans (ms) ", delai);
+                Thread.sleep(delai);
+                envoyer(pointAPointSocket, paquetEnvoi, Codec.encoderAbonnement(envoi, idService, bail), adresseLieur);
+            } else if (reponse == Protocole.REDIRECTION && reception.remaining() >= 2) {
+                Codec.lireIdService(reception);
+                InetSocketAddress[] proprietaires = Codec.lireProprietaires(reception);
+                if (proprietaires.length > 0) {
+                    adresseLieur = proprietaires[0];
+                    Journal.info("Souscription redirigée vers le lieur ", adresseLieur);
+                    envoyer(pointAPointSocket, paquetEnvoi, Codec.encoderAbonnement(envoi, idService, bail), adresseLieur);
+                }
+            }
+        } while (reponse != Protocole.CONFIRMATION_ABONNEMENT);
 
-        System.out.println("Confirmation de souscription reçue");
+        Journal.info("Confirmation de souscription reçue");
 
         // On remet le tempsMaxAttenteReponse du socket à 0 (infini)
         pointAPointSocket.setSoTimeout(0);
 
+        // Renouvellement périodique du bail auprès du lieur
+        if (bail > 0) {
+            demarrerBattements();
+        }
+
+        // Désabonnement auprès de tous les lieurs à l'arrêt du serveur
+        if (delaiDrainage < Service.DUREE_VIE_CACHE_MAX) {
+            Journal.avertissement("Drainage plus court que le cache des clients, des demandes seront perdues à l'arrêt (ms) ",
+                                  delaiDrainage);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::arreter, "desabonnement"));
+
+        // Métriques, exposées dès que le serveur répond aux demandes
+        metriques.jauge("travailleurs.en_attente", aTraiter::size);
+        metriques.enregistrerJmx("serveur-" + port);
+
+        // Création de la réserve de tampons et démarrage des travailleurs
+        for (int i = 0; i < nbTampons; i++) {
+            libres.add(new Requete(Codec.allouerDirect(tailleMaxRequete)));
+        }
+        for (int i = 0; i < nbTravailleurs; i++) {
+            Thread travailleur = new Thread(this::travailler, "travailleur-" + i);
+            travailleur.setDaemon(true);
+            travailleur.start();
+        }
+
         // Performer le service à l'infini maintenant qu'on est souscris aux lieurs
+        ByteBuffer confirmation = Codec.encoderSimple(Codec.allouerDirect(1), Protocole.J_EXISTE);
         while (true) {
-            System.out.println("Attente d'une nouvelle demande d'un client");
-
-            // Attente d'un requête, taille maximal d'un demande: 1000 bytes
-            byte[] requeteBuffer = new byte[tailleMaxRequete];
-            DatagramPacket clientPacket = new DatagramPacket(requeteBuffer, requeteBuffer.length);
-            pointAPointSocket.receive(clientPacket);
-
-            // Si c'est une requête au service d'echo
-            if(clientPacket.getData()[0] == (byte)Protocole.CONTACT_SERVICE.ordinal()) {
-                System.out.println("Reception d'une nouvelle demande du client " +
-                                   clientPacket.getAddress().getHostAddress() + " " + clientPacket.getPort());
-
-                // Création du paquet de réponse
-                byte[] reponseBuffer = new byte[clientPacket.getData().length];
-                reponseBuffer[0] = (byte) Protocole.REPONSE_DU_SERVICE.ordinal();
-                for(int i = 1; i < clientPacket.getData().length; i++){
-                    reponseBuffer[i] = clientPacket.getData()[i];
+            // Attente d'un requête, taille maximal d'un demande: 1000 bytes. Sans tampon libre, la requête est reçue
+            // dans le tampon de secours pour que les vérifications des lieurs ne fassent pas la queue
+            Requete requete = libres.poll();
+            if (requete == null) {
+                requete = secours;
+            }
+            requete.tampon.clear();
+            requete.expediteur = canal.receive(requete.tampon);
+            requete.debut = System.nanoTime();
+            requete.tampon.flip();
+
+            Protocole type = Codec.lireType(requete.tampon);
+            metriques.recu(type);
+            // Si c'est une requête au service d'echo, elle est transmise aux travailleurs
+            if (type == Protocole.CONTACT_SERVICE) {
+                nbDemandesRecues.incrementAndGet();
+                derniereDemande = requete.debut;
+                if (requete == secours) {
+                    nbDemandesAbandonnees.increment();
+                    continue;
+                }
+                aTraiter.put(requete);
+                continue;
+            }
+            // Si c'est un test d'existance de la part du lieur, la confirmation est envoyée immédiatement
+            if (type == Protocole.VERIFIE_N_EXISTE_PAS) {
+                Journal.debug("Reception de test d'existance de la part du lieur");
+                confirmation.rewind();
+                canal.send(confirmation, requete.expediteur);
+                metriques.traite(type, requete.debut);
+            }
+            // Confirmation du désabonnement par un lieur, pendant l'arrêt du serveur
+            if (type == Protocole.CONFIRMATION_DESABONNEMENT) {
+                desabonnementsConfirmes.add(requete.expediteur);
+            }
+            // Si un outil de supervision demande les métriques du serveur
+            if (type == Protocole.DEMANDE_STATISTIQUES) {
+                int depuis = requete.tampon.remaining() >= 2 ? Codec.lireNombre(requete.tampon) : 0;
+                canal.send(metriques.encoderReponseStatistiques(envoi, depuis), requete.expediteur);
+                metriques.traite(type, requete.debut);
+            }
+            if (requete != secours) {
+                libres.put(requete);
+            }
+        }
+    }
+
+    /**
+     * Démarre l'envoi périodique des battements à tous les lieurs, depuis un thread dédié
+     */
+    private void demarrerBattements() {
+        InetSocketAddress[] adressesLieurs = adressesLieurs();
+        ByteBuffer battement = Codec.allouerDirect(10);
+        battements = Executors.newSingleThreadScheduledExecutor(tache -> {
+            Thread thread = new Thread(tache, "battements");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long periode = Math.max(1, bail / 3);
+        long[] precedent = {System.nanoTime(), nbDemandesRecues.get()};
+        battements.scheduleAtFixedRate(() -> {
+            // Charge: demandes reçues par seconde depuis le battement précédent
+            long maintenant = System.nanoTime();
+            long nbDemandes = nbDemandesRecues.get();
+            long duree = Math.max(1, maintenant - precedent[0]);
+            int charge = (int) Math.min(Integer.MAX_VALUE, (nbDemandes - precedent[1]) * 1000000000L / duree);
+            precedent[0] = maintenant;
+            precedent[1] = nbDemandes;
+
+            Codec.encoderBattement(battement, idService, bail, charge);
+            for (InetSocketAddress adresseLieur : adressesLieurs) {
+                try {
+                    battement.rewind();
+                    canal.send(battement, adresseLieur);
+                    nbBattements.increment();
+                } catch (IOException e) {
+                    Journal.erreur("Erreur lors de l'envoi du battement: ", e.getMessage());
+                }
+            }
+        }, periode, periode, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Arrêt planifié du serveur, exécuté par le crochet d'arrêt de la JVM. Les battements sont arrêtés d'abord pour
+     * qu'un battement en retard ne réinscrive pas le service. Le désabonnement est envoyé aux lieurs qui ne l'ont pas
+     * encore confirmé, les confirmations étant reçues par le thread de réception. Le serveur continue ensuite de
+     * répondre pendant le délai de drainage, ou jusqu'à ce qu'aucune demande ne soit arrivée pendant le délai
+     * d'inactivité depuis le désabonnement.
+     */
+    private void arreter() {
+        if (battements != null) {
+            battements.shutdownNow();
+        }
+        InetSocketAddress[] adressesLieurs = adressesLieurs();
+        ByteBuffer desabonnement = Codec.encoderDesabonnement(Codec.allouerDirect(2), idService);
+        try {
+            for (int essai = 0; essai < nbMaxEssaisDesabonnement && desabonnementsConfirmes.size() < adressesLieurs.length; essai++) {
+                for (InetSocketAddress adresseLieur : adressesLieurs) {
+                    if (!desabonnementsConfirmes.contains(adresseLieur)) {
+                        desabonnement.rewind();
+                        canal.send(desabonnement, adresseLieur);
+                    }
+                }
+                long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(tempsMaxAttenteConfirmation);
+                while (desabonnementsConfirmes.size() < adressesLieurs.length && System.nanoTime() < limite) {
+                    Thread.sleep(10);
                 }
+            }
+            Journal.info("Désabonnement confirmé par " + desabonnementsConfirmes.size() + " lieurs sur " + adressesLieurs.length
+                         + ", drainage pendant au plus (ms) ", delaiDrainage);
+            drainer();
+        } catch (IOException | InterruptedException e) {
+            Journal.erreur("Erreur lors du désabonnement: ", e.getMessage());
+        }
+        Journal.info("Arrêt du serveur");
+        Journal.vider();
+    }
+
+    /**
+     * Attend la fin du délai de drainage, ou moins si aucune demande n'est arrivée pendant le délai d'inactivité. Les
+     * demandes reçues avant le début du drainage ne le prolongent pas.
+     *
+     * @throws InterruptedException
+     */
+    private void drainer() throws InterruptedException {
+        long debut = System.nanoTime();
+        long fin = debut + TimeUnit.MILLISECONDS.toNanos(delaiDrainage);
+        long inactivite = TimeUnit.MILLISECONDS.toNanos(delaiInactiviteDrainage);
+        long maintenant = debut;
+        while (maintenant - fin < 0) {
+            long derniere = derniereDemande - debut > 0 ? derniereDemande : debut;
+            if (maintenant - derniere >= inactivite) {
+                break;
+            }
+            Thread.sleep(Math.min(100, TimeUnit.NANOSECONDS.toMillis(fin - maintenant) + 1));
+            maintenant = System.nanoTime();
+        }
+        Journal.info("Drainage terminé après (ms) ", TimeUnit.NANOSECONDS.toMillis(maintenant - debut));
+    }
+
+    /**
+     * Adresses de tous les lieurs
+     *
+     * @return
+     */
+    private InetSocketAddress[] adressesLieurs() {
+        InetSocketAddress[] adresses = new InetSocketAddress[lieurs.length];
+        for (int i = 0; i < lieurs.length; i++) {
+            adresses[i] = new InetSocketAddress(lieurs[i].getIp(), lieurs[i].getPort());
+        }
+        return adresses;
+    }
 
-                // Envoi de la réponse au client
-                DatagramPacket clientResponsePacket = new DatagramPacket(reponseBuffer, clientPacket.getData().length, clientPacket.getAddress(), clientPacket.getPort());
-                pointAPointSocket.send(clientResponsePacket);
+    /**
+     * Boucle d'un thread travailleur: renvoie au client le message de chaque demande reçue
+     */
+    private void travailler() {
+        ByteBuffer reponse = Codec.allouerDirect(tailleMaxRequete);
+        while (true) {
+            Requete requete;
+            try {
+                requete = aTraiter.take();
+            } catch (InterruptedException e) {
+                return;
             }
-            // Sinon c'est un test d'existance de la part du lieur
-            else
-            {
-                System.out.print("Reception de test d'existance de la part du lieur");
-
-                // Envoi de la confirmation d'existance au lieur
-                DatagramPacket sayItExist = new DatagramPacket(new byte[]{(byte) Protocole.J_EXISTE.ordinal()}, 1, clientPacket.getAddress(), clientPacket.getPort());
-                pointAPointSocket.send(sayItExist);
+            try {
+                repondre(requete, reponse);
+                metriques.traite(Protocole.CONTACT_SERVICE, requete.debut);
+            } catch (IOException e) {
+                Journal.erreur("Erreur lors de la réponse au client: ", e.getMessage());
+            } finally {
+                libres.offer(requete);
             }
         }
     }
 
+    /**
+     * Renvoie au client le message reçu, limité à la longueur annoncée et aux bytes effectivement reçus, avec l'id de
+     * requête qui suit le message
+     *
+     * @param requete tampon positionné après le type du message
+     * @param reponse
+     * @throws IOException
+     */
+    private void repondre(Requete requete, ByteBuffer reponse) throws IOException {
+        ByteBuffer message = requete.tampon;
+        if (!message.hasRemaining()) {
+            return;
+        }
+        int longueur = Codec.lireLongueurMessage(message);
+        int fin = message.position() + longueur;
+        int idRequete = 0;
+        if (message.limit() >= fin + Codec.TAILLE_ID_REQUETE) {
+            idRequete = message.getInt(fin);
+        }
+        InetSocketAddress expediteur = (InetSocketAddress) requete.expediteur;
+        if (idRequete != 0 && reponses.chercher(expediteur, idRequete, reponse)) {
+            nbReponsesRejouees.increment();
+            canal.send(reponse, expediteur);
+            return;
+        }
+
+        message.limit(Math.min(message.limit(), fin));
+        Codec.encoderReponseDuService(reponse, message, idRequete);
+        if (idRequete != 0) {
+            reponses.enregistrer(expediteur, idRequete, reponse);
+        }
+        canal.send(reponse, expediteur);
+    }
+
+    /**
+     * Envoie le message contenu dans le tampon, le paquet utilise le tableau du tampon
+     *
+     * @param socket
+     * @param paquet
+     * @param message
+     * @param destination
+     * @throws IOException
+     */
+    private void envoyer(DatagramSocket socket, DatagramPacket paquet, ByteBuffer message, InetSocketAddress destination) throws IOException {
+        paquet.setData(message.array(), 0, message.limit());
+        paquet.setSocketAddress(destination);
+        socket.send(paquet);
+    }
+
+    /**
+     * Reçoit un paquet dans le tableau du tampon, le tampon est ensuite prêt à être lu
+     *
+     * @param socket
+     * @param paquet
+     * @param tampon
+     * @throws IOException
+     */
+    private void recevoir(DatagramSocket socket, DatagramPacket paquet, ByteBuffer tampon) throws IOException {
+        paquet.setLength(tampon.capacity());
+        socket.receive(paquet);
+        tampon.clear();
+        tampon.limit(paquet.getLength());
+    }
 }
@@ -0,0 +1,132 @@
+/**
+ * Project: Labo02
+ * Authors: Antoine Drabble & Simon Baehler
+ * Date: 08.11.2016
+ */
+package com.heig;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Cette classe interroge un lieur ou un serveur avec DEMANDE_STATISTIQUES et affiche ses métriques.
+ *
+ * Pour appeler le programme, il faut lui passer en paramêtre l'ip et le port du lieur ou du serveur. Des options de la
+ * forme --nom valeur peuvent être ajoutées:
+ *
+ * --periode : période en secondes entre deux interrogations, les métriques sont alors affichées jusqu'à l'arrêt du
+ *             programme (une seule interrogation par défaut)
+ * --filtre  : n'affiche que les métriques dont le nom commence par ce préfixe, par exemple verifications
+ *
+ * Par example :
+ *
+ * java statistiques.jar 127.0.0.1 1111 --periode 5 --filtre messages
+ */
+public class Main {
+    private static final int TEMPS_MAX_ATTENTE_REPONSE = 2000; // Temps d'attente maximal d'une réponse en millisecondes
+    private static final int TAILLE_MAX_REPONSE = 1400;        // Taille maximale d'une réponse
+
+    /**
+     * Interroge le lieur ou le serveur donné et affiche ses métriques
+     *
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // Séparation des options et des paramètres
+        Map<String, String> options = new HashMap<>();
+        List<String> parametres = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                parametres.add(args[i]);
+            }
+        }
+        args = parametres.toArray(new String[0]);
+
+        if (args.length < 2) {
+            System.out.println("Il faut fournir l'ip et le port du lieur ou du serveur");
+            return;
+        }
+        InetSocketAddress adresse = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        int periode = Integer.parseInt(options.getOrDefault("periode", "0"));
+        String filtre = options.getOrDefault("filtre", "");
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(TEMPS_MAX_ATTENTE_REPONSE);
+            do {
+                SortedMap<String, Long> valeurs = interroger(socket, adresse);
+                if (valeurs == null) {
+                    System.out.println("Pas de réponse de " + adresse);
+                } else {
+                    System.out.println("Métriques de " + adresse + ":");
+                    for (Map.Entry<String, Long> valeur : valeurs.entrySet()) {
+                        if (valeur.getKey().startsWith(filtre)) {
+                            System.out.println(String.format("  %-50s %d", valeur.getKey(), valeur.getValue()));
+                        }
+                    }
+                }
+                Thread.sleep(periode * 1000L);
+            } while (periode > 0);
+        }
+    }
+
+    /**
+     * Demande toutes les métriques, en autant de demandes que nécessaire: chaque réponse contient les valeurs à partir
+     * de l'index demandé
+     *
+     * @param socket
+     * @param adresse
+     * @return les métriques ou null si une demande est restée sans réponse
+     * @throws IOException
+     */
+    private static SortedMap<String, Long> interroger(DatagramSocket socket, InetSocketAddress adresse) throws IOException {
+        ByteBuffer envoi = Codec.allouer(3);
+        ByteBuffer reception = Codec.allouer(TAILLE_MAX_REPONSE);
+        DatagramPacket paquet = new DatagramPacket(reception.array(), reception.capacity());
+        SortedMap<String, Long> valeurs = new TreeMap<>();
+        int depuis = 0;
+        int nbTotal;
+        do {
+            Codec.encoderDemandeStatistiques(envoi, depuis);
+            socket.send(new DatagramPacket(envoi.array(), envoi.limit(), adresse));
+
+            // Attente de la réponse à cette demande, les réponses en retard à une demande précédente sont ignorées
+            do {
+                try {
+                    paquet.setLength(reception.capacity());
+                    socket.receive(paquet);
+                } catch (SocketTimeoutException e) {
+                    return null;
+                }
+                reception.clear();
+                reception.limit(paquet.getLength());
+            } while (Codec.lireType(reception) != Protocole.REPONSE_STATISTIQUES
+                     || reception.getShort(3) != (short) depuis);
+
+            nbTotal = Codec.lireNombre(reception);
+            Codec.lireNombre(reception);
+            int nbValeurs = Codec.lireNombre(reception);
+            for (int i = 0; i < nbValeurs; i++) {
+                valeurs.put(Codec.lireNom(reception), reception.getLong());
+            }
+            if (nbValeurs == 0) {
+                break;
+            }
+            depuis += nbValeurs;
+        } while (depuis < nbTotal);
+        return valeurs;
+    }
+}